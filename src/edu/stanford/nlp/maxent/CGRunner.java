@@ -6,8 +6,13 @@
  */
 package edu.stanford.nlp.maxent;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 
+import edu.stanford.nlp.io.InDataStreamFile;
+import edu.stanford.nlp.io.OutDataStreamFile;
+import edu.stanford.nlp.io.RuntimeIOException;
 import edu.stanford.nlp.maxent.iis.LambdaSolve;
 import edu.stanford.nlp.optimization.*;
 import edu.stanford.nlp.util.ReflectionLoading;
@@ -17,14 +22,17 @@ import edu.stanford.nlp.util.ReflectionLoading;
  * Quasi-Newton  on a LambdaSolve object to find
  * optimal parameters, including imposing a Gaussian prior on those
  * parameters.
+ * <p>
+ * The parameters start at the <code>lambda</code> values of the
+ * LambdaSolve object (normally all 0.0, but they can be set first to
+ * warm-start from an earlier solution).  A long run can save checkpoints
+ * of its state as it goes, and be resumed from the last one.
  *
  * @author Kristina Toutanova
  * @author Christopher Manning
  */
 public class CGRunner {
 
-  private static final boolean SAVE_LAMBDAS_REGULARLY = false;
-
   private final LambdaSolve prob;
   private final String filename;
   /**
@@ -35,6 +43,9 @@ public class CGRunner {
   private final double priorSigmaS;
   private final double[] sigmaSquareds; // = null;
 
+  private int checkpointIters; // = 0
+  private boolean resume; // = false
+
   private static final double DEFAULT_TOLERANCE = 1e-4;
   private static final double DEFAULT_SIGMASQUARED = 0.5;
 
@@ -109,6 +120,36 @@ public class CGRunner {
   }
 
 
+  /**
+   * Saves the state of the minimization every so many iterations, to the
+   * filename with extension ".checkpoint": for QN, the lambdas and the
+   * L-BFGS (s,y) history; for CG, the lambdas; for SGD, every so many
+   * passes, the lambdas, the AdaGrad sums and the pass reached.  (OWLQN
+   * doesn't save checkpoints.)
+   *
+   * @param iterations How often to save it, or 0 for never
+   */
+  public void setCheckpointIterations(int iterations) {
+    this.checkpointIters = iterations;
+  }
+
+
+  /**
+   * Continue from the checkpoint saved by an earlier run, with the same
+   * problem and the same solve method, instead of starting at the lambdas
+   * of the problem.
+   */
+  public void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+
+  /** The file that checkpoints are saved to and resumed from. */
+  public String checkpointFile() {
+    return filename + ".checkpoint";
+  }
+
+
   /**
     * Solves the problem using QN.  The solution is stored in the
     * <code>lambda</code> array of <code>prob</code>.
@@ -124,11 +165,18 @@ public class CGRunner {
    */
   public void solveQN() {
     LikelihoodFunction df = new LikelihoodFunction(prob, tol, useGaussianPrior, priorSigmaS, sigmaSquareds);
-    MonitorFunction monitor = new MonitorFunction(prob, df, filename);
-    Minimizer<DiffFunction> cgm = new QNMinimizer(monitor, 10);
+    MonitorFunction monitor = new MonitorFunction(prob, df, null, 0);
+    QNMinimizer cgm = new QNMinimizer(monitor, 10);
 
-    // all parameters are started at 0.0
-    double[] result = cgm.minimize(df, tol, new double[df.domainDimension()]);
+    double[] initial = prob.lambda.clone();
+    if (checkpointIters > 0) {
+      cgm.setCheckpoint(checkpointFile(), checkpointIters);
+    }
+    if (resume) {
+      System.err.println("Resuming from QN checkpoint " + checkpointFile());
+      initial = checkDimension(cgm.readCheckpoint(checkpointFile()), df);
+    }
+    double[] result = cgm.minimize(df, tol, initial);
     prob.lambda = result;
     monitor.reportMonitoring(df.valueAt(result));
     System.err.println("after optimization value is " + df.valueAt(result));
@@ -140,11 +188,15 @@ public class CGRunner {
    */
   public void solveCG() {
     LikelihoodFunction df = new LikelihoodFunction(prob, tol, useGaussianPrior, priorSigmaS, sigmaSquareds);
-    MonitorFunction monitor = new MonitorFunction(prob, df, filename);
+    MonitorFunction monitor = new MonitorFunction(prob, df, checkpointFile(), checkpointIters);
     Minimizer<DiffFunction> cgm = new CGMinimizer(monitor);
 
-    // all parameters are started at 0.0
-    double[] result = cgm.minimize(df, tol, new double[df.domainDimension()]);
+    double[] initial = prob.lambda.clone();
+    if (resume) {
+      System.err.println("Resuming from CG checkpoint " + checkpointFile());
+      initial = checkDimension(readLambdas(checkpointFile()), df);
+    }
+    double[] result = cgm.minimize(df, tol, initial);
     prob.lambda = result;
     monitor.reportMonitoring(df.valueAt(result));
     System.err.println("after optimization value is " + df.valueAt(result));
@@ -163,20 +215,102 @@ public class CGRunner {
   public void solveL1(double weight) {
     LikelihoodFunction df = new LikelihoodFunction(prob, tol, useGaussianPrior, priorSigmaS, sigmaSquareds);
     Minimizer<DiffFunction> owl = ReflectionLoading.loadByReflection("edu.stanford.nlp.optimization.OWLQNMinimizer", weight);
-    double[] result = owl.minimize(df, tol, new double[df.domainDimension()]);
+    double[] initial = prob.lambda.clone();
+    if (resume) {
+      System.err.println("Resuming from lambdas in " + checkpointFile());
+      initial = checkDimension(readLambdas(checkpointFile()), df);
+    }
+    double[] result = owl.minimize(df, tol, initial);
+    prob.lambda = result;
+    System.err.println("after optimization value is " + df.valueAt(result));
+  }
+
+
+  /**
+   * Solves the problem using mini-batch stochastic gradient descent
+   * with AdaGrad step sizes (see SGDMinimizer).  Each batch is some of
+   * the training examples, and its likelihood is worked out from just
+   * their histories, so a step costs much less than a QN or CG
+   * iteration; on a large corpus, a pass or two gives a usable model.
+   * The solution is stored in the <code>lambda</code> array of
+   * <code>prob</code>.  Resuming continues from the pass after the one
+   * saved, with the same step sizes and order of examples that the
+   * interrupted run would have used.
+   *
+   * @param learningRate The AdaGrad learning rate
+   * @param batchSize The number of training examples in each batch
+   * @param passes The most passes over the training examples
+   */
+  public void solveSGD(double learningRate, int batchSize, int passes) {
+    LikelihoodFunction df = new LikelihoodFunction(prob, tol, useGaussianPrior, priorSigmaS, sigmaSquareds);
+    SGDMinimizer sgd = new SGDMinimizer(learningRate, batchSize, passes);
+    if (checkpointIters > 0) {
+      sgd.setCheckpoint(checkpointFile(), checkpointIters);
+    }
+
+    double[] initial = prob.lambda.clone();
+    if (resume) {
+      System.err.println("Resuming from SGD checkpoint " + checkpointFile());
+      initial = checkDimension(sgd.readCheckpoint(checkpointFile()), df);
+    }
+    double[] result = sgd.minimize(df, tol, initial);
     prob.lambda = result;
     System.err.println("after optimization value is " + df.valueAt(result));
   }
 
+
+  private static double[] checkDimension(double[] lambdas, DiffFunction df) {
+    if (lambdas.length != df.domainDimension()) {
+      throw new IllegalArgumentException("Checkpoint has " + lambdas.length + " lambdas, but the problem has " +
+                                         df.domainDimension() + ": was it saved by a run on other data or with other options?");
+    }
+    return lambdas;
+  }
+
+
+  private static double[] readLambdas(String filename) {
+    try {
+      InDataStreamFile rf = new InDataStreamFile(filename);
+      double[] lambdas = LambdaSolve.read_lambdas(rf);
+      rf.close();
+      return lambdas;
+    } catch (IOException e) {
+      throw new RuntimeIOException("Couldn't read lambdas from " + filename, e);
+    }
+  }
+
+
+  /**
+   * Saves the lambdas under another name and renames the file, so that
+   * there is always a whole checkpoint.
+   */
+  private static void saveLambdas(double[] lambdas, String filename) {
+    File temp = new File(filename + ".tmp");
+    try {
+      OutDataStreamFile rf = new OutDataStreamFile(temp.getPath());
+      LambdaSolve.save_lambdas(rf, lambdas);
+      rf.close();
+      if ( ! temp.renameTo(new File(filename))) {
+        throw new IOException("Couldn't rename " + temp + " to " + filename);
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException("Couldn't save lambdas to " + filename, e);
+    }
+  }
+
+
   /**
-   * This class implements the DiffFunction interface for Minimizer
+   * This class implements the DiffFunction interface for Minimizer, and
+   * BatchDiffFunction for SGDMinimizer, over the training examples.
    */
-  private static final class LikelihoodFunction implements DiffFunction {
+  private static final class LikelihoodFunction implements BatchDiffFunction {
 
     private final LambdaSolve model;
     private final double tol;
     private final boolean useGaussianPrior;
     private final double[] sigmaSquareds;
+    // for mini-batches: the share of each feature's prior for each example
+    private double[] priorWeights; // = null
     private int valueAtCalls;
     private double likelihood;
 
@@ -261,6 +395,40 @@ public class CGRunner {
       return drvs;
     }
 
+
+    public int dataDimension() {
+      return model.p.data.size();
+    }
+
+
+    /**
+     * The batch's penalized negative log likelihood, scaled up to the
+     * whole data.  The prior penalty on each lambda is shared out among
+     * the training examples whose histories its feature is active on, so
+     * that each batch only pays the shares of its own features: a step
+     * then only involves those, and the estimate is still unbiased.  (A
+     * feature that is active on no example has no data either, so its
+     * penalty, and its lambda, are left alone.)
+     */
+    public double valueAndDerivativeAt(double[] lambda, int[] batch, double[] drvs, int[] touched) {
+      if (useGaussianPrior && priorWeights == null) {
+        int[] counts = model.featureExampleCounts();
+        priorWeights = new double[lambda.length];
+        for (int j = 0; j < lambda.length; j++) {
+          if (counts[j] > 0) {
+            priorWeights[j] = 1.0 / (sigmaSquareds[j] * counts[j]);
+          }
+        }
+      }
+      model.lambda = lambda;
+      double scale = model.p.data.size() / (double) batch.length;
+      double lik = scale * model.logLikelihoodBatch(batch, priorWeights, drvs, touched);
+      for (int k = 0; k < touched.length && touched[k] >= 0; k++) {
+        drvs[touched[k]] *= scale;
+      }
+      return lik;
+    }
+
   } // end static class LikelihoodFunction
 
 
@@ -271,24 +439,27 @@ public class CGRunner {
 
     private final LambdaSolve model;
     private final LikelihoodFunction lf;
-    private final String filename;
+    private final String checkpointFile;
+    private final int checkpointIters;
     private int iterations; // = 0
 
-    public MonitorFunction(LambdaSolve m, LikelihoodFunction lf, String filename) {
+    public MonitorFunction(LambdaSolve m, LikelihoodFunction lf,
+                           String checkpointFile, int checkpointIters) {
       this.model = m;
       this.lf = lf;
-      this.filename = filename;
+      this.checkpointFile = checkpointFile;
+      this.checkpointIters = checkpointIters;
     }
 
-    @SuppressWarnings({"ConstantConditions"})
     public double valueAt(double[] lambda) {
       double likelihood = lf.likelihood();
       // this line is printed in the middle of the normal line of QN minimization, so put println at beginning
       System.err.println();
       System.err.print(reportMonitoring(likelihood));
 
-      if (SAVE_LAMBDAS_REGULARLY  && iterations > 0 && iterations % 5 == 0) {
-        model.save_lambdas(filename + '.' + iterations + ".lam");
+      if (checkpointIters > 0 && iterations > 0 && iterations % checkpointIters == 0) {
+        saveLambdas(lambda, checkpointFile);
+        System.err.print(" [saved checkpoint]");
       }
 
       if (iterations > 0 && iterations % 30 == 0) {
@@ -17,6 +17,15 @@ import edu.stanford.nlp.util.MutableDouble;
 import java.text.NumberFormat;
 import java.io.IOException;
 import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -45,6 +54,14 @@ public class LambdaSolve {
    */
   protected double[][] probConds;
 
+  /**
+   * If not null, probConds[x] and fnumArr[x] are only over the ys in
+   * condYs[x], which is sorted, rather than over all the ys, and the
+   * probability of any other y given x is 0.  Arrays may be shared
+   * between xs.  See condIndex.
+   */
+  protected int[][] condYs;
+
   /**
    * Normalization factors, one for each x.  (CDM questions 2008: Are these
    * only at training time?  Can we not allocate it at test time (unlike
@@ -77,6 +94,43 @@ public class LambdaSolve {
   public boolean weightRanks = false;
   public boolean convertValues = false;
 
+  /**
+   * The number of threads logLikelihoodScratch, getDerivatives and
+   * logLikelihoodBatch use.
+   */
+  private int numThreads = 1;
+  private ExecutorService executor;
+
+  /**
+   * The feature occurrences of each history, for working out the
+   * histories' conditional probabilities in parallel or a few at a
+   * time: those of x are from xStarts[x] up to xStarts[x + 1], in
+   * feature order, and xYs holds their indices in probConds[x] (see
+   * condIndex).  xVals is null when the features are binary.  Built
+   * when first needed.
+   */
+  private int[] xStarts;
+  private int[] xFeatures;
+  private int[] xYs;
+  private double[] xVals;
+  // which features logLikelihoodBatch has seen in the current batch:
+  // those whose stamp is batchStamp
+  private int[] batchStamps;
+  private int batchStamp; // = 0
+
+  /**
+   * The number of histories or features in each parallel task.  This
+   * is fixed, so that partial sums are added up in the same order,
+   * whatever the number of threads.
+   */
+  private static final int CHUNK_SIZE = 1024;
+
+  /**
+   * The number of training examples in each parallel task of
+   * logLikelihoodBatch, which are far fewer than the histories.
+   */
+  private static final int BATCH_CHUNK_SIZE = 64;
+
 
   public LambdaSolve(Problem p1, double eps1, double nerr1) {
     p = p1;
@@ -123,6 +177,140 @@ public class LambdaSolve {
     ASSUME_BINARY = true;
   }
 
+  /**
+   * Sets the number of threads that {@link #logLikelihoodScratch},
+   * {@link #getDerivatives} and {@link #logLikelihoodBatch} split their
+   * work over.  The histories (for
+   * the likelihood) and the features (for the derivatives) are divided
+   * among the threads, and the results are the same as with one thread,
+   * except that the likelihood's terms are added up in a different order.
+   *
+   * @param numThreads The number of threads; 1 (the default) does the
+   *     work in the calling thread
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+    }
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+    this.numThreads = numThreads;
+    if (numThreads > 1) {
+      executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "LambdaSolve-" + count.incrementAndGet());
+            // so that an unfinished solver doesn't keep the JVM running
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    }
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /** Work on the items from start up to end, for one chunk. */
+  private interface ChunkTask {
+    void run(int chunk, int start, int end);
+  }
+
+  /**
+   * Splits the items 0 to size into chunks of CHUNK_SIZE, and runs the
+   * task on each of them, using all the threads.
+   *
+   * @return The number of chunks
+   */
+  private int runChunks(int size, ChunkTask task) {
+    return runChunks(size, CHUNK_SIZE, task);
+  }
+
+  /**
+   * Splits the items 0 to size into chunks of chunkSize, and runs the
+   * task on each of them, using all the threads.
+   *
+   * @return The number of chunks
+   */
+  private int runChunks(final int size, final int chunkSize, final ChunkTask task) {
+    final int numChunks = (size + chunkSize - 1) / chunkSize;
+    final AtomicInteger nextChunk = new AtomicInteger();
+    Runnable worker = new Runnable() {
+        public void run() {
+          int chunk;
+          while ((chunk = nextChunk.getAndIncrement()) < numChunks) {
+            task.run(chunk, chunk * chunkSize, Math.min(size, (chunk + 1) * chunkSize));
+          }
+        }
+      };
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+      for (int i = 0; i < numThreads; i++) {
+        futures.add(executor.submit(worker));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while computing the objective", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+    return numChunks;
+  }
+
+  /**
+   * Builds xStarts, xFeatures, xYs and xVals, going through the features
+   * in order, so that each history's scores are added up in the same
+   * order as in the serial logLikelihoodScratch.
+   */
+  private void indexFeaturesByX() {
+    if (xStarts != null) {
+      return;
+    }
+    int xSize = probConds.length;
+    int[] starts = new int[xSize + 1];
+    for (int fNo = 0; fNo < p.fSize; fNo++) {
+      Feature f = p.functions.get(fNo);
+      for (int i = 0, length = f.len(); i < length; i++) {
+        starts[f.getX(i) + 1]++;
+      }
+    }
+    for (int x = 0; x < xSize; x++) {
+      starts[x + 1] += starts[x];
+    }
+    int[] next = Arrays.copyOf(starts, xSize);
+    int[] features = new int[starts[xSize]];
+    int[] ys = new int[starts[xSize]];
+    double[] vals = ASSUME_BINARY ? null : new double[starts[xSize]];
+    for (int fNo = 0; fNo < p.fSize; fNo++) {
+      Feature f = p.functions.get(fNo);
+      for (int i = 0, length = f.len(); i < length; i++) {
+        int x = f.getX(i);
+        int entry = next[x]++;
+        features[entry] = fNo;
+        ys[entry] = condIndex(x, f.getY(i));
+        if (vals != null) {
+          vals[entry] = f.getVal(i);
+        }
+      }
+    }
+    xStarts = starts;
+    xFeatures = features;
+    xYs = ys;
+    xVals = vals;
+  }
+
 
   /**
    * This is a specialized procedure to change the values
@@ -402,9 +590,9 @@ public class LambdaSolve {
       // update for this x
       double s = 0;
       int x = p.functions.get(index).getX(i);
-      int y = p.functions.get(index).getY(i);
+      int y = condIndex(x, p.functions.get(index).getY(i));
       double val = p.functions.get(index).getVal(i);
-      double zlambdaX = zlambda[x] + pcond(y, x) * zlambda[x] * (Math.exp(deltaL * val) - 1);
+      double zlambdaX = zlambda[x] + probConds[x][y] * zlambda[x] * (Math.exp(deltaL * val) - 1);
       for (int y1 = 0; y1 < probConds[x].length; y1++) {
         probConds[x][y1] = (probConds[x][y1] * zlambda[x]) / zlambdaX;
         s = s + probConds[x][y1];
@@ -421,13 +609,27 @@ public class LambdaSolve {
   }
 
 
+  /**
+   * The index of y in probConds[x] and fnumArr[x], or a negative number
+   * if the model gives y probability 0 given x.
+   */
+  protected final int condIndex(int x, int y) {
+    if (condYs == null) {
+      return y;
+    }
+    return Arrays.binarySearch(condYs[x], y);
+  }
+
+
   public double pcond(int y, int x) {
-    return probConds[x][y];
+    int index = condIndex(x, y);
+    return (index < 0) ? 0.0 : probConds[x][index];
   }
 
 
   protected double fnum(int x, int y) {
-    return fnumArr[x][y];
+    int index = condIndex(x, y);
+    return (index < 0) ? 0.0 : fnumArr[x][index];
   }
 
   double g(double lambdaP, int index) {
@@ -929,6 +1131,9 @@ public class LambdaSolve {
    * @return The log likelihood of the data
    */
   public double logLikelihoodScratch() {
+    if (numThreads > 1) {
+      return logLikelihoodScratchParallel();
+    }
     // zero all the variables
     double s = 0;
     for (int i = 0; i < probConds.length; i++) {
@@ -957,7 +1162,7 @@ public class LambdaSolve {
 
       for (int i = 0, length = f.len(); i < length; i++) {
         int x = f.getX(i);
-        int y = f.getY(i);
+        int y = condIndex(x, f.getY(i));
         if (ASSUME_BINARY) {
           probConds[x][y] += fLambda;
         } else {
@@ -990,11 +1195,66 @@ public class LambdaSolve {
   }
 
 
+  /**
+   * logLikelihoodScratch, with the histories split among the threads.
+   */
+  private double logLikelihoodScratchParallel() {
+    indexFeaturesByX();
+    final Experiments exp = p.data;
+    double s = 0;
+    for (int fNo = 0, fSize = p.fSize; fNo < fSize; fNo++) {
+      double fLambda = lambda[fNo];
+      s -= ftildeArr[fNo] * exp.getNumber() * fLambda;
+      if (Math.abs(fLambda) > 200) {   // was 50
+        System.out.println("lambda " + fNo + " too big: " + fLambda);
+      }
+    }
+
+    final double[] lambda = this.lambda;
+    final double[] partialSums = new double[(probConds.length + CHUNK_SIZE - 1) / CHUNK_SIZE];
+    int numChunks = runChunks(probConds.length, new ChunkTask() {
+        public void run(int chunk, int start, int end) {
+          double partial = 0;
+          for (int x = start; x < end; x++) {
+            double[] conds = probConds[x];
+            Arrays.fill(conds, 0.0);
+            for (int entry = xStarts[x]; entry < xStarts[x + 1]; entry++) {
+              if (xVals == null) {
+                conds[xYs[entry]] += lambda[xFeatures[entry]];
+              } else {
+                conds[xYs[entry]] += (xVals[entry] * lambda[xFeatures[entry]]);
+              }
+            }
+            zlambda[x] = ArrayMath.logSum(conds);
+            partial += zlambda[x] * exp.ptildeX(x) * exp.getNumber();
+            for (int y = 0; y < conds.length; y++) {
+              conds[y] = divide(conds[y], zlambda[x]);
+            }
+          }
+          partialSums[chunk] = partial;
+        }
+      });
+    for (int chunk = 0; chunk < numChunks; chunk++) {
+      s += partialSums[chunk];
+    }
+
+    if (s < 0) {
+      System.out.println("neg log lik smaller than 0 " + s);
+      System.exit(0);
+    }
+
+    return s;
+  }
+
+
   /**
    * assuming we have the lambdas in the array and we need only the
    * derivatives now.
    */
   public double[] getDerivatives() {
+    if (numThreads > 1) {
+      return getDerivativesParallel();
+    }
 
     double[] drvs = new double[lambda.length];
     Experiments exp = p.data;
@@ -1005,7 +1265,7 @@ public class LambdaSolve {
       drvs[fNo] = -sum;
       for (int index = 0, length = f.len(); index < length; index++) {
         int x = f.getX(index);
-        int y = f.getY(index);
+        int y = condIndex(x, f.getY(index));
         if (ASSUME_BINARY) {
           drvs[fNo] += probConds[x][y] * exp.ptildeX(x) * exp.getNumber();
         } else {
@@ -1019,6 +1279,161 @@ public class LambdaSolve {
   }
 
 
+  /**
+   * getDerivatives, with the features split among the threads.  Each
+   * derivative is worked out exactly as getDerivatives does.
+   */
+  private double[] getDerivativesParallel() {
+    final double[] drvs = new double[lambda.length];
+    final Experiments exp = p.data;
+    runChunks(drvs.length, new ChunkTask() {
+        public void run(int chunk, int start, int end) {
+          for (int fNo = start; fNo < end; fNo++) {
+            Feature f = p.functions.get(fNo);
+            double sum = ftildeArr[fNo] * exp.getNumber();
+            drvs[fNo] = -sum;
+            for (int index = 0, length = f.len(); index < length; index++) {
+              int x = f.getX(index);
+              int y = condIndex(x, f.getY(index));
+              if (ASSUME_BINARY) {
+                drvs[fNo] += probConds[x][y] * exp.ptildeX(x) * exp.getNumber();
+              } else {
+                double val = f.getVal(index);
+                drvs[fNo] += probConds[x][y] * val * exp.ptildeX(x) * exp.getNumber();
+              }
+            }
+          }
+        }
+      });
+    return drvs;
+  }
+
+
+  /**
+   * The negative log likelihood of some of the training examples (each
+   * an (x,y) in p.data), for the current lambdas, and its derivatives.
+   * Unlike logLikelihoodScratch, only the histories of these examples
+   * are scored, and probConds isn't changed, so this is cheap enough to
+   * call for each of many small batches, as a stochastic minimizer does.
+   * Examples may be repeated, and are counted as often as they are.
+   * <p>
+   * Only the derivatives of the features active on the examples'
+   * histories are set, so that the cost is in proportion to the batch
+   * rather than to the number of features.  Each example can also carry
+   * a share of a penalty on the features active on its history: feature
+   * f adds <code>priorWeights[f] * lambda[f]<sup>2</sup> / 2</code> to
+   * the example's loss (see {@link #featureExampleCounts}).
+   *
+   * @param batch The indices of the examples in p.data
+   * @param priorWeights The weight of the penalty on each feature, or
+   *     null for none
+   * @param drvs Set to the derivatives of the batch's negative log
+   *     likelihood with respect to the lambdas, for the features in
+   *     touched
+   * @param touched Set to the numbers of the features whose derivatives
+   *     were set, followed by -1 if there are fewer than all of them.  It
+   *     must be as long as the lambdas.
+   * @return The negative log likelihood of the batch
+   */
+  public double logLikelihoodBatch(final int[] batch, double[] priorWeights, double[] drvs, int[] touched) {
+    indexFeaturesByX();
+    final Experiments exp = p.data;
+    final double[] lambda = this.lambda;
+    // where each example's entries (those of its history) are in coefs
+    final int[] offsets = new int[batch.length + 1];
+    for (int i = 0; i < batch.length; i++) {
+      int x = exp.get(batch[i])[0];
+      offsets[i + 1] = offsets[i] + xStarts[x + 1] - xStarts[x];
+    }
+    // p(y|x) minus whether y is the example's, for each entry
+    final double[] coefs = new double[offsets[batch.length]];
+    final double[] losses = new double[batch.length];
+    ChunkTask task = new ChunkTask() {
+        public void run(int chunk, int start, int end) {
+          for (int i = start; i < end; i++) {
+            int[] sample = exp.get(batch[i]);
+            int x = sample[0];
+            int y = condIndex(x, sample[1]);
+            if (y < 0) {
+              throw new IllegalStateException("Training example " + batch[i] + " has a y impossible for its x: " + sample[1]);
+            }
+            double[] conds = new double[probConds[x].length];
+            for (int entry = xStarts[x]; entry < xStarts[x + 1]; entry++) {
+              if (xVals == null) {
+                conds[xYs[entry]] += lambda[xFeatures[entry]];
+              } else {
+                conds[xYs[entry]] += (xVals[entry] * lambda[xFeatures[entry]]);
+              }
+            }
+            double z = ArrayMath.logSum(conds);
+            losses[i] = z - conds[y];
+            for (int entry = xStarts[x], j = offsets[i]; entry < xStarts[x + 1]; entry++, j++) {
+              coefs[j] = Math.exp(conds[xYs[entry]] - z) - ((xYs[entry] == y) ? 1.0 : 0.0);
+            }
+          }
+        }
+      };
+    if (numThreads > 1) {
+      runChunks(batch.length, BATCH_CHUNK_SIZE, task);
+    } else {
+      task.run(0, 0, batch.length);
+    }
+
+    // add up serially, so that the result doesn't depend on the threads
+    if (batchStamps == null) {
+      batchStamps = new int[lambda.length];
+    }
+    int stamp = ++batchStamp;
+    int numTouched = 0;
+    double s = 0;
+    for (int i = 0; i < batch.length; i++) {
+      s += losses[i];
+      int x = exp.get(batch[i])[0];
+      for (int entry = xStarts[x], j = offsets[i]; entry < xStarts[x + 1]; entry++, j++) {
+        int f = xFeatures[entry];
+        if (batchStamps[f] != stamp) {
+          batchStamps[f] = stamp;
+          drvs[f] = 0.0;
+          touched[numTouched++] = f;
+        }
+        if (xVals == null) {
+          drvs[f] += coefs[j];
+        } else {
+          drvs[f] += coefs[j] * xVals[entry];
+        }
+        if (priorWeights != null) {
+          s += priorWeights[f] * lambda[f] * lambda[f] / 2.0;
+          drvs[f] += priorWeights[f] * lambda[f];
+        }
+      }
+    }
+    if (numTouched < touched.length) {
+      touched[numTouched] = -1;
+    }
+    return s;
+  }
+
+  /**
+   * How many of the training examples each feature is active on the
+   * history of.  A penalty on the features can be shared out among the
+   * examples by giving feature f a weight of its penalty divided by
+   * this count in {@link #logLikelihoodBatch}: the shares then add up to
+   * the whole penalty over all the examples, so an estimate from a batch
+   * is still unbiased, and only involves the batch's features.
+   */
+  public int[] featureExampleCounts() {
+    indexFeaturesByX();
+    int[] counts = new int[lambda.length];
+    for (int i = 0, size = p.data.size(); i < size; i++) {
+      int x = p.data.get(i)[0];
+      for (int entry = xStarts[x]; entry < xStarts[x + 1]; entry++) {
+        counts[xFeatures[entry]]++;
+      }
+    }
+    return counts;
+  }
+
+
   /**
    * assuming we have the lambdas in the array and we need only the
    * derivatives now.
@@ -0,0 +1,39 @@
+package edu.stanford.nlp.optimization;
+
+/**
+ * A DiffFunction that is a sum over data items, such as a negative log
+ * likelihood over training examples, so that its value and derivative
+ * can be estimated from a batch of the items, as a stochastic minimizer
+ * like {@link SGDMinimizer} needs.
+ */
+public interface BatchDiffFunction extends DiffFunction {
+
+  /**
+   * Returns the number of data items the function sums over.
+   *
+   * @return the number of data items
+   */
+  int dataDimension();
+
+  /**
+   * Estimates the value and the derivative of the whole function at x
+   * from some of its data items: their sum is scaled up to
+   * <code>dataDimension()</code> items, so that the estimate is
+   * unbiased for a batch drawn uniformly from the items.  Only the
+   * dimensions that the items involve need be set in the derivative
+   * (the rest of the estimate being 0), so that the cost can be in
+   * proportion to the batch rather than to the domain dimension.
+   *
+   * @param x a <code>double[]</code> input vector
+   * @param batch the indices of the items, from 0 to
+   *     <code>dataDimension() - 1</code>
+   * @param derivative set to the estimated derivative, in the
+   *     dimensions listed in touched
+   * @param touched set to the dimensions whose derivatives were set,
+   *     followed by -1 if there are fewer than all of them; it is
+   *     <code>domainDimension()</code> long
+   * @return the estimated value
+   */
+  double valueAndDerivativeAt(double[] x, int[] batch, double[] derivative, int[] touched);
+
+}
@@ -1,5 +1,11 @@
 package edu.stanford.nlp.optimization;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -111,6 +117,8 @@ public class QNMinimizer implements Minimizer<DiffFunction>, HasEvaluators {
   private boolean useNumericalZero = true;
 
   private int evaluateIters = 0;    // Evaluate every x iterations (0 = no evaluation)
+  private String checkpointFile = null;
+  private int checkpointIters = 0;  // Save a checkpoint every x iterations (0 = never)
   private Evaluator[] evaluators;  // separate set of evaluators to check how optimization is going
 
   public enum eState {
@@ -755,6 +763,97 @@ public class QNMinimizer implements Minimizer<DiffFunction>, HasEvaluators {
     presetInfo = new QNInfo(s, y);
   }
 
+  private static final int CHECKPOINT_MAGIC = 0x514e4350; // "QNCP"
+
+  /**
+   * Saves the point reached and the s,y history to a file every so many
+   * iterations, so that if the minimization is interrupted it can be
+   * continued from there, with {@link #readCheckpoint}.  The file is
+   * written under another name and then renamed, so it is always whole.
+   */
+  public void setCheckpoint(String filename, int iterations) {
+    checkpointFile = filename;
+    checkpointIters = iterations;
+  }
+
+  private void writeCheckpoint(double[] x, QNInfo qn) {
+    File file = new File(checkpointFile);
+    File temp = new File(checkpointFile + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeInt(x.length);
+      writeDoubles(out, x);
+      out.writeInt(qn.mem);
+      out.writeDouble(qn.gamma);
+      out.writeBoolean(qn.d != null);
+      if (qn.d != null) {
+        writeDoubles(out, qn.d);
+      }
+      out.writeInt(qn.size());
+      for (int i = 0; i < qn.size(); i++) {
+        writeDoubles(out, qn.getS(i));
+        writeDoubles(out, qn.getY(i));
+        out.writeDouble(qn.getRho(i));
+      }
+      out.close();
+      if ( ! temp.renameTo(file)) {
+        throw new IOException("Couldn't rename " + temp + " to " + file);
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException("Caught IOException writing QN checkpoint", e);
+    }
+    sayln();
+    sayln("Saved checkpoint to " + checkpointFile);
+  }
+
+  /**
+   * Reads a checkpoint saved by a minimization with setCheckpoint.  The
+   * next call to minimize continues from the history in it (as if it had
+   * been given to setHistory), and the point in it is returned, to be
+   * given to minimize as the initial point.
+   */
+  public double[] readCheckpoint(String filename) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+      if (in.readInt() != CHECKPOINT_MAGIC) {
+        in.close();
+        throw new IllegalArgumentException(filename + " is not a QNMinimizer checkpoint");
+      }
+      int n = in.readInt();
+      double[] x = readDoubles(in, n);
+      QNInfo qn = new QNInfo(in.readInt());
+      qn.gamma = in.readDouble();
+      if (in.readBoolean()) {
+        qn.d = readDoubles(in, n);
+      }
+      for (int i = 0, size = in.readInt(); i < size; i++) {
+        qn.s.add(readDoubles(in, n));
+        qn.y.add(readDoubles(in, n));
+        qn.rho.add(in.readDouble());
+      }
+      in.close();
+      presetInfo = qn;
+      return x;
+    } catch (IOException e) {
+      throw new RuntimeIOException("Caught IOException reading QN checkpoint " + filename, e);
+    }
+  }
+
+  private static void writeDoubles(DataOutputStream out, double[] arr) throws IOException {
+    for (double v : arr) {
+      out.writeDouble(v);
+    }
+  }
+
+  private static double[] readDoubles(DataInputStream in, int n) throws IOException {
+    double[] arr = new double[n];
+    for (int i = 0; i < n; i++) {
+      arr[i] = in.readDouble();
+    }
+    return arr;
+  }
+
   /*
    * computeDir()
    *
@@ -990,6 +1089,10 @@ public class QNMinimizer implements Minimizer<DiffFunction>, HasEvaluators {
         System.arraycopy(newX, 0, x, 0, x.length);
         System.arraycopy(newGrad, 0, grad, 0, newGrad.length);
 
+        if (checkpointIters > 0 && its % checkpointIters == 0) {
+          writeCheckpoint(x, qn);
+        }
+
         if (quiet) {
           System.err.print(".");
         }
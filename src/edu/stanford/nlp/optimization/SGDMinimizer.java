@@ -0,0 +1,237 @@
+package edu.stanford.nlp.optimization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.stanford.nlp.io.RuntimeIOException;
+
+/**
+ * Mini-batch stochastic gradient descent, with AdaGrad step sizes: the
+ * step for each dimension is the learning rate divided by the root of
+ * the sum of the squares of that dimension's derivatives so far.  Each
+ * pass goes over the function's data items once, in a new random order
+ * (from a fixed seed and the number of the pass, so runs can be
+ * repeated), a batch at a time, and takes a step after each batch.
+ * A step only changes the dimensions that the batch's items involve, so
+ * it needs far less work than an iteration of a batch method like
+ * QNMinimizer, and a pass or two over a very large data set gives a
+ * usable (if not fully converged) solution.
+ * <p/>
+ * The function must be a {@link BatchDiffFunction}.  The progress
+ * reported after each pass is the mean of the batch estimates of the
+ * value over the pass, which were each made before the batch's step.
+ * It stops after the passes asked for, or when this changes by less
+ * than the function tolerance (relative to its size) from one pass to
+ * the next.
+ * <p/>
+ * With {@link #setCheckpoint}, the state of the minimization (the point,
+ * the AdaGrad sums and the pass reached) is saved every so many passes;
+ * after {@link #readCheckpoint}, minimize continues from the pass after
+ * the one saved, just as the interrupted run would have.
+ */
+public class SGDMinimizer implements Minimizer<DiffFunction> {
+
+  private final Function monitor;
+  private final double learningRate;
+  private final int batchSize;
+  private final int passes;
+
+  private static final long SEED = 42;
+  private static final double EPS = 1e-8;
+
+  private static final int CHECKPOINT_MAGIC = 0x53474443; // "SGDC"
+
+  private String checkpointFile; // = null
+  private int checkpointPasses; // = 0
+
+  // the state read by readCheckpoint, for the next minimize
+  private int presetPass; // = 0
+  private double[] presetSumSquares; // = null
+  private double presetValue = Double.NaN;
+
+  /**
+   * @param learningRate the AdaGrad learning rate
+   * @param batchSize the number of data items in each batch
+   * @param passes the most passes over the data
+   */
+  public SGDMinimizer(double learningRate, int batchSize, int passes) {
+    this(null, learningRate, batchSize, passes);
+  }
+
+  /**
+   * @param monitor if not null, its <code>valueAt</code> is called with
+   *     the solution so far after each pass
+   * @param learningRate the AdaGrad learning rate
+   * @param batchSize the number of data items in each batch
+   * @param passes the most passes over the data
+   */
+  public SGDMinimizer(Function monitor, double learningRate, int batchSize, int passes) {
+    if (learningRate <= 0.0) {
+      throw new IllegalArgumentException("Learning rate must be positive: " + learningRate);
+    }
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+    }
+    this.monitor = monitor;
+    this.learningRate = learningRate;
+    this.batchSize = batchSize;
+    this.passes = passes;
+  }
+
+  public double[] minimize(DiffFunction function, double functionTolerance, double[] initial) {
+    return minimize(function, functionTolerance, initial, passes);
+  }
+
+  /**
+   * As the other minimize, but with maxIterations the most passes over
+   * the data.
+   */
+  public double[] minimize(DiffFunction function, double functionTolerance, double[] initial, int maxIterations) {
+    if ( ! (function instanceof BatchDiffFunction)) {
+      throw new IllegalArgumentException("SGDMinimizer needs a BatchDiffFunction, not a " + function.getClass().getName());
+    }
+    BatchDiffFunction dfunction = (BatchDiffFunction) function;
+    int numItems = dfunction.dataDimension();
+    double[] x = initial.clone();
+    double[] derivative = new double[x.length];
+    int[] touched = new int[x.length];
+    double[] sumSquares = new double[x.length];
+    int[] order = new int[numItems];
+
+    int firstPass = 1;
+    double lastValue = Double.NaN;
+    if (presetSumSquares != null) {
+      if (presetSumSquares.length != x.length) {
+        throw new IllegalArgumentException("Checkpoint has " + presetSumSquares.length + " dimensions, not " + x.length);
+      }
+      firstPass = presetPass + 1;
+      sumSquares = presetSumSquares;
+      lastValue = presetValue;
+      presetSumSquares = null;
+    }
+
+    for (int pass = firstPass; pass <= maxIterations && numItems > 0; pass++) {
+      // a new order each pass, which depends only on the pass, so that a
+      // resumed run goes on as the interrupted one would have
+      Random random = new Random(SEED * 31 + pass);
+      for (int i = 0; i < numItems; i++) {
+        order[i] = i;
+      }
+      for (int i = numItems - 1; i > 0; i--) {
+        int j = random.nextInt(i + 1);
+        int temp = order[i];
+        order[i] = order[j];
+        order[j] = temp;
+      }
+      double sum = 0.0;
+      int numBatches = 0;
+      for (int start = 0; start < numItems; start += batchSize) {
+        int[] batch = Arrays.copyOfRange(order, start, Math.min(numItems, start + batchSize));
+        sum += dfunction.valueAndDerivativeAt(x, batch, derivative, touched);
+        numBatches++;
+        for (int k = 0; k < touched.length && touched[k] >= 0; k++) {
+          int i = touched[k];
+          double g = derivative[i];
+          if (g != 0.0) {
+            sumSquares[i] += g * g;
+            x[i] -= learningRate * g / (Math.sqrt(sumSquares[i]) + EPS);
+          }
+        }
+      }
+      double value = sum / numBatches;
+      System.err.println("SGD pass " + pass + ": mean estimated value = " + value + " [" + numBatches + " batches]");
+      if (monitor != null) {
+        monitor.valueAt(x);
+      }
+      if (pass > 1 && Math.abs(lastValue - value) <= functionTolerance * Math.max(1.0, Math.abs(value))) {
+        System.err.println("SGD converged: the value changed by less than the tolerance " + functionTolerance);
+        break;
+      }
+      lastValue = value;
+      if (checkpointPasses > 0 && pass % checkpointPasses == 0 && pass < maxIterations) {
+        writeCheckpoint(x, sumSquares, pass, value);
+      }
+    }
+    return x;
+  }
+
+
+  /**
+   * Saves the state of the minimization to a file every so many passes
+   * (but not after the last), so that if it is interrupted it can be
+   * continued with {@link #readCheckpoint}.  The file is written under
+   * another name and then renamed, so it is always whole.
+   */
+  public void setCheckpoint(String filename, int passes) {
+    checkpointFile = filename;
+    checkpointPasses = passes;
+  }
+
+  private void writeCheckpoint(double[] x, double[] sumSquares, int pass, double value) {
+    File file = new File(checkpointFile);
+    File temp = new File(checkpointFile + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeInt(x.length);
+      out.writeInt(pass);
+      out.writeDouble(value);
+      for (double v : x) {
+        out.writeDouble(v);
+      }
+      for (double v : sumSquares) {
+        out.writeDouble(v);
+      }
+      out.close();
+      if ( ! temp.renameTo(file)) {
+        throw new IOException("Couldn't rename " + temp + " to " + file);
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException("Caught IOException writing SGD checkpoint", e);
+    }
+    System.err.println("Saved checkpoint after pass " + pass + " to " + checkpointFile);
+  }
+
+  /**
+   * Reads a checkpoint saved by a minimization with setCheckpoint.  The
+   * next call to minimize continues from the pass after the one in it,
+   * with its AdaGrad sums, and the point in it is returned, to be given
+   * to minimize as the initial point.
+   */
+  public double[] readCheckpoint(String filename) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+      if (in.readInt() != CHECKPOINT_MAGIC) {
+        in.close();
+        throw new IllegalArgumentException(filename + " is not an SGDMinimizer checkpoint");
+      }
+      int n = in.readInt();
+      int pass = in.readInt();
+      double value = in.readDouble();
+      double[] x = new double[n];
+      for (int i = 0; i < n; i++) {
+        x[i] = in.readDouble();
+      }
+      double[] sumSquares = new double[n];
+      for (int i = 0; i < n; i++) {
+        sumSquares[i] = in.readDouble();
+      }
+      in.close();
+      presetPass = pass;
+      presetValue = value;
+      presetSumSquares = sumSquares;
+      return x;
+    } catch (IOException e) {
+      throw new RuntimeIOException("Caught IOException reading SGD checkpoint " + filename, e);
+    }
+  }
+
+}
@@ -0,0 +1,192 @@
+package edu.stanford.nlp.sequences;
+
+
+/**
+ * Finds a good (but not necessarily the best) sequence given a
+ * SequenceModel, by beam search.  The sequence is built left to right
+ * over the padded positions, keeping the <code>beamSize</code> highest
+ * scoring partial sequences.  Once the tag at position
+ * <code>pos</code> is chosen, the window of position
+ * <code>pos - rightWindow</code> is complete, and that position is
+ * scored.
+ * <p>
+ * The number of calls to {@link SequenceModel#scoresOf} doesn't grow
+ * with the window size, whereas exact Viterbi search (see
+ * {@link ExactBestSequenceFinder}) scores every combination of tags in
+ * the window, so this is much faster for models that look at several
+ * tags on both sides.  When the model only looks left (rightWindow is
+ * 0), the scores of the position being extended don't depend on the tag
+ * it is extended with, so there is one call for each partial sequence at
+ * each position.  Otherwise the position scored is rightWindow to the
+ * left of the one being extended, and its scores do depend on that tag,
+ * which is in its window; so there is a call for each partial sequence
+ * and each tag it can be extended with.  That is the beam size times
+ * the number of tags per position calls at each position, each of which
+ * costs about as much as one for a model that only looks left.
+ * <p>
+ * Note that when the model looks right, the last rightWindow tags of a
+ * partial sequence have only been chosen, not scored, so the beam
+ * needs to be large enough to hold the likely combinations of them, or
+ * accuracy drops sharply.
+ */
+public class BeamBestSequenceFinder implements BestSequenceFinder {
+
+  private final int beamSize;
+
+  /**
+   * @param beamSize The number of partial sequences kept at each position
+   */
+  public BeamBestSequenceFinder(int beamSize) {
+    if (beamSize <= 0) {
+      throw new IllegalArgumentException("Beam size must be positive: " + beamSize);
+    }
+    this.beamSize = beamSize;
+  }
+
+  public int getBeamSize() {
+    return beamSize;
+  }
+
+  /**
+   * Runs beam search on the sequence model.
+   *
+   * @param ts The SequenceModel to be used for scoring
+   * @return An array containing the int tags of the best sequence found
+   */
+  public int[] bestSequence(SequenceModel ts) {
+    int length = ts.length();
+    int leftWindow = ts.leftWindow();
+    int rightWindow = ts.rightWindow();
+    int padLength = length + leftWindow + rightWindow;
+    int[][] tags = new int[padLength][];
+    for (int pos = 0; pos < padLength; pos++) {
+      tags[pos] = ts.getPossibleValues(pos);
+    }
+
+    int[][] beam = new int[beamSize][];
+    double[] beamScores = new double[beamSize];
+    beam[0] = new int[padLength];
+    int beamCount = 1;
+
+    // The candidates kept at each position: a min-heap on score, so the
+    // worst kept candidate is the one to replace
+    int[] heapParents = new int[beamSize];
+    int[] heapTags = new int[beamSize];
+    double[] heapScores = new double[beamSize];
+    int[] scratch = new int[padLength];
+    int[][] newBeam = new int[beamSize][];
+
+    for (int pos = 0; pos < padLength; pos++) {
+      int scoredPos = pos - rightWindow;
+      boolean scoring = scoredPos >= leftWindow && scoredPos < leftWindow + length;
+      int heapCount = 0;
+      for (int b = 0; b < beamCount; b++) {
+        double[] scores = null;
+        int scoredIndex = (scoring && rightWindow > 0) ? indexOf(tags[scoredPos], beam[b][scoredPos]) : -1;
+        System.arraycopy(beam[b], 0, scratch, 0, padLength);
+        for (int t = 0; t < tags[pos].length; t++) {
+          double score = beamScores[b];
+          if (scoring) {
+            scratch[pos] = tags[pos][t];
+            if (rightWindow == 0) {
+              // the scores at pos don't depend on the tag at pos
+              if (scores == null) {
+                scores = ts.scoresOf(scratch, pos);
+              }
+              score += scores[t];
+            } else {
+              // the tag at pos is in the window of scoredPos, so this
+              // can't be hoisted out of the loop over it
+              scores = ts.scoresOf(scratch, scoredPos);
+              score += scores[scoredIndex];
+            }
+          }
+          if (heapCount < beamSize) {
+            heapParents[heapCount] = b;
+            heapTags[heapCount] = tags[pos][t];
+            heapScores[heapCount] = score;
+            siftUp(heapParents, heapTags, heapScores, heapCount);
+            heapCount++;
+          } else if (score > heapScores[0]) {
+            heapParents[0] = b;
+            heapTags[0] = tags[pos][t];
+            heapScores[0] = score;
+            siftDown(heapParents, heapTags, heapScores, heapCount);
+          }
+        }
+      }
+
+      for (int i = 0; i < heapCount; i++) {
+        int[] sequence = beam[heapParents[i]].clone();
+        sequence[pos] = heapTags[i];
+        newBeam[i] = sequence;
+        beamScores[i] = heapScores[i];
+      }
+      int[][] swap = beam;
+      beam = newBeam;
+      newBeam = swap;
+      beamCount = heapCount;
+    }
+
+    int best = 0;
+    for (int b = 1; b < beamCount; b++) {
+      if (beamScores[b] > beamScores[best]) {
+        best = b;
+      }
+    }
+    return beam[best];
+  }
+
+  private static int indexOf(int[] values, int value) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == value) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Value " + value + " is not a possible value");
+  }
+
+  private static void siftUp(int[] parents, int[] tags, double[] scores, int i) {
+    while (i > 0) {
+      int up = (i - 1) / 2;
+      if (scores[up] <= scores[i]) {
+        break;
+      }
+      swap(parents, tags, scores, i, up);
+      i = up;
+    }
+  }
+
+  private static void siftDown(int[] parents, int[] tags, double[] scores, int count) {
+    int i = 0;
+    while (true) {
+      int smallest = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+      if (left < count && scores[left] < scores[smallest]) {
+        smallest = left;
+      }
+      if (right < count && scores[right] < scores[smallest]) {
+        smallest = right;
+      }
+      if (smallest == i) {
+        return;
+      }
+      swap(parents, tags, scores, i, smallest);
+      i = smallest;
+    }
+  }
+
+  private static void swap(int[] parents, int[] tags, double[] scores, int i, int j) {
+    int p = parents[i];
+    parents[i] = parents[j];
+    parents[j] = p;
+    int t = tags[i];
+    tags[i] = tags[j];
+    tags[j] = t;
+    double s = scores[i];
+    scores[i] = scores[j];
+    scores[j] = s;
+  }
+
+}
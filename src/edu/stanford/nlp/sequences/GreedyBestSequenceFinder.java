@@ -0,0 +1,45 @@
+package edu.stanford.nlp.sequences;
+
+
+/**
+ * Finds a sequence given a SequenceModel by choosing the best value at
+ * each position in turn, from left to right.  Each position is scored
+ * once, with the values already chosen to its left as its left context,
+ * so there is no lattice to build or search.  This is the fastest
+ * finder, and for models that only look left it is usually nearly as
+ * accurate as an exact search.  For models that also look right, the
+ * positions to the right haven't been chosen yet, and hold their first
+ * possible value, and accuracy suffers; use
+ * {@link ExactBestSequenceFinder} for those when accuracy matters.
+ */
+public class GreedyBestSequenceFinder implements BestSequenceFinder {
+
+  /**
+   * Chooses the best value at each position, left to right.
+   *
+   * @param ts The SequenceModel to be used for scoring
+   * @return An array containing the int tags of the sequence found
+   */
+  public int[] bestSequence(SequenceModel ts) {
+    int length = ts.length();
+    int leftWindow = ts.leftWindow();
+    int padLength = length + leftWindow + ts.rightWindow();
+    int[] sequence = new int[padLength];
+    for (int pos = 0; pos < padLength; pos++) {
+      sequence[pos] = ts.getPossibleValues(pos)[0];
+    }
+    for (int pos = leftWindow; pos < leftWindow + length; pos++) {
+      int[] values = ts.getPossibleValues(pos);
+      double[] scores = ts.scoresOf(sequence, pos);
+      int best = 0;
+      for (int i = 1; i < values.length; i++) {
+        if (scores[i] > scores[best]) {
+          best = i;
+        }
+      }
+      sequence[pos] = values[best];
+    }
+    return sequence;
+  }
+
+}
@@ -0,0 +1,180 @@
+package edu.stanford.nlp.sequences;
+
+import java.util.Arrays;
+
+
+/**
+ * The same Viterbi search as {@link ExactBestSequenceFinder}, but keeping
+ * its working arrays between calls.  ExactBestSequenceFinder allocates a
+ * jagged array for each of the window scores, Viterbi scores and
+ * backpointers for every sequence; here they are flat arrays, indexed by
+ * a per-position offset, that grow as needed and are then reused, so
+ * once warmed up the only thing allocated per sequence is the returned
+ * array.  This matters when a tagger is decoding many short sentences.
+ * <p>
+ * Because of the shared arrays, an instance must only be used by one
+ * thread at a time; give each thread (e.g., each TestSentence) its own.
+ * The possible values arrays returned by the SequenceModel are used
+ * as they are, and not copied or changed.
+ */
+public class ReusableExactBestSequenceFinder implements BestSequenceFinder {
+
+  private int[][] tags = new int[0][];
+  private int[] tagNum = new int[0];
+  private int[] productSizes = new int[0];
+  private int[] offsets = new int[0];
+  private int[] tempTags = new int[0];
+
+  private double[] windowScore = new double[0];
+  private double[] score = new double[0];
+  private int[] trace = new int[0];
+
+
+  private void ensurePositions(int padLength) {
+    if (tagNum.length < padLength) {
+      int newLength = Math.max(padLength, tagNum.length * 2);
+      tags = new int[newLength][];
+      tagNum = new int[newLength];
+      productSizes = new int[newLength];
+      offsets = new int[newLength + 1];
+      tempTags = new int[newLength];
+    }
+  }
+
+  private void ensureProducts(int totalProducts) {
+    if (score.length < totalProducts) {
+      int newLength = Math.max(totalProducts, score.length * 2);
+      windowScore = new double[newLength];
+      score = new double[newLength];
+      trace = new int[newLength];
+    }
+  }
+
+  /**
+   * Runs the Viterbi algorithm on the sequence model in order to find
+   * the best sequence.  The result is exactly that of
+   * {@link ExactBestSequenceFinder#bestSequence}.
+   *
+   * @param ts The SequenceModel to be used for scoring
+   * @return An array containing the int tags of the best sequence
+   */
+  public int[] bestSequence(SequenceModel ts) {
+    // Set up tag options
+    int length = ts.length();
+    int leftWindow = ts.leftWindow();
+    int rightWindow = ts.rightWindow();
+    int padLength = length + leftWindow + rightWindow;
+    ensurePositions(padLength);
+    int[][] tags = this.tags;
+    int[] tagNum = this.tagNum;
+    int[] productSizes = this.productSizes;
+    int[] offsets = this.offsets;
+    int[] tempTags = this.tempTags;
+    for (int pos = 0; pos < padLength; pos++) {
+      tags[pos] = ts.getPossibleValues(pos);
+      tagNum[pos] = tags[pos].length;
+    }
+
+    // Set up product space sizes, and where each position's products go
+    // in the flat arrays
+    Arrays.fill(productSizes, 0, padLength, 0);
+    int curProduct = 1;
+    for (int i = 0; i < leftWindow + rightWindow; i++) {
+      curProduct *= tagNum[i];
+    }
+    for (int pos = leftWindow + rightWindow; pos < padLength; pos++) {
+      if (pos > leftWindow + rightWindow) {
+        curProduct /= tagNum[pos - leftWindow - rightWindow - 1]; // shift off
+      }
+      curProduct *= tagNum[pos]; // shift on
+      productSizes[pos - rightWindow] = curProduct;
+    }
+    offsets[0] = 0;
+    for (int pos = 0; pos < padLength; pos++) {
+      offsets[pos + 1] = offsets[pos] + productSizes[pos];
+    }
+    ensureProducts(offsets[padLength]);
+    double[] windowScore = this.windowScore;
+    double[] score = this.score;
+    int[] trace = this.trace;
+
+    // Score all of each window's options
+    for (int pos = leftWindow; pos < leftWindow + length; pos++) {
+      int offset = offsets[pos];
+      Arrays.fill(windowScore, offset, offset + productSizes[pos], 0.0);
+      Arrays.fill(tempTags, 0, padLength, tags[0][0]);
+      for (int product = 0; product < productSizes[pos]; product++) {
+        int p = product;
+        int shift = 1;
+        for (int curPos = pos + rightWindow; curPos >= pos - leftWindow; curPos--) {
+          tempTags[curPos] = tags[curPos][p % tagNum[curPos]];
+          p /= tagNum[curPos];
+          if (curPos > pos) {
+            shift *= tagNum[curPos];
+          }
+        }
+        // get the scores of all the tags at pos at once
+        if (tempTags[pos] == tags[pos][0]) {
+          double[] scores = ts.scoresOf(tempTags, pos);
+          for (int t = 0; t < tagNum[pos]; t++) {
+            windowScore[offset + product + t * shift] = scores[t];
+          }
+        }
+      }
+    }
+
+    // Do forward Viterbi algorithm
+    for (int pos = leftWindow; pos < length + leftWindow; pos++) {
+      int offset = offsets[pos];
+      for (int product = 0; product < productSizes[pos]; product++) {
+        if (pos == leftWindow) {
+          // no predecessor type
+          score[offset + product] = windowScore[offset + product];
+          trace[offset + product] = -1;
+        } else {
+          // loop over possible predecessor types
+          int predOffset = offsets[pos - 1];
+          double best = Double.NEGATIVE_INFINITY;
+          int bestPred = -1;
+          int sharedProduct = product / tagNum[pos + rightWindow];
+          int factor = productSizes[pos] / tagNum[pos + rightWindow];
+          for (int newTagNum = 0; newTagNum < tagNum[pos - leftWindow - 1]; newTagNum++) {
+            int predProduct = newTagNum * factor + sharedProduct;
+            double predScore = score[predOffset + predProduct] + windowScore[offset + product];
+            if (predScore > best) {
+              best = predScore;
+              bestPred = predProduct;
+            }
+          }
+          score[offset + product] = best;
+          trace[offset + product] = bestPred;
+        }
+      }
+    }
+
+    // Project the actual tag sequence
+    int lastPos = leftWindow + length - 1;
+    double bestFinalScore = Double.NEGATIVE_INFINITY;
+    int bestCurrentProduct = -1;
+    for (int product = 0; product < productSizes[lastPos]; product++) {
+      if (score[offsets[lastPos] + product] > bestFinalScore) {
+        bestCurrentProduct = product;
+        bestFinalScore = score[offsets[lastPos] + product];
+      }
+    }
+    int lastProduct = bestCurrentProduct;
+    for (int last = padLength - 1; last >= length - 1 && last >= 0; last--) {
+      tempTags[last] = tags[last][lastProduct % tagNum[last]];
+      lastProduct /= tagNum[last];
+    }
+    for (int pos = leftWindow + length - 2; pos >= leftWindow; pos--) {
+      int bestNextProduct = bestCurrentProduct;
+      bestCurrentProduct = trace[offsets[pos + 1] + bestNextProduct];
+      tempTags[pos - leftWindow] = tags[pos - leftWindow][bestCurrentProduct / (productSizes[pos] / tagNum[pos - leftWindow])];
+    }
+    // don't hold on to the model's arrays
+    Arrays.fill(tags, 0, padLength, null);
+    return Arrays.copyOf(tempTags, padLength);
+  }
+
+}
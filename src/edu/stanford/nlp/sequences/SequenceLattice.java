@@ -0,0 +1,352 @@
+package edu.stanford.nlp.sequences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.stanford.nlp.math.SloppyMath;
+import edu.stanford.nlp.util.ScoredObject;
+
+
+/**
+ * The scores of every window of a SequenceModel, from which the best
+ * sequence, the k best sequences and the marginal probability of each
+ * value at each position can all be found without scoring the model
+ * again.  Scoring the windows is what is expensive; each of the
+ * searches over them is cheap.
+ * <p>
+ * The windows are laid out as in {@link ExactBestSequenceFinder}: the
+ * state at a position is the product of the values in its window, and a
+ * sequence's score is the sum of the window scores along it.  If the
+ * model's scores are log probabilities (as a tagger's are), a sequence's
+ * probability is proportional to the exponential of its score, and
+ * {@link #marginals()} and {@link #kBest(int)} normalize by the sum of
+ * these over all the sequences, found by the forward-backward algorithm.
+ * <p>
+ * As with the BestSequenceFinders, the sequences are int arrays over the
+ * padded positions, and positions are padded positions.
+ */
+public class SequenceLattice {
+
+  private final int length;
+  private final int leftWindow;
+  private final int rightWindow;
+  private final int padLength;
+  private final int[][] tags;
+  private final int[] tagNum;
+  private final int[] productSizes;
+  private final double[][] windowScore;
+
+  private double[][] alpha;
+  private double[][] beta;
+  private double logZ;
+
+  /**
+   * Scores all the windows of the sequence model.
+   *
+   * @param ts The SequenceModel to be used for scoring
+   */
+  public SequenceLattice(SequenceModel ts) {
+    length = ts.length();
+    leftWindow = ts.leftWindow();
+    rightWindow = ts.rightWindow();
+    padLength = length + leftWindow + rightWindow;
+    tags = new int[padLength][];
+    tagNum = new int[padLength];
+    for (int pos = 0; pos < padLength; pos++) {
+      tags[pos] = ts.getPossibleValues(pos);
+      tagNum[pos] = tags[pos].length;
+    }
+
+    productSizes = new int[padLength];
+    int curProduct = 1;
+    for (int i = 0; i < leftWindow + rightWindow; i++) {
+      curProduct *= tagNum[i];
+    }
+    for (int pos = leftWindow + rightWindow; pos < padLength; pos++) {
+      if (pos > leftWindow + rightWindow) {
+        curProduct /= tagNum[pos - leftWindow - rightWindow - 1]; // shift off
+      }
+      curProduct *= tagNum[pos]; // shift on
+      productSizes[pos - rightWindow] = curProduct;
+    }
+
+    windowScore = new double[padLength][];
+    int[] tempTags = new int[padLength];
+    for (int pos = leftWindow; pos < leftWindow + length; pos++) {
+      windowScore[pos] = new double[productSizes[pos]];
+      Arrays.fill(tempTags, tags[0][0]);
+      for (int product = 0; product < productSizes[pos]; product++) {
+        int p = product;
+        int shift = 1;
+        for (int curPos = pos + rightWindow; curPos >= pos - leftWindow; curPos--) {
+          tempTags[curPos] = tags[curPos][p % tagNum[curPos]];
+          p /= tagNum[curPos];
+          if (curPos > pos) {
+            shift *= tagNum[curPos];
+          }
+        }
+        // get the scores of all the values at pos at once
+        if (tempTags[pos] == tags[pos][0]) {
+          double[] scores = ts.scoresOf(tempTags, pos);
+          for (int t = 0; t < tagNum[pos]; t++) {
+            windowScore[pos][product + t * shift] = scores[t];
+          }
+        }
+      }
+    }
+  }
+
+  /** The index of the value at pos among its possible values, in a product at pos. */
+  private int digit(int pos, int product) {
+    int shift = 1;
+    for (int curPos = pos + 1; curPos <= pos + rightWindow; curPos++) {
+      shift *= tagNum[curPos];
+    }
+    return (product / shift) % tagNum[pos];
+  }
+
+  private void forwardBackward() {
+    if (alpha != null) {
+      return;
+    }
+    int first = leftWindow;
+    int last = leftWindow + length - 1;
+    alpha = new double[padLength][];
+    beta = new double[padLength][];
+    alpha[first] = windowScore[first].clone();
+    for (int pos = first + 1; pos <= last; pos++) {
+      alpha[pos] = new double[productSizes[pos]];
+      int factor = productSizes[pos] / tagNum[pos + rightWindow];
+      for (int product = 0; product < productSizes[pos]; product++) {
+        int sharedProduct = product / tagNum[pos + rightWindow];
+        double sum = Double.NEGATIVE_INFINITY;
+        for (int newTagNum = 0; newTagNum < tagNum[pos - leftWindow - 1]; newTagNum++) {
+          sum = SloppyMath.logAdd(sum, alpha[pos - 1][newTagNum * factor + sharedProduct]);
+        }
+        alpha[pos][product] = sum + windowScore[pos][product];
+      }
+    }
+    beta[last] = new double[productSizes[last]];
+    for (int pos = last; pos > first; pos--) {
+      beta[pos - 1] = new double[productSizes[pos - 1]];
+      int factor = productSizes[pos] / tagNum[pos + rightWindow];
+      for (int predProduct = 0; predProduct < productSizes[pos - 1]; predProduct++) {
+        int sharedProduct = predProduct % factor;
+        double sum = Double.NEGATIVE_INFINITY;
+        for (int t = 0; t < tagNum[pos + rightWindow]; t++) {
+          int product = sharedProduct * tagNum[pos + rightWindow] + t;
+          sum = SloppyMath.logAdd(sum, windowScore[pos][product] + beta[pos][product]);
+        }
+        beta[pos - 1][predProduct] = sum;
+      }
+    }
+    logZ = Double.NEGATIVE_INFINITY;
+    for (double a : alpha[last]) {
+      logZ = SloppyMath.logAdd(logZ, a);
+    }
+  }
+
+  /**
+   * The log of the sum of the exponentiated scores of all the
+   * sequences.  If the window scores are log probabilities, this is the
+   * log of the probability mass that the possible values allow.
+   */
+  public double logNormalizer() {
+    forwardBackward();
+    return logZ;
+  }
+
+  /**
+   * The marginal probability of each value at each position, that is,
+   * the total probability of the sequences with that value there.
+   *
+   * @return An array indexed by the unpadded position, and then by the
+   *     index of the value in the SequenceModel's possible values at that
+   *     (padded) position
+   */
+  public double[][] marginals() {
+    forwardBackward();
+    double[][] marginals = new double[length][];
+    for (int pos = leftWindow; pos < leftWindow + length; pos++) {
+      double[] probs = new double[tagNum[pos]];
+      for (int product = 0; product < productSizes[pos]; product++) {
+        probs[digit(pos, product)] += Math.exp(alpha[pos][product] + beta[pos][product] - logZ);
+      }
+      marginals[pos - leftWindow] = probs;
+    }
+    return marginals;
+  }
+
+  /**
+   * Finds the best sequence, by the Viterbi algorithm.
+   *
+   * @return An array containing the int values of the best sequence
+   */
+  public int[] bestSequence() {
+    return kBest(1).get(0).object();
+  }
+
+  /**
+   * Finds the k highest scoring sequences, by a Viterbi search that
+   * keeps the k best paths into each state.  The score of each is its
+   * log probability, normalized over all the sequences.
+   *
+   * @param k The number of sequences wanted
+   * @return The (at most k) best sequences, best first
+   */
+  public List<ScoredObject<int[]>> kBest(int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    int first = leftWindow;
+    int last = leftWindow + length - 1;
+    // for each position, state and rank: the path's score and where it came from
+    double[][][] score = new double[padLength][][];
+    int[][][] predProducts = new int[padLength][][];
+    int[][][] predRanks = new int[padLength][][];
+
+    score[first] = new double[productSizes[first]][];
+    predProducts[first] = new int[productSizes[first]][];
+    predRanks[first] = new int[productSizes[first]][];
+    for (int product = 0; product < productSizes[first]; product++) {
+      score[first][product] = new double[] { windowScore[first][product] };
+      predProducts[first][product] = new int[] { -1 };
+      predRanks[first][product] = new int[] { -1 };
+    }
+
+    Candidates candidates = new Candidates(k);
+    for (int pos = first + 1; pos <= last; pos++) {
+      score[pos] = new double[productSizes[pos]][];
+      predProducts[pos] = new int[productSizes[pos]][];
+      predRanks[pos] = new int[productSizes[pos]][];
+      int factor = productSizes[pos] / tagNum[pos + rightWindow];
+      for (int product = 0; product < productSizes[pos]; product++) {
+        int sharedProduct = product / tagNum[pos + rightWindow];
+        candidates.clear();
+        for (int newTagNum = 0; newTagNum < tagNum[pos - leftWindow - 1]; newTagNum++) {
+          int predProduct = newTagNum * factor + sharedProduct;
+          double[] predScores = score[pos - 1][predProduct];
+          for (int rank = 0; rank < predScores.length; rank++) {
+            candidates.offer(predScores[rank] + windowScore[pos][product], predProduct, rank);
+          }
+        }
+        candidates.sort();
+        score[pos][product] = Arrays.copyOf(candidates.scores, candidates.size);
+        predProducts[pos][product] = Arrays.copyOf(candidates.states, candidates.size);
+        predRanks[pos][product] = Arrays.copyOf(candidates.ranks, candidates.size);
+      }
+    }
+
+    candidates.clear();
+    for (int product = 0; product < productSizes[last]; product++) {
+      for (int rank = 0; rank < score[last][product].length; rank++) {
+        candidates.offer(score[last][product][rank], product, rank);
+      }
+    }
+    candidates.sort();
+
+    double logZ = logNormalizer();
+    List<ScoredObject<int[]>> kBest = new ArrayList<ScoredObject<int[]>>(candidates.size);
+    for (int i = 0; i < candidates.size; i++) {
+      int[] sequence = new int[padLength];
+      int product = candidates.states[i];
+      int rank = candidates.ranks[i];
+      int p = product;
+      for (int curPos = last + rightWindow; curPos >= last - leftWindow; curPos--) {
+        sequence[curPos] = tags[curPos][p % tagNum[curPos]];
+        p /= tagNum[curPos];
+      }
+      for (int pos = last; pos > first; pos--) {
+        int predProduct = predProducts[pos][product][rank];
+        rank = predRanks[pos][product][rank];
+        product = predProduct;
+        int curPos = pos - 1 - leftWindow;
+        sequence[curPos] = tags[curPos][product / (productSizes[pos - 1] / tagNum[curPos])];
+      }
+      kBest.add(new ScoredObject<int[]>(sequence, candidates.scores[i] - logZ));
+    }
+    return kBest;
+  }
+
+  /**
+   * The k best (score, state, rank) triples offered, kept in a min-heap
+   * on score until they are sorted.
+   */
+  private static class Candidates {
+    final int k;
+    final double[] scores;
+    final int[] states;
+    final int[] ranks;
+    int size;
+
+    Candidates(int k) {
+      this.k = k;
+      scores = new double[k];
+      states = new int[k];
+      ranks = new int[k];
+    }
+
+    void clear() {
+      size = 0;
+    }
+
+    void offer(double score, int state, int rank) {
+      if (size < k) {
+        scores[size] = score;
+        states[size] = state;
+        ranks[size] = rank;
+        int i = size++;
+        while (i > 0 && scores[(i - 1) / 2] > scores[i]) {
+          swap(i, (i - 1) / 2);
+          i = (i - 1) / 2;
+        }
+      } else if (score > scores[0]) {
+        scores[0] = score;
+        states[0] = state;
+        ranks[0] = rank;
+        siftDown(0, size);
+      }
+    }
+
+    private void siftDown(int i, int n) {
+      while (true) {
+        int smallest = i;
+        int left = 2 * i + 1;
+        int right = left + 1;
+        if (left < n && scores[left] < scores[smallest]) {
+          smallest = left;
+        }
+        if (right < n && scores[right] < scores[smallest]) {
+          smallest = right;
+        }
+        if (smallest == i) {
+          return;
+        }
+        swap(i, smallest);
+        i = smallest;
+      }
+    }
+
+    /** Sorts the candidates best first (destroying the heap). */
+    void sort() {
+      for (int n = size - 1; n > 0; n--) {
+        swap(0, n);
+        siftDown(0, n);
+      }
+    }
+
+    private void swap(int i, int j) {
+      double s = scores[i];
+      scores[i] = scores[j];
+      scores[j] = s;
+      int t = states[i];
+      states[i] = states[j];
+      states[j] = t;
+      t = ranks[i];
+      ranks[i] = ranks[j];
+      ranks[j] = t;
+    }
+  }
+
+}
@@ -0,0 +1,403 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import edu.stanford.nlp.io.OutDataStreamFile;
+import edu.stanford.nlp.util.Timing;
+
+
+/**
+ * A tagger model file format that loads without parsing.
+ * <p>
+ * The original format written by <code>MaxentTagger.saveModel</code>
+ * stores every feature as a FeatureKey, so loading it means reading
+ * each key, putting it into a HashMap and then building the
+ * {@link FeatureTable}.  This format stores the FeatureTable itself, the
+ * dictionary and the lambdas as flat arrays.  When the model is a file
+ * on disk, these are read from a memory-mapped buffer: the feature
+ * table is used in place, so loading it costs nothing and several JVMs
+ * tagging with the same model share its pages through the OS page
+ * cache.  (The lambdas and dictionary are copied out, since the rest of
+ * the tagger wants a double[] and a HashMap, but that is a bulk copy.)
+ * The feature table is written in the byte order of the machine that
+ * writes it, so that it can be read in place; a model written on a
+ * machine of the other byte order still loads, with the table copied.
+ * A binary model is somewhat smaller than the original, which writes
+ * the extractor value and tag of every feature as strings: here each
+ * value is stored once, for its row of the table, and the tags are
+ * numbers.  Against that, the table has empty slots, and characters take
+ * two bytes.
+ * <p>
+ * A file starts with the serialized TaggerConfig, just like the old
+ * format, so <code>TaggerConfig</code> and the <code>MaxentTagger</code>
+ * constructors read either kind of model without being told which it is.
+ * This is followed by {@link #MAGIC}, which can't be the xSize that comes
+ * next in the old format, a version number, and the offset and length
+ * of the data, which is 8 byte aligned from the start of the file.
+ * <p>
+ * To convert a model, run
+ * <blockquote><code>
+ * java edu.stanford.nlp.tagger.maxent.BinaryModel old.tagger new.tagger
+ * </code></blockquote>
+ * Models converted this way tag exactly as the originals do.
+ * <p>
+ * The lambdas can be stored as doubles, as floats, or as 16 or 8 bit
+ * codes into a table of at most 2<sup>16</sup> or 2<sup>8</sup> values
+ * (a codebook); see {@link ModelPruner}, which quantizes a model's
+ * lambdas to fit.  They are decoded into a double[] when the model is
+ * read.
+ */
+public class BinaryModel {
+
+  /** Marks a binary model, after the config.  It is negative, so no xSize. */
+  static final int MAGIC = 0xB1A7A6E7;
+
+  /**
+   * Version 2 added the encodings of the lambdas.  Version 3 writes the
+   * feature table in the byte order of the machine, and with a hash
+   * table sized for its rows rather than its features.  Version 4 starts
+   * the probe for a key of a hashed model at a slot that depends on its
+   * extractor too.  Models of the earlier versions can still be read.
+   */
+  static final int VERSION = 4;
+
+  // How the lambdas are stored
+  private static final int LAMBDA_DOUBLE = 0;
+  private static final int LAMBDA_FLOAT = 1;
+  private static final int LAMBDA_CODEBOOK16 = 2;
+  private static final int LAMBDA_CODEBOOK8 = 3;
+
+  private BinaryModel() {
+  }
+
+
+  /**
+   * Saves the tagger in the binary format.  The tagger must have been
+   * loaded from a model (so that it has a FeatureTable).
+   *
+   * @param tagger The tagger to save
+   * @param filename Where to save it
+   * @throws IOException If the file can't be written
+   */
+  static void save(MaxentTagger tagger, String filename) throws IOException {
+    save(tagger, filename, 64);
+  }
+
+  /**
+   * Saves the tagger in the binary format, with the lambdas in the given
+   * number of bits: 64 (doubles), 32 (floats, which is exact only if
+   * they are already floats), or 16 or 8 (codes into a codebook of the
+   * distinct lambdas, of which there must be at most 2<sup>16</sup> or
+   * 2<sup>8</sup>).  A codebook is written only if it and the codes take
+   * less space than doubles: a model with fewer than about 2<sup>16</sup>
+   * features has nearly as many distinct lambdas, so 16 bit codes into
+   * them would take more.  Otherwise the lambdas are written as doubles.
+   *
+   * @param tagger The tagger to save
+   * @param filename Where to save it
+   * @param lambdaBits How many bits to store each lambda in
+   * @throws IOException If the file can't be written
+   */
+  static void save(MaxentTagger tagger, String filename, int lambdaBits) throws IOException {
+    if (tagger.featureTable == null) {
+      throw new IllegalArgumentException("Only a loaded tagger can be saved as a binary model");
+    }
+
+    ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(dataBytes);
+    data.writeInt(tagger.xSize);
+    data.writeInt(tagger.ySize);
+    tagger.dict.saveBinary(data);
+
+    // the tags and extractors are small, so keep their usual encoding
+    ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    DataOutputStream block = new DataOutputStream(blockBytes);
+    // (as TTags.save would write them, but that needs the training tagTokens)
+    block.writeInt(tagger.tags.getSize());
+    for (int i = 0; i < tagger.tags.getSize(); i++) {
+      String tag = tagger.tags.getTag(i);
+      block.writeUTF(tag);
+      block.writeBoolean(tagger.tags.isClosed(tag));
+    }
+    tagger.saveExtractors(block);
+    block.close();
+    data.writeInt(blockBytes.size());
+    blockBytes.writeTo(data);
+    pad(data, 4);
+
+    tagger.featureTable.save(data);
+    saveLambdas(data, tagger.prob.lambda, lambdaBits);
+    data.close();
+
+    ByteArrayOutputStream configBytes = new ByteArrayOutputStream();
+    tagger.config.saveConfig(configBytes);
+    // config, magic, version, offset, length, padding length
+    int headerLength = configBytes.size() + 4 + 4 + 8 + 8 + 4;
+    int padding = (8 - headerLength % 8) % 8;
+
+    DataOutputStream out = new OutDataStreamFile(filename);
+    configBytes.writeTo(out);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(headerLength + padding);
+    out.writeLong(dataBytes.size());
+    out.writeInt(padding);
+    out.write(new byte[padding]);
+    dataBytes.writeTo(out);
+    out.close();
+  }
+
+  private static void saveLambdas(DataOutputStream data, double[] lambda, int lambdaBits) throws IOException {
+    if (lambdaBits == 16 || lambdaBits == 8) {
+      int numDistinct = codebook(lambda).length;
+      if ((long) numDistinct * 8 + (long) lambda.length * (lambdaBits / 8) >= (long) lambda.length * 8) {
+        System.err.println("Writing the lambdas as doubles, since a codebook of their " + numDistinct +
+                           " distinct values would be larger");
+        lambdaBits = 64;
+      }
+    }
+    data.writeInt(lambda.length);
+    if (lambdaBits == 64) {
+      data.writeInt(LAMBDA_DOUBLE);
+      pad(data, 8);
+      for (double l : lambda) {
+        data.writeDouble(l);
+      }
+    } else if (lambdaBits == 32) {
+      data.writeInt(LAMBDA_FLOAT);
+      for (double l : lambda) {
+        data.writeFloat((float) l);
+      }
+    } else if (lambdaBits == 16 || lambdaBits == 8) {
+      double[] codebook = codebook(lambda);
+      if (codebook.length > (1 << lambdaBits)) {
+        throw new IllegalArgumentException("The model has " + codebook.length + " distinct lambdas, too many for " +
+                                           lambdaBits + " bit codes: quantize them first");
+      }
+      data.writeInt((lambdaBits == 16) ? LAMBDA_CODEBOOK16 : LAMBDA_CODEBOOK8);
+      data.writeInt(codebook.length);
+      pad(data, 8);
+      for (double l : codebook) {
+        data.writeDouble(l);
+      }
+      for (double l : lambda) {
+        int code = Arrays.binarySearch(codebook, l);
+        if (lambdaBits == 16) {
+          data.writeShort(code);
+        } else {
+          data.writeByte(code);
+        }
+      }
+    } else {
+      throw new IllegalArgumentException("Lambdas can be saved in 64, 32, 16 or 8 bits, not " + lambdaBits);
+    }
+  }
+
+  /** The distinct values of the lambdas, sorted. */
+  private static double[] codebook(double[] lambda) {
+    double[] sorted = lambda.clone();
+    Arrays.sort(sorted);
+    int size = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (size == 0 || Double.compare(sorted[i], sorted[size - 1]) != 0) {
+        sorted[size++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(sorted, size);
+  }
+
+  private static double[] readLambdas(ByteBuffer data, int version) throws IOException {
+    double[] lambda = new double[data.getInt()];
+    int encoding = (version == 1) ? LAMBDA_DOUBLE : data.getInt();
+    switch (encoding) {
+    case LAMBDA_DOUBLE:
+      align(data, 8);
+      data.slice().asDoubleBuffer().get(lambda);
+      data.position(data.position() + lambda.length * 8);
+      break;
+    case LAMBDA_FLOAT:
+      for (int i = 0; i < lambda.length; i++) {
+        lambda[i] = data.getFloat();
+      }
+      break;
+    case LAMBDA_CODEBOOK16:
+    case LAMBDA_CODEBOOK8:
+      double[] codebook = new double[data.getInt()];
+      align(data, 8);
+      data.slice().asDoubleBuffer().get(codebook);
+      data.position(data.position() + codebook.length * 8);
+      for (int i = 0; i < lambda.length; i++) {
+        int code = (encoding == LAMBDA_CODEBOOK16) ? (data.getShort() & 0xFFFF) : (data.get() & 0xFF);
+        lambda[i] = codebook[code];
+      }
+      break;
+    default:
+      throw new IOException("Unknown encoding of the lambdas in binary tagger model: " + encoding);
+    }
+    return lambda;
+  }
+
+  private static void pad(DataOutputStream out, int alignment) throws IOException {
+    while (out.size() % alignment != 0) {
+      out.writeByte(0);
+    }
+  }
+
+  private static void align(ByteBuffer buf, int alignment) {
+    buf.position((buf.position() + alignment - 1) / alignment * alignment);
+  }
+
+
+  /**
+   * Reads the rest of a binary model into the tagger.  The stream is
+   * positioned just after {@link #MAGIC}.
+   *
+   * @param tagger The tagger being loaded; it has been init()ed
+   * @param rf The model stream
+   * @param file The model file, if it is a plain file that can be
+   *     memory-mapped, or null to read the data from the stream
+   * @throws IOException If the model can't be read
+   * @throws ClassNotFoundException If the extractors can't be deserialized
+   */
+  static void read(MaxentTagger tagger, DataInputStream rf, File file)
+    throws IOException, ClassNotFoundException
+  {
+    int version = rf.readInt();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported binary tagger model version " + version);
+    }
+    long dataOffset = rf.readLong();
+    long dataLength = rf.readLong();
+    int padding = rf.readInt();
+    if (dataLength > Integer.MAX_VALUE) {
+      throw new IOException("Binary tagger model too large: " + dataLength + " bytes");
+    }
+
+    ByteBuffer data;
+    if (file != null) {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        // the mapping stays valid after the file is closed
+        data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, dataOffset, dataLength);
+      } finally {
+        raf.close();
+      }
+    } else {
+      rf.readFully(new byte[padding]);
+      byte[] bytes = new byte[(int) dataLength];
+      rf.readFully(bytes);
+      data = ByteBuffer.wrap(bytes);
+    }
+    read(tagger, data, version);
+  }
+
+  private static void read(MaxentTagger tagger, ByteBuffer data, int version)
+    throws IOException, ClassNotFoundException
+  {
+    tagger.xSize = data.getInt();
+    tagger.ySize = data.getInt();
+    tagger.dict.readBinary(data);
+
+    byte[] block = new byte[data.getInt()];
+    data.get(block);
+    align(data, 4);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+    tagger.tags.read(in);
+    tagger.readExtractors(in);
+    tagger.dict.setAmbClasses(tagger.ambClasses, tagger.veryCommonWordThresh, tagger.tags);
+    tagger.numExtractors = tagger.extractors.getSize() + tagger.extractorsRare.getSize();
+
+    tagger.featureTable = FeatureTable.read(data, tagger.featureHashBits, version);
+    if (tagger.VERBOSE) {
+      System.err.println(" " + tagger.featureTable);
+    }
+
+    tagger.prob = new LambdaSolveTagger(readLambdas(data, version));
+  }
+
+
+  /**
+   * Writes an array of Strings as the number of strings, their start
+   * offsets and then their characters, padded to a multiple of 4 bytes.
+   */
+  static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+    out.writeInt(strings.length);
+    int start = 0;
+    out.writeInt(start);
+    for (String s : strings) {
+      start += s.length();
+      out.writeInt(start);
+    }
+    for (String s : strings) {
+      out.writeChars(s);
+    }
+    if ((start & 1) != 0) {
+      out.writeChar(0);
+    }
+  }
+
+  /** Reads an array of Strings written by {@link #writeStrings}. */
+  static String[] readStrings(ByteBuffer buf) {
+    int[] starts = readInts(buf, buf.getInt() + 1);
+    int numChars = starts[starts.length - 1];
+    char[] chars = new char[numChars];
+    CharBuffer charBuffer = buf.slice().asCharBuffer();
+    charBuffer.get(chars);
+    buf.position(buf.position() + ((numChars + 1) & ~1) * 2);
+    String[] strings = new String[starts.length - 1];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = new String(chars, starts[i], starts[i + 1] - starts[i]);
+    }
+    return strings;
+  }
+
+  /** Copies ints out of the buffer, leaving it positioned after them. */
+  static int[] readInts(ByteBuffer buf, int length) {
+    int[] ints = new int[length];
+    buf.slice().asIntBuffer().get(ints);
+    buf.position(buf.position() + length * 4);
+    return ints;
+  }
+
+
+  /**
+   * Converts a model in the original format to the binary format.
+   *
+   * @param modelFile The model to convert
+   * @param binaryFile Where to write the binary model
+   * @throws IOException If a model can't be read or written
+   * @throws ClassNotFoundException If the model can't be deserialized
+   */
+  public static void convert(String modelFile, String binaryFile)
+    throws IOException, ClassNotFoundException
+  {
+    MaxentTagger tagger = new MaxentTagger(modelFile);
+    Timing t = new Timing();
+    t.doing("Writing binary POS tagger model to " + binaryFile);
+    save(tagger, binaryFile);
+    t.done();
+  }
+
+  /**
+   * Converts a model to the binary format.  Usage:
+   * <code>java edu.stanford.nlp.tagger.maxent.BinaryModel modelFile binaryModelFile</code>
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: java edu.stanford.nlp.tagger.maxent.BinaryModel modelFile binaryModelFile");
+      System.exit(1);
+    }
+    convert(args[0], args[1]);
+  }
+
+}
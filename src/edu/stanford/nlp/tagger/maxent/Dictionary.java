@@ -11,6 +11,8 @@ import edu.stanford.nlp.io.OutDataStreamFile;
 
 import java.io.IOException;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -288,6 +290,96 @@ public class Dictionary {
     }
   }
 
+  /**
+   * Writes the dictionary as flat arrays, for a {@link BinaryModel}.
+   * This is the words; the tags they occur with; for each word the
+   * range of its (tag, count) pairs in the two arrays that follow; and
+   * then the verb counts.  A null tag is written as tag number -1.
+   */
+  void saveBinary(DataOutputStream out) throws IOException {
+    String[] words = dict.keySet().toArray(new String[dict.size()]);
+    HashMap<String,Integer> tagNumbers = new HashMap<String,Integer>();
+    int numPairs = 0;
+    for (String word : words) {
+      for (String tag : dict.get(word).getTags()) {
+        if (tag != null && ! tagNumbers.containsKey(tag)) {
+          tagNumbers.put(tag, tagNumbers.size());
+        }
+        numPairs++;
+      }
+    }
+    String[] tags = new String[tagNumbers.size()];
+    for (Map.Entry<String,Integer> entry : tagNumbers.entrySet()) {
+      tags[entry.getValue()] = entry.getKey();
+    }
+    BinaryModel.writeStrings(out, words);
+    BinaryModel.writeStrings(out, tags);
+
+    out.writeInt(numPairs);
+    int pairStart = 0;
+    out.writeInt(pairStart);
+    for (String word : words) {
+      pairStart += dict.get(word).numTags();
+      out.writeInt(pairStart);
+    }
+    for (String word : words) {
+      for (String tag : dict.get(word).getTags()) {
+        out.writeInt((tag == null) ? -1 : tagNumbers.get(tag));
+      }
+    }
+    for (String word : words) {
+      TagCount tC = dict.get(word);
+      for (String tag : tC.getTags()) {
+        out.writeInt(tC.get(tag));
+      }
+    }
+
+    Integer[] verbKeys = partTakingVerbs.keySet().toArray(new Integer[partTakingVerbs.size()]);
+    String[] verbs = new String[verbKeys.length];
+    out.writeInt(verbKeys.length);
+    for (int i = 0; i < verbKeys.length; i++) {
+      out.writeInt(verbKeys[i]);
+      verbs[i] = partTakingVerbs.get(verbKeys[i]).getWord();
+    }
+    for (Integer key : verbKeys) {
+      CountWrapper cw = partTakingVerbs.get(key);
+      out.writeInt(cw.getCountPart());
+      out.writeInt(cw.getCountThat());
+      out.writeInt(cw.getCountIn());
+      out.writeInt(cw.getCountRB());
+    }
+    BinaryModel.writeStrings(out, verbs);
+  }
+
+  /**
+   * Reads a dictionary written by {@link #saveBinary}, leaving the
+   * buffer positioned just after it.
+   */
+  void readBinary(ByteBuffer buf) {
+    String[] words = BinaryModel.readStrings(buf);
+    String[] tags = BinaryModel.readStrings(buf);
+    int numPairs = buf.getInt();
+    int[] pairStarts = BinaryModel.readInts(buf, words.length + 1);
+    int[] pairTags = BinaryModel.readInts(buf, numPairs);
+    int[] pairCounts = BinaryModel.readInts(buf, numPairs);
+    for (int i = 0; i < words.length; i++) {
+      HashMap<String,Integer> counts = new HashMap<String,Integer>(2 * (pairStarts[i + 1] - pairStarts[i]));
+      for (int j = pairStarts[i]; j < pairStarts[i + 1]; j++) {
+        counts.put((pairTags[j] < 0) ? null : tags[pairTags[j]], pairCounts[j]);
+      }
+      dict.put(words[i], new TagCount(counts));
+    }
+
+    int numVerbs = buf.getInt();
+    int[] verbKeys = BinaryModel.readInts(buf, numVerbs);
+    int[] verbCounts = BinaryModel.readInts(buf, 4 * numVerbs);
+    String[] verbs = BinaryModel.readStrings(buf);
+    for (int i = 0; i < numVerbs; i++) {
+      partTakingVerbs.put(verbKeys[i], new CountWrapper(verbs[i], verbCounts[4 * i],
+          verbCounts[4 * i + 1], verbCounts[4 * i + 2], verbCounts[4 * i + 3]));
+    }
+  }
+
   /*
   public void printAmbiguous() {
     String[] arr = dict.keySet().toArray(new String[dict.keySet().size()]);
@@ -0,0 +1,631 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * The feature lookup table used at tagging time.  It maps a pair of an
+ * extractor number and the value that extractor returned (the
+ * <code>num</code> and <code>val</code> of a FeatureKey) to the list of
+ * (tag, feature number) entries the model has for it.
+ * <p>
+ * Keys are stored in an open-addressing hash table made of parallel
+ * arrays, and the entries in compressed sparse row form: the entries of
+ * row <code>r</code> are at positions
+ * <code>rowStart[r] ... rowStart[r+1] - 1</code> of
+ * <code>entryTags</code> and <code>entryFeatures</code>.  So looking up
+ * a feature costs one String hash and probe, and scoring it is a scan
+ * over only the tags that actually have a feature, instead of the
+ * mostly -1 filled numExtractors * ySize array per value that was
+ * used before.
+ * <p>
+ * The table is filled with {@link #add} while a model is read, and
+ * {@link #compact} must be called once before any lookups.  After
+ * that it is read-only and can be shared between threads.  Since the
+ * compacted table is nothing but int and char arrays, it can be written
+ * out with {@link #save} and used in place from a memory-mapped file
+ * with {@link #read}; see {@link BinaryModel}.  The arrays are written
+ * in the byte order of the machine that writes them (which is recorded
+ * in the file), so that on the usual machines they are read without
+ * swapping bytes; a table in the other order, or one read from a
+ * stream rather than mapped, is copied into arrays when it is read.
+ * <p>
+ * In a model trained with feature hashing (<code>featureHashBits</code>
+ * greater than 0), an extractor's values aren't kept: each is hashed
+ * into one of 2<sup>featureHashBits</sup> buckets, and features are on
+ * the bucket, whose value is written <code>#</code><i>bucket</i> (see
+ * {@link #hashedValue}).  The table is then keyed by the extractor and
+ * the bucket number, which is what {@link #lookup} works out from the
+ * value, so no characters are stored and no strings are compared, and
+ * the size of the table is bounded by the number of buckets.
+ */
+class FeatureTable {
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /** An extractor value that means that the extractor isn't active. */
+  private static final String ZERO_VALUE = "0";
+
+  /** Written in the byte order of a saved table, to tell which it is. */
+  private static final int ORDER_MARK = 0x01020304;
+
+  /** The number of bits of the hashed values, or 0 if values aren't hashed. */
+  private int hashBits;
+
+  // The hash table while it is being built: slot -> key and row.
+  // A null value marks an empty slot.
+  private String[] keyVals;
+  private int[] keyExtractors;
+  private int[] keyHashes;
+  private int[] keyRows;
+  private int numRows; // = 0;
+
+  // Entries as they are added, before compact() sorts them by row
+  private int[] addedRows;
+  private char[] addedTags;
+  private int[] addedFeatures;
+  private int numEntries; // = 0;
+
+  // The compacted table.  slotRows is -1 for an empty slot, and the
+  // characters of the value for row r are keyChars[keyStart[r] ...
+  // keyStart[r+1] - 1].  Its hash table is rebuilt for the number of
+  // rows, and only the row and hash are kept for each slot: the rest of
+  // a key is only compared when the hashes match, so it is kept by row.
+  // These are buffers rather than arrays so that they can be views of a
+  // mapped model file.
+  private int mask;
+  private IntBuffer slotRows;
+  private IntBuffer slotHashes;
+  private IntBuffer rowExtractors;
+  private IntBuffer keyStart;
+  private CharBuffer keyChars;
+  private IntBuffer rowStart;
+  private CharBuffer entryTags; // tag numbers, which fit in 16 bits
+  private IntBuffer entryFeatures;
+
+
+  // for read()
+  private FeatureTable() {
+  }
+
+  /**
+   * @param expectedEntries The number of feature keys that will be
+   *     added; used to size the arrays and avoid resizing.
+   */
+  FeatureTable(int expectedEntries) {
+    this(expectedEntries, 0);
+  }
+
+  /**
+   * @param expectedEntries The number of feature keys that will be
+   *     added; used to size the arrays and avoid resizing.
+   * @param hashBits The featureHashBits of the model: if it is greater
+   *     than 0, the values of the keys added are hashed values
+   */
+  FeatureTable(int expectedEntries, int hashBits) {
+    this.hashBits = hashBits;
+    int capacity = INITIAL_CAPACITY;
+    while (capacity < expectedEntries) {
+      capacity <<= 1;
+    }
+    allocateSlots(capacity);
+    addedRows = new int[capacity];
+    addedTags = new char[capacity];
+    addedFeatures = new int[capacity];
+  }
+
+  private void allocateSlots(int capacity) {
+    keyVals = new String[capacity];
+    keyExtractors = new int[capacity];
+    keyHashes = new int[capacity];
+    keyRows = new int[capacity];
+  }
+
+  // With hashed values, a key's hash is its bucket, which identifies
+  // it, given the extractor.  (See firstSlot for where it goes.)
+  private int hash(int extractor, String val) {
+    if (hashBits > 0) {
+      return Integer.parseInt(val.substring(1));
+    }
+    // String.hashCode is fixed by its specification, so this can be
+    // saved with the table
+    int h = val.hashCode() * 31 + extractor;
+    return h ^ (h >>> 16);
+  }
+
+
+  /**
+   * The bucket that feature hashing puts a value of an extractor in, one
+   * of 2<sup>hashBits</sup>.  This is saved in models, so it mustn't
+   * change: it is String.hashCode (which is fixed by its specification)
+   * and the extractor number, mixed as in MurmurHash3's finalizer.
+   */
+  static int bucket(int extractor, String val, int hashBits) {
+    return mix(val.hashCode() * 0x9E3779B1 + extractor) >>> (32 - hashBits);
+  }
+
+  /** MurmurHash3's finalizer. */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * The slot that the probe for a key starts at, in a hash table of
+   * mask + 1 slots.  The hash of an unhashed value already has the
+   * extractor in it.  A bucket doesn't, and the same buckets come up for
+   * every extractor, so the extractor is mixed in here: otherwise all
+   * the keys would be crowded into the first 2<sup>hashBits</sup> slots,
+   * in one long run of full slots.
+   */
+  private int firstSlot(int extractor, int h, int mask) {
+    return ((hashBits > 0) ? mix(h * 31 + extractor) : h) & mask;
+  }
+
+  /** The value that features on a bucket have. */
+  static String hashedValue(int bucket) {
+    return "#" + bucket;
+  }
+
+
+  /**
+   * Returns the row for this extractor number and value, or -1 if the
+   * model has no features for it.
+   */
+  int lookup(int extractor, String val) {
+    if (hashBits > 0) {
+      if (val.equals(ZERO_VALUE)) {
+        // not in any bucket, as in training
+        return -1;
+      }
+      return lookupBucket(extractor, bucket(extractor, val, hashBits));
+    }
+    int h = hash(extractor, val);
+    int slot = firstSlot(extractor, h, mask);
+    int row;
+    while ((row = slotRows.get(slot)) >= 0) {
+      if (slotHashes.get(slot) == h && rowExtractors.get(row) == extractor && keyEquals(row, val)) {
+        return row;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int lookupBucket(int extractor, int bucket) {
+    int slot = firstSlot(extractor, bucket, mask);
+    int row;
+    while ((row = slotRows.get(slot)) >= 0) {
+      if (slotHashes.get(slot) == bucket && rowExtractors.get(row) == extractor) {
+        return row;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private boolean keyEquals(int row, String val) {
+    int start = keyStart.get(row);
+    int length = val.length();
+    if (keyStart.get(row + 1) - start != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (keyChars.get(start + i) != val.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String key(int row) {
+    int start = keyStart.get(row);
+    char[] chars = new char[keyStart.get(row + 1) - start];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = keyChars.get(start + i);
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Adds the lambda of each feature in this row to the score of its tag.
+   *
+   * @param row A row returned by {@link #lookup}
+   * @param lambda The model weights
+   * @param scores Scores indexed by tag number
+   */
+  void addScores(int row, double[] lambda, double[] scores) {
+    for (int j = rowStart.get(row), end = rowStart.get(row + 1); j < end; j++) {
+      scores[entryTags.get(j)] += lambda[entryFeatures.get(j)];
+    }
+  }
+
+  /**
+   * Adds the lambda of each feature in this row to the score of its tag,
+   * for only some of the tags.
+   *
+   * @param row A row returned by {@link #lookup}
+   * @param lambda The model weights
+   * @param tagPositions For each tag number, the index in scores to add
+   *     to, or -1 if the tag is not being scored
+   * @param scores Scores indexed by the values in tagPositions
+   */
+  void addScores(int row, double[] lambda, int[] tagPositions, double[] scores) {
+    for (int j = rowStart.get(row), end = rowStart.get(row + 1); j < end; j++) {
+      int pos = tagPositions[entryTags.get(j)];
+      if (pos >= 0) {
+        scores[pos] += lambda[entryFeatures.get(j)];
+      }
+    }
+  }
+
+
+  private int lookupOrAdd(int extractor, String val) {
+    int h = hash(extractor, val);
+    int slot = firstSlot(extractor, h, keyVals.length - 1);
+    String k;
+    while ((k = keyVals[slot]) != null) {
+      if (keyHashes[slot] == h && keyExtractors[slot] == extractor && k.equals(val)) {
+        return keyRows[slot];
+      }
+      slot = (slot + 1) & (keyVals.length - 1);
+    }
+    keyVals[slot] = val;
+    keyExtractors[slot] = extractor;
+    keyHashes[slot] = h;
+    keyRows[slot] = numRows;
+    numRows++;
+    // keep the load factor at or below one half
+    if (numRows * 2 > keyVals.length) {
+      rehash();
+    }
+    return numRows - 1;
+  }
+
+  private void rehash() {
+    String[] oldVals = keyVals;
+    int[] oldExtractors = keyExtractors;
+    int[] oldHashes = keyHashes;
+    int[] oldRows = keyRows;
+    allocateSlots(oldVals.length * 2);
+    int newMask = keyVals.length - 1;
+    for (int i = 0; i < oldVals.length; i++) {
+      if (oldVals[i] != null) {
+        int slot = firstSlot(oldExtractors[i], oldHashes[i], newMask);
+        while (keyVals[slot] != null) {
+          slot = (slot + 1) & newMask;
+        }
+        keyVals[slot] = oldVals[i];
+        keyExtractors[slot] = oldExtractors[i];
+        keyHashes[slot] = oldHashes[i];
+        keyRows[slot] = oldRows[i];
+      }
+    }
+  }
+
+
+  /**
+   * Adds a feature.  This may only be called before {@link #compact}.
+   *
+   * @param extractor The extractor number (FeatureKey.num)
+   * @param val The extracted value (FeatureKey.val)
+   * @param tag The tag index of the feature
+   * @param feature The feature number, an index into the lambdas
+   */
+  void add(int extractor, String val, int tag, int feature) {
+    if (addedRows == null) {
+      throw new IllegalStateException("FeatureTable already compacted");
+    }
+    if (tag < 0 || tag > Character.MAX_VALUE) {
+      throw new IllegalArgumentException("Tag number out of range: " + tag);
+    }
+    int row = lookupOrAdd(extractor, val);
+    if (numEntries == addedRows.length) {
+      int newLength = numEntries * 2;
+      addedRows = Arrays.copyOf(addedRows, newLength);
+      addedTags = Arrays.copyOf(addedTags, newLength);
+      addedFeatures = Arrays.copyOf(addedFeatures, newLength);
+    }
+    addedRows[numEntries] = row;
+    addedTags[numEntries] = (char) tag;
+    addedFeatures[numEntries] = feature;
+    numEntries++;
+  }
+
+
+  /**
+   * Sorts the added entries into rows (a counting sort, so that this is
+   * linear in the number of features), builds the final hash table, with
+   * room for the rows only (the one used while adding was sized for the
+   * expected number of features), and frees the space used while building.
+   */
+  void compact() {
+    if (addedRows == null) {
+      return;
+    }
+    int[] starts = new int[numRows + 1];
+    for (int i = 0; i < numEntries; i++) {
+      starts[addedRows[i] + 1]++;
+    }
+    for (int r = 0; r < numRows; r++) {
+      starts[r + 1] += starts[r];
+    }
+    int[] next = Arrays.copyOf(starts, numRows);
+    char[] tags = new char[numEntries];
+    int[] features = new int[numEntries];
+    for (int i = 0; i < numEntries; i++) {
+      int pos = next[addedRows[i]]++;
+      tags[pos] = addedTags[i];
+      features[pos] = addedFeatures[i];
+    }
+
+    // the same load factor of at most one half as while adding
+    int capacity = 1;
+    while (capacity < numRows * 2) {
+      capacity <<= 1;
+    }
+    int[] rows = new int[capacity];
+    int[] hashes = new int[capacity];
+    Arrays.fill(rows, -1);
+    int[] extractors = new int[numRows];
+    String[] vals = new String[numRows];
+    for (int i = 0; i < keyVals.length; i++) {
+      if (keyVals[i] != null) {
+        int slot = firstSlot(keyExtractors[i], keyHashes[i], capacity - 1);
+        while (rows[slot] >= 0) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        rows[slot] = keyRows[i];
+        hashes[slot] = keyHashes[i];
+        extractors[keyRows[i]] = keyExtractors[i];
+        vals[keyRows[i]] = keyVals[i];
+      }
+    }
+    int[] charStarts = new int[numRows + 1];
+    if (hashBits == 0) {
+      // (hashed values are known from their bucket)
+      for (int r = 0; r < numRows; r++) {
+        charStarts[r + 1] = charStarts[r] + vals[r].length();
+      }
+    }
+    char[] chars = new char[charStarts[numRows]];
+    for (int r = 0; r < numRows && hashBits == 0; r++) {
+      vals[r].getChars(0, vals[r].length(), chars, charStarts[r]);
+    }
+
+    mask = capacity - 1;
+    slotRows = IntBuffer.wrap(rows);
+    slotHashes = IntBuffer.wrap(hashes);
+    rowExtractors = IntBuffer.wrap(extractors);
+    keyStart = IntBuffer.wrap(charStarts);
+    keyChars = CharBuffer.wrap(chars);
+    rowStart = IntBuffer.wrap(starts);
+    entryTags = CharBuffer.wrap(tags);
+    entryFeatures = IntBuffer.wrap(features);
+
+    keyVals = null;
+    keyRows = null;
+    keyHashes = null;
+    keyExtractors = null;
+    addedRows = null;
+    addedTags = null;
+    addedFeatures = null;
+  }
+
+
+  /**
+   * Rebuilds the FeatureKey to feature number map that this table was
+   * made from, for saving a model or dumping its features.
+   */
+  HashMap<FeatureKey,Integer> toAssociations(TTags ttags) {
+    HashMap<FeatureKey,Integer> associations = new HashMap<FeatureKey,Integer>(numEntries * 2);
+    for (int slot = 0; slot <= mask; slot++) {
+      int row = slotRows.get(slot);
+      if (row >= 0) {
+        int extractor = rowExtractors.get(row);
+        String val = (hashBits > 0) ? hashedValue(slotHashes.get(slot)) : key(row);
+        for (int j = rowStart.get(row), end = rowStart.get(row + 1); j < end; j++) {
+          FeatureKey fK = new FeatureKey(extractor, val, ttags.getTag(entryTags.get(j)));
+          associations.put(fK, entryFeatures.get(j));
+        }
+      }
+    }
+    return associations;
+  }
+
+
+  /**
+   * Writes out the compacted table, in the form that {@link #read}
+   * expects: a header of four ints and the mark of the byte order, then
+   * the int arrays, then the tags of the entries and the characters of
+   * the keys, all in the byte order of this machine.
+   */
+  void save(DataOutputStream out) throws IOException {
+    out.writeInt(mask + 1);
+    out.writeInt(numRows);
+    out.writeInt(numEntries);
+    out.writeInt(keyChars.limit());
+    boolean swap = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    writeInts(out, IntBuffer.wrap(new int[] { ORDER_MARK }), swap);
+    writeInts(out, slotRows, swap);
+    writeInts(out, slotHashes, swap);
+    writeInts(out, rowExtractors, swap);
+    writeInts(out, keyStart, swap);
+    writeInts(out, rowStart, swap);
+    writeInts(out, entryFeatures, swap);
+    writeChars(out, entryTags, swap);
+    writeChars(out, keyChars, swap);
+    // keep whatever follows int aligned
+    if (((entryTags.limit() + keyChars.limit()) & 1) != 0) {
+      out.writeChar(0);
+    }
+  }
+
+  // (a DataOutputStream is big-endian, so little-endian ints are swapped)
+  private static void writeInts(DataOutputStream out, IntBuffer ints, boolean swap) throws IOException {
+    for (int i = 0, len = ints.limit(); i < len; i++) {
+      int value = ints.get(i);
+      out.writeInt(swap ? Integer.reverseBytes(value) : value);
+    }
+  }
+
+  private static void writeChars(DataOutputStream out, CharBuffer chars, boolean swap) throws IOException {
+    for (int i = 0, len = chars.limit(); i < len; i++) {
+      char c = chars.get(i);
+      out.writeChar(swap ? Character.reverseBytes(c) : c);
+    }
+  }
+
+  /**
+   * Returns a table read from the buffer, which is positioned at the
+   * start of a table written by {@link #save}.  The buffer is left
+   * positioned just after the table.  If the buffer is a mapped file in
+   * this machine's byte order, nothing is copied: the table's arrays are
+   * views of the buffer, used straight from the page cache.
+   *
+   * @param hashBits The featureHashBits of the model
+   * @param version The version of the {@link BinaryModel}: before
+   *     version 3, tables were big-endian, the hash table had a slot for
+   *     each expected feature, each with the key's extractor, and the
+   *     tags of the entries were ints; before version 4, a hashed key's
+   *     probe started at its bucket, so a hashed table is rebuilt
+   */
+  static FeatureTable read(ByteBuffer buf, int hashBits, int version) throws IOException {
+    FeatureTable table = new FeatureTable();
+    table.hashBits = hashBits;
+    int capacity = buf.getInt();
+    table.numRows = buf.getInt();
+    table.numEntries = buf.getInt();
+    int numChars = buf.getInt();
+    ByteOrder order = ByteOrder.BIG_ENDIAN;
+    if (version >= 3) {
+      int mark = buf.getInt();
+      if (mark == Integer.reverseBytes(ORDER_MARK)) {
+        order = ByteOrder.LITTLE_ENDIAN;
+      } else if (mark != ORDER_MARK) {
+        throw new IOException("Bad byte order mark in binary tagger model: " + Integer.toHexString(mark));
+      }
+    }
+    table.mask = capacity - 1;
+    table.slotRows = intView(buf, capacity, order);
+    table.slotHashes = intView(buf, capacity, order);
+    if (version >= 3) {
+      table.rowExtractors = intView(buf, table.numRows, order);
+    } else {
+      IntBuffer slotExtractors = intView(buf, capacity, order);
+      int[] extractors = new int[table.numRows];
+      for (int slot = 0; slot < capacity; slot++) {
+        int row = table.slotRows.get(slot);
+        if (row >= 0) {
+          extractors[row] = slotExtractors.get(slot);
+        }
+      }
+      table.rowExtractors = IntBuffer.wrap(extractors);
+    }
+    table.keyStart = intView(buf, table.numRows + 1, order);
+    table.rowStart = intView(buf, table.numRows + 1, order);
+    if (version >= 3) {
+      table.entryFeatures = intView(buf, table.numEntries, order);
+      table.entryTags = charView(buf, table.numEntries, order);
+    } else {
+      IntBuffer tags = intView(buf, table.numEntries, order);
+      char[] array = new char[table.numEntries];
+      for (int j = 0; j < array.length; j++) {
+        array[j] = (char) tags.get(j);
+      }
+      table.entryTags = CharBuffer.wrap(array);
+      table.entryFeatures = intView(buf, table.numEntries, order);
+    }
+    table.keyChars = charView(buf, numChars, order);
+    // the padding that keeps what follows int aligned
+    if ((buf.position() & 3) != 0) {
+      buf.position(buf.position() + 2);
+    }
+    if (version < 4 && hashBits > 0) {
+      table.rebuildSlots();
+    }
+    return table;
+  }
+
+  /** Puts each row in the slots where firstSlot starts the probe for it. */
+  private void rebuildSlots() {
+    int[] rows = new int[mask + 1];
+    int[] hashes = new int[mask + 1];
+    Arrays.fill(rows, -1);
+    for (int i = 0; i <= mask; i++) {
+      int row = slotRows.get(i);
+      if (row >= 0) {
+        int slot = firstSlot(rowExtractors.get(row), slotHashes.get(i), mask);
+        while (rows[slot] >= 0) {
+          slot = (slot + 1) & mask;
+        }
+        rows[slot] = row;
+        hashes[slot] = slotHashes.get(i);
+      }
+    }
+    slotRows = IntBuffer.wrap(rows);
+    slotHashes = IntBuffer.wrap(hashes);
+  }
+
+  private static IntBuffer intView(ByteBuffer buf, int length, ByteOrder order) {
+    ByteBuffer ints = buf.slice().order(order);
+    ints.limit(length * 4);
+    buf.position(buf.position() + length * 4);
+    IntBuffer view = ints.asIntBuffer();
+    if ( ! inPlace(ints)) {
+      int[] array = new int[length];
+      view.get(array);
+      return IntBuffer.wrap(array);
+    }
+    return view;
+  }
+
+  private static CharBuffer charView(ByteBuffer buf, int length, ByteOrder order) {
+    ByteBuffer chars = buf.slice().order(order);
+    chars.limit(length * 2);
+    buf.position(buf.position() + length * 2);
+    CharBuffer view = chars.asCharBuffer();
+    if ( ! inPlace(chars)) {
+      char[] array = new char[length];
+      view.get(array);
+      return CharBuffer.wrap(array);
+    }
+    return view;
+  }
+
+  /**
+   * Whether a view of this buffer is as quick to read as an array: it is
+   * direct (not a view of a byte[], which is read a byte at a time) and
+   * needs no byte swapping.
+   */
+  private static boolean inPlace(ByteBuffer buf) {
+    return buf.isDirect() && buf.order() == ByteOrder.nativeOrder();
+  }
+
+
+  int numRows() {
+    return numRows;
+  }
+
+  int numEntries() {
+    return numEntries;
+  }
+
+  @Override
+  public String toString() {
+    return "FeatureTable[rows=" + numRows + ", entries=" + numEntries +
+        ", slots=" + (mask + 1) + ((hashBits > 0) ? ", hashBits=" + hashBits : "") + ']';
+  }
+
+}
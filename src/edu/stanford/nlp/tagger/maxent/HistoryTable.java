@@ -7,45 +7,110 @@
 
 package edu.stanford.nlp.tagger.maxent;
 
-import edu.stanford.nlp.util.Index;
-import edu.stanford.nlp.util.HashIndex;
+import java.util.Arrays;
 
 /**
- * <i>Notes:</i> This maintains a two way lookup between a History and
- * an Integer index.
+ * <i>Notes:</i> This maintains a two way lookup between the histories of
+ * the training data and an Integer index.  A history is represented by
+ * its row: the interned (int) values of the extractors on it, the
+ * general ones and then, for rare words, the rare ones.  Two histories
+ * are the same if their general values are, as for History.equals; the
+ * row kept is the first one added.  The (interned) current word of each
+ * history is kept as well.
  *
  * @author Kristina Toutanova
  * @version 1.0
  */
 public class HistoryTable {
 
-  // todo cdm: just remove this class and use the Index<History> directly where uses of it appears?
+  /** The number of values at the start of a row that identify it. */
+  private final int keyLength;
+  private int[][] rows;
+  private int[] words;
+  /** The index of the row in each slot of the hash table, plus one; 0 for an empty slot. */
+  private int[] slots;
+  private int size;
 
-  private static final int capacity = 1000000;
-  private final Index<History> idx;
-
-  public HistoryTable() {
-    idx = new HashIndex<History>(capacity);
+  public HistoryTable(int keyLength) {
+    this.keyLength = keyLength;
+    release();
   }
 
   void release() {
-    idx.clear();
+    rows = new int[16][];
+    words = new int[16];
+    slots = new int[32];
+    size = 0;
+  }
+
+  private int hash(int[] row) {
+    int h = 1;
+    for (int i = 0; i < keyLength; i++) {
+      h = 31 * h + row[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private boolean keyEquals(int[] row1, int[] row2) {
+    for (int i = 0; i < keyLength; i++) {
+      if (row1[i] != row2[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the index of the history with this row, adding it if it is
+   * new.  Only the first length values of the row are used (so that the
+   * caller can reuse a larger array), and they are copied if added.
+   */
+  int add(int[] row, int length, int word) {
+    int mask = slots.length - 1;
+    int slot = hash(row) & mask;
+    while (slots[slot] != 0) {
+      if (keyEquals(rows[slots[slot] - 1], row)) {
+        return slots[slot] - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (size == rows.length) {
+      rows = Arrays.copyOf(rows, size * 2);
+      words = Arrays.copyOf(words, size * 2);
+    }
+    rows[size] = Arrays.copyOf(row, length);
+    words[size] = word;
+    slots[slot] = ++size;
+    if (size * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return size - 1;
   }
 
-  int add(History h) {
-    return idx.indexOf(h,true);
+  private void rehash(int tableSize) {
+    slots = new int[tableSize];
+    int mask = tableSize - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hash(rows[i]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = i + 1;
+    }
   }
 
-  History getHistory(int index) {
-    return idx.get(index);
+  /** The extractor values of a history.  The array must not be changed. */
+  int[] getRow(int index) {
+    return rows[index];
   }
 
-  int getIndex(History h) {
-    return idx.indexOf(h);
+  /** The interned current word of a history. */
+  int getWord(int index) {
+    return words[index];
   }
 
   int size() {
-    return idx.size();
+    return size;
   }
 
 }
@@ -0,0 +1,28 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.io.Serializable;
+
+
+/** An Extractor paired with its position in the enclosing Extractors.
+ *  The position is what the feature arrays in MaxentTagger are indexed
+ *  by, so TestSentence iterates over these rather than over the Maps in
+ *  Extractors.  Instances are immutable and can be shared between threads.
+ */
+class IndexedExtractor implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  final Extractor extractor;
+  final int index;
+
+  IndexedExtractor(Extractor extractor, int index) {
+    this.extractor = extractor;
+    this.index = index;
+  }
+
+  @Override
+  public String toString() {
+    return index + ":" + extractor;
+  }
+
+}
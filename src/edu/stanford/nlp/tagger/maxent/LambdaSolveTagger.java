@@ -31,13 +31,27 @@ public class LambdaSolveTagger extends LambdaSolve {
   //private static final boolean VERBOSE = false;
 
 
-  LambdaSolveTagger(Problem p1, double eps1, double nerr1, byte[][] fnumArr) {
+  /**
+   * Sets up training.  If possibleTags is null, each history's
+   * conditional distribution is over all the tags; otherwise it is only
+   * over the (sorted) tags in possibleTags[x], and fnumArr[x] must be
+   * laid out the same way.
+   */
+  LambdaSolveTagger(Problem p1, double eps1, double nerr1, byte[][] fnumArr, int[][] possibleTags) {
     p = p1;
     eps = eps1;
     newtonerr = nerr1;
     lambda = new double[p1.fSize];
     lambda_converged = new boolean[p1.fSize];
-    probConds = new double[p1.data.xSize][p1.data.ySize];  // cdm 2008: Memory hog. Is there anything we can do to avoid this square array allocation?
+    if (possibleTags == null) {
+      probConds = new double[p1.data.xSize][p1.data.ySize];  // cdm 2008: Memory hog. Is there anything we can do to avoid this square array allocation?
+    } else {
+      condYs = possibleTags;
+      probConds = new double[p1.data.xSize][];
+      for (int x = 0; x < p1.data.xSize; x++) {
+        probConds[x] = new double[possibleTags[x].length];
+      }
+    }
     this.fnumArr = fnumArr;
     zlambda = new double[p1.data.xSize];
     ftildeArr = new double[p.fSize];
@@ -74,17 +88,22 @@ public class LambdaSolveTagger extends LambdaSolve {
     super.setBinary();
   }
 
+  LambdaSolveTagger(double[] lambda) {
+    this.lambda = lambda;
+    super.setBinary();
+  }
+
   void initCondsZlambdaEtc() {
     // init pcond
     for (int x = 0; x < p.data.xSize; x++) {
-      for (int y = 0; y < p.data.ySize; y++) {
-        probConds[x][y] = 1.0 / p.data.ySize;
+      for (int y = 0; y < probConds[x].length; y++) {
+        probConds[x][y] = 1.0 / probConds[x].length;
       }
     }
     System.err.println(" pcond initialized ");
     // init zlambda
     for (int x = 0; x < p.data.xSize; x++) {
-      zlambda[x] = p.data.ySize;
+      zlambda[x] = probConds[x].length;
     }
     System.err.println(" zlambda initialized ");
     // init ftildeArr
@@ -166,14 +185,15 @@ public class LambdaSolveTagger extends LambdaSolve {
       // update for this x
       double s = 0;
       int x = (p.functions.get(index)).getX(i);
-      double zlambdaX = zlambda[x] + pcond(yTag, x) * zlambda[x] * (Math.exp(deltaL) - 1);
-      for (int y = 0; y < p.data.ySize; y++) {
+      int yIndex = condIndex(x, yTag);
+      double zlambdaX = zlambda[x] + probConds[x][yIndex] * zlambda[x] * (Math.exp(deltaL) - 1);
+      for (int y = 0; y < probConds[x].length; y++) {
         probConds[x][y] = (probConds[x][y] * zlambda[x]) / zlambdaX;
         s = s + probConds[x][y];
       }
-      s = s - probConds[x][yTag];
-      probConds[x][yTag] = probConds[x][yTag] * Math.exp(deltaL);
-      s = s + probConds[x][yTag];
+      s = s - probConds[x][yIndex];
+      probConds[x][yIndex] = probConds[x][yIndex] * Math.exp(deltaL);
+      s = s + probConds[x][yIndex];
       zlambda[x] = zlambdaX;
     }
   }
@@ -269,11 +289,11 @@ public class LambdaSolveTagger extends LambdaSolve {
     }
     for (int x = 0; x < p.data.xSize; x++) {
       double s = 0.0;
-      for (int y = 0; y < p.data.ySize; y++) {
+      for (int y = 0; y < probConds[x].length; y++) {
         s = s + probConds[x][y];
       }
       if (Math.abs(s - 1) > 0.0001) {
-        for (int y = 0; y < p.data.ySize; y++) {
+        for (int y = 0; y < probConds[x].length; y++) {
           System.err.println(y + " : " + probConds[x][y]);
         }
         System.err.println("probabilities do not sum to one " + x + ' ' + (float) s);
@@ -0,0 +1,154 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A bounded cache of local feature scores, shared by all the
+ * TestSentences of one MaxentTagger.  Local extractors only look at
+ * the current word, so the summed lambdas they contribute for each tag
+ * depend on the word alone and can be reused from one sentence (and one
+ * call) to the next.  Since a small vocabulary makes up most of the
+ * tokens in running text, this avoids most of the extractor evaluation
+ * and lambda summation for local features.
+ * <p>
+ * The cache is split into segments, each an access-ordered (LRU)
+ * LinkedHashMap guarded by its own lock, so that many tagging threads
+ * can use it at once without contending on a single monitor.  The
+ * score arrays stored here are shared and must be treated as read-only.
+ */
+public class LocalScoreCache {
+
+  private static final int MAX_SEGMENTS = 16;
+
+  private final Segment[] segments;
+  private final int maxSize;
+
+  /**
+   * Create a cache holding the local scores of up to
+   * <code>maxSize</code> words.  Each segment evicts its own least
+   * recently used entry, so eviction is only approximately LRU overall.
+   *
+   * @param maxSize The maximum number of words cached; must be positive
+   */
+  public LocalScoreCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+    }
+    this.maxSize = maxSize;
+    int numSegments = Math.min(MAX_SEGMENTS, maxSize);
+    segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      // spread the remainder so that the capacities sum to maxSize
+      int segmentSize = maxSize / numSegments + ((i < maxSize % numSegments) ? 1 : 0);
+      segments[i] = new Segment(segmentSize);
+    }
+  }
+
+  private Segment segmentFor(String word) {
+    int h = word.hashCode();
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % segments.length];
+  }
+
+  /** Returns the cached local scores for this word, or null if there are none. */
+  double[] get(String word) {
+    Segment segment = segmentFor(word);
+    synchronized (segment) {
+      double[] scores = segment.get(word);
+      if (scores == null) {
+        segment.misses++;
+      } else {
+        segment.hits++;
+      }
+      return scores;
+    }
+  }
+
+  /** Caches the local scores for a word.  The array must not be changed afterwards. */
+  void put(String word, double[] scores) {
+    Segment segment = segmentFor(word);
+    synchronized (segment) {
+      segment.put(word, scores);
+    }
+  }
+
+  /** Removes all entries, but keeps the hit and miss counts. */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long hits() {
+    long hits = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        hits += segment.hits;
+      }
+    }
+    return hits;
+  }
+
+  public long misses() {
+    long misses = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        misses += segment.misses;
+      }
+    }
+    return misses;
+  }
+
+  /** The fraction of lookups that were hits, or 0 if there have been none. */
+  public double hitRate() {
+    long hits = hits();
+    long total = hits + misses();
+    return (total == 0) ? 0.0 : ((double) hits) / total;
+  }
+
+  @Override
+  public String toString() {
+    return "LocalScoreCache[size=" + size() + ", maxSize=" + maxSize +
+        ", hits=" + hits() + ", misses=" + misses() + ']';
+  }
+
+
+  private static class Segment extends LinkedHashMap<String,double[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+    long hits;
+    long misses;
+
+    Segment(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String,double[]> eldest) {
+      return size() > capacity;
+    }
+
+  } // end class Segment
+
+}
@@ -0,0 +1,100 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.util.Arrays;
+
+
+/**
+ * A two way lookup between long keys and the ints 0, 1, 2, ..., in the
+ * order the keys were added, like a HashIndex&lt;Long&gt; but without
+ * boxing: the keys are kept in an open addressing hash table of longs.
+ * This is what training keys packed feature templates with, since there
+ * are a great many of them.
+ */
+class LongIndex {
+
+  private long[] keys;
+  /** The index of the key in each slot of the hash table, plus one; 0 for an empty slot. */
+  private int[] slots;
+  private int size;
+
+  LongIndex() {
+    this(16);
+  }
+
+  LongIndex(int capacity) {
+    int tableSize = 16;
+    while (tableSize < capacity * 2) {
+      tableSize *= 2;
+    }
+    keys = new long[Math.max(capacity, 16)];
+    slots = new int[tableSize];
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Returns the index of the key, adding it at the end if add is true
+   * and it isn't there yet.
+   *
+   * @return The index of the key, or -1 if it isn't there (and add is false)
+   */
+  int indexOf(long key, boolean add) {
+    int mask = slots.length - 1;
+    int slot = hash(key) & mask;
+    while (slots[slot] != 0) {
+      if (keys[slots[slot] - 1] == key) {
+        return slots[slot] - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if ( ! add) {
+      return -1;
+    }
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+    }
+    keys[size] = key;
+    slots[slot] = ++size;
+    if (size * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return size - 1;
+  }
+
+  int indexOf(long key) {
+    return indexOf(key, false);
+  }
+
+  private void rehash(int tableSize) {
+    slots = new int[tableSize];
+    int mask = tableSize - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hash(keys[i]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = i + 1;
+    }
+  }
+
+  long get(int index) {
+    if (index >= size) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+    return keys[index];
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    keys = new long[16];
+    slots = new int[32];
+    size = 0;
+  }
+
+}
@@ -58,6 +58,12 @@ import edu.stanford.nlp.util.XMLUtils;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.lang.reflect.Method;
 import java.text.NumberFormat;
@@ -111,6 +117,26 @@ import java.text.DecimalFormat;
  * <code>process()</code> on the result.
  * </p>
  *
+ * <h3>Thread safety</h3>
+ * Once constructed, a MaxentTagger is a read-only model: the dictionary,
+ * tag set, extractors, feature tables and lambdas are not modified by
+ * tagging.  All per-sentence state (the word/tag pairs, the history and
+ * the cached local scores) lives in a {@link TestSentence}, and each of
+ * the tagging methods above makes its own, so a single tagger can be
+ * shared by any number of threads without external synchronization,
+ * provided it is handed to them after construction in the usual safe
+ * way (e.g., through a final field or an executor).  A TestSentence
+ * itself is a cheap, single-threaded tagging session: give each thread
+ * its own.  {@link #tagBatch} uses this to tag a list of sentences on
+ * several threads.  Training a model is not thread-safe.
+ *
+ * <h3>Binary models</h3>
+ * A model can be converted to a binary format that loads much faster,
+ * and that is memory-mapped so that several processes on one machine
+ * share it: <code>java edu.stanford.nlp.tagger.maxent.BinaryModel
+ * model.tagger model-binary.tagger</code>.  Binary models are used
+ * exactly like other models; see {@link BinaryModel}.
+ *
  * <h3>Using the command line</h3>
  *
  * Tagging, testing, and training can all also be done via the command line.
@@ -168,7 +194,7 @@ import java.text.DecimalFormat;
      </td>
    </tr>
  * <tr><td>testFile</td><td>String</td><td>N/A</td><td>Test</td><td>Path to the file holding the test data; specifying this option puts the tagger in testing mode.  Only one of 'trainFile','testFile','textFile', and 'convertToSingleFile' may be specified.  The same format as trainFile applies, but only one file can be specified.</td></tr>
- * <tr><td>textFile</td><td>String</td><td>N/A</td><td>Tag</td><td>Path to the file holding the text to tag; specifying this option puts the tagger in tagging mode.  Only one of 'trainFile','testFile','textFile', and 'convertToSingleFile' may be specified.  No file reading options may be specified for textFile</td></tr>
+ * <tr><td>textFile</td><td>String</td><td>N/A</td><td>Tag</td><td>Path to the file holding the text to tag; specifying this option puts the tagger in tagging mode.  Only one of 'trainFile','testFile','textFile', and 'convertToSingleFile' may be specified.  No file reading options may be specified for textFile.  It can also be a directory, whose files are all tagged, or a pattern with * or ? in the file name (not the directory), such as data/*.txt; the files are then tagged nthreads at a time.  It is an error if no files match.</td></tr>
  * <tr><td>convertToSingleFile</td><td>String</td><td>N/A</td><td>N/A</td><td>Provided only for backwards compatibility, this option allows you to convert a tagger trained using a previous version of the tagger to the new single-file format.  The value of this flag should be the path for the new model file, 'model' should be the path prefix to the old tagger (up to but not including the ".holder"), and you should supply the properties configuration for the old tagger with -props (before these two arguments).</td></tr>
  * <tr><td>genprops</td><td>boolean</td><td>N/A</td><td>N/A</td><td>Use this option to output a default properties file, containing information about each of the possible configuration options.</td></tr>
  * <tr><td>tagSeparator</td><td>char</td><td>/</td><td>All</td><td>Separator character that separates word and part of speech tags, such as out/IN or out_IN.  For training and testing, this is the separator used in the train/test files.  For tagging, this is the character that will be inserted between words and tags in the output.</td></tr>
@@ -186,10 +212,21 @@ import java.text.DecimalFormat;
  * <tr><td>sgml</td><td>boolean</td><td>false</td><td>Tag, Test</td><td>Very basic tagging of the contents of all sgml fields; for more complex mark-up, consider using the xmlInput option.</td></tr>
  * <tr><td>xmlInput</td><td>String</td><td></td><td>Tag, Test</td><td>Give a space separated list of tags in an XML file whose content you would like tagged.  Any internal tags that appear in the content of fields you would like tagged will be discarded; the rest of the XML will be preserved and the original text of specified fields will be replaced with the tagged text.</td></tr>
  * <tr><td>outputFile</td><td>String</td><td>""</td><td>Tag</td><td>Path to write output to.  If blank, stdout is used.</td></tr>
+ * <tr><td>outputDir</td><td>String</td><td>""</td><td>Tag</td><td>When textFile names several files, a directory to write the output for each to, in a file named as the input file with ".tag" added.  If blank, the outputs are written one after another, in the order of the file names, to outputFile or stdout.</td></tr>
  * <tr><td>outputFormat</td><td>String</td><td>""</td><td>Tag</td><td>Output format. One of: slashTags (default), xml, or tsv</td></tr>
  * <tr><td>outputFormatOptions</td><td>String</td><td>""</td><td>Tag</td><td>Output format options.</td></tr>
  * <tr><td>tagInside</td><td>String</td><td>""</td><td>Tag</td><td>Tags inside elements that match the regular expression given in the String.</td></tr>
- * <tr><td>search</td><td>String</td><td>cg</td><td>Train</td><td>Specify the search method to be used in the optimization method for training.  Options are 'cg' (conjugate gradient), 'iis' (improved iterative scaling), or 'qn' (quasi-newton).</td></tr>
+ * <tr><td>search</td><td>String</td><td>cg</td><td>Train</td><td>Specify the search method to be used in the optimization method for training.  Options are 'cg' (conjugate gradient), 'iis' (improved iterative scaling), 'qn' (quasi-newton), 'owlqn' (L1 regularized quasi-newton) or 'sgd' (mini-batch stochastic gradient descent with AdaGrad step sizes, which gives a usable model after a pass or two over a very large training set).</td></tr>
+ * <tr><td>nthreads</td><td>int</td><td>1</td><td>Train, Tag</td><td>Number of threads used in training: for extracting the features from the training data, and for computing the likelihood and its gradient with 'cg', 'qn', 'owlqn' and 'sgd' search.  The features are the same as with one thread, and the result is the same up to floating point rounding.  When textFile names several files, the number of them tagged at once (sharing the one model).</td></tr>
+ * <tr><td>sparseTraining</td><td>boolean</td><td>false</td><td>Train</td><td>If true, the probability of each tag for a word is normalized over the word's possible tags (those it was seen with in training, or the open-class tags for unknown words; rare training words, which stand in for unknown words, get the open-class tags as well as their own), rather than over all the tags.  When tagging, known words, rare or not, are given only the tags they were seen with, as with a model trained without this: this is more accurate than giving rare words the open-class tags too.  Training then only stores the conditional probabilities of those tags, instead of one for every tag for every history, which takes much less memory on large training sets.  Features are restricted to possible tags, as with possibleTagsOnly.</td></tr>
+ * <tr><td>streamTraining</td><td>boolean</td><td>false</td><td>Train</td><td>If true, the training files are read twice: once to build the dictionary and count the tokens, and again, a chunk of sentences at a time, to extract the features.  Otherwise every token is kept in memory between the two.  The model is the same either way; streaming is slower (the files are parsed twice), but its memory use does not grow with the size of the training files beyond a few ints per token.</td></tr>
+ * <tr><td>checkpointEvery</td><td>int</td><td>0</td><td>Train</td><td>With 'cg' or 'qn' search, save the state of training to the file model.checkpoint every this many iterations: the weights, and for 'qn' the L-BFGS history too.  With 'sgd' search, save the weights, the AdaGrad step sums and the pass reached every this many passes.  0 means never.  The checkpoint is deleted once the model is saved.</td></tr>
+ * <tr><td>resume</td><td>boolean</td><td>false</td><td>Train</td><td>If true, continue training from model.checkpoint, as saved with checkpointEvery by a run that was interrupted.  The training data and options must be the same as for that run.  As with checkpointEvery, the checkpoint is deleted once the model is saved.</td></tr>
+ * <tr><td>warmStart</td><td>String</td><td>""</td><td>Train</td><td>A model, trained with the same arch, whose feature weights the training starts from (features it doesn't have start at zero), with 'cg', 'qn', 'owlqn' or 'sgd' search.  Retraining on more or newer data then takes fewer iterations.</td></tr>
+ * <tr><td>sgdPasses</td><td>int</td><td>2</td><td>Train</td><td>For 'sgd' search, the most passes over the training data.  Training stops sooner if the likelihood estimate stops changing.</td></tr>
+ * <tr><td>sgdBatchSize</td><td>int</td><td>1000</td><td>Train</td><td>For 'sgd' search, the number of training tokens in each batch.  The weights are updated after each batch.</td></tr>
+ * <tr><td>sgdLearningRate</td><td>double</td><td>0.5</td><td>Train</td><td>For 'sgd' search, the AdaGrad learning rate.</td></tr>
+ * <tr><td>featureHashBits</td><td>int</td><td>0</td><td>Train</td><td>If greater than 0, each extractor value is hashed into one of 2<sup>featureHashBits</sup> buckets, and the features are on the buckets rather than the values, in training and when tagging.  The number of features, and so the size of the model and the memory used to tag with it, is then bounded whatever the size of the training data, and looking up a feature compares no strings.  Values that share a bucket share its features; how many do is reported when training.  0 means no hashing.</td></tr>
  * <tr><td>sigmaSquared</td><td>double</td><td>0.5</td><td>Train</td><td>Sigma-squared smoothing/regularization parameter to be used for conjugate gradient search.  Default usually works reasonably well.</td></tr>
  * <tr><td>iterations</td><td>int</td><td>100</td><td>Train</td><td>Number of iterations to be used for improved iterative scaling.</td></tr>
  * <tr><td>rareWordThresh</td><td>int</td><td>5</td><td>Train</td><td>Words that appear fewer than this number of times during training are considered rare words and use extra rare word features.</td></tr>
@@ -197,6 +234,9 @@ import java.text.DecimalFormat;
  * <tr><td>curWordMinFeatureThreshold</td><td>int</td><td>2</td><td>Train</td><td>Words that occur more than this number of times will generate features with all of the tags they've been seen with.</td></tr>
  * <tr><td>rareWordMinFeatureThresh</td><td>int</td><td>10</td><td>Train</td><td>Features of rare words whose histories occur fewer than this number of times are discarded.</td></tr>
  * <tr><td>veryCommonWordThresh</td><td>int</td><td>250</td><td>Train</td><td>Words that occur more than this number of times form an equivalence class by themselves.  Ignored unless you are using ambiguity classes.</td></tr>
+ * <tr><td>localScoreCacheSize</td><td>int</td><td>10000</td><td>Tag,Test</td><td>Number of words whose local (current word only) feature scores are cached and shared across sentences and threads.  0 turns the cache off.</td></tr>
+ * <tr><td>decoder</td><td>String</td><td>exact</td><td>Tag,Test</td><td>How the best tags are found: 'exact' (Viterbi search), 'beam' (beam search, which is approximate but much faster for architectures with several tags of context on each side) or 'greedy' (the best tag for each word in turn, left to right, which is the fastest, but only suitable for architectures that just look at tags to the left).  When testing, this may be a comma-separated list of decoders, which are each run, and their accuracy and speed reported side by side.</td></tr>
+ * <tr><td>beamSize</td><td>int</td><td>10</td><td>Tag,Test</td><td>Number of partial taggings kept by the beam decoder.</td></tr>
  * <tr><td>debug</td><td>boolean</td><td>boolean</td><td>All</td><td>Whether to write debugging information (words, top words, unknown words).  Useful for error analysis.</td></tr>
  * <tr><td>debugPrefix</td><td>String</td><td>N/A</td><td>All</td><td>File (path) prefix for where to write out the debugging information (relevant only if debug=true).</td></tr>
  * </table>
@@ -314,7 +354,8 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
   LambdaSolveTagger prob;
   HashMap<FeatureKey,Integer> fAssociations = new HashMap<FeatureKey,Integer>();
   int numExtractors = -1;
-  HashMap<String, int[]> fAssociations2 = new HashMap<String, int[]>();
+  /** Features by extractor number and value, for lookup when tagging. */
+  FeatureTable featureTable;
   //PairsHolder pairs = new PairsHolder();
   Extractors extractors;
   Extractors extractorsRare;
@@ -330,9 +371,23 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
 
   static final boolean OCCURRING_TAGS_ONLY = Boolean.valueOf(TaggerConfig.OCCURRING_TAGS_ONLY);
   static final boolean POSSIBLE_TAGS_ONLY = Boolean.valueOf(TaggerConfig.POSSIBLE_TAGS_ONLY);
+  static final boolean SPARSE_TRAINING = Boolean.valueOf(TaggerConfig.SPARSE_TRAINING);
 
   double defaultScore;
 
+  /**
+   * Local feature scores shared by all the TestSentences of this tagger,
+   * or null if caching across sentences is turned off.
+   */
+  LocalScoreCache localScoreCache;
+
+  /** What measurements of tagging are given to, or null for none. */
+  volatile TaggerMetrics metrics;
+
+  /** The decoder TestSentences use by default: "exact", "beam" or "greedy". */
+  String decoder = "exact";
+  int beamSize = Integer.parseInt(TaggerConfig.BEAM_SIZE);
+
   int leftContext;
   int rightContext;
 
@@ -385,6 +440,19 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
   boolean occurringTagsOnly = OCCURRING_TAGS_ONLY;
   boolean possibleTagsOnly = POSSIBLE_TAGS_ONLY;
 
+  /**
+   * Whether tag probabilities are normalized over each word's possible
+   * tags only.  This is how the model was trained, so it also applies
+   * when tagging.
+   */
+  boolean sparseTraining = SPARSE_TRAINING;
+
+  /**
+   * If greater than 0, extractor values are hashed into this many bits
+   * (see FeatureTable), in training and so when tagging.
+   */
+  int featureHashBits; // = 0
+
   private boolean initted = false;
 
   boolean VERBOSE = false;
@@ -469,11 +537,21 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
       veryCommonWordThresh = config.getVeryCommonWordThresh();
       occurringTagsOnly = config.occurringTagsOnly();
       possibleTagsOnly = config.possibleTagsOnly();
+      sparseTraining = config.getSparseTraining();
+      featureHashBits = config.getFeatureHashBits();
       // System.err.println("occurringTagsOnly: "+occurringTagsOnly);
       // System.err.println("possibleTagsOnly: "+possibleTagsOnly);
 
       if(config.getDefaultScore() >= 0)
         defaultScore = config.getDefaultScore();
+
+      int cacheSize = config.getLocalScoreCacheSize();
+      if (cacheSize > 0) {
+        localScoreCache = new LocalScoreCache(cacheSize);
+      }
+
+      decoder = config.getDecoder();
+      beamSize = config.getBeamSize();
     }
 
     if (config == null || config.getMode() == TaggerConfig.Mode.TRAIN) {
@@ -535,14 +613,8 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     }
   }
 
-  /* Package access.  Not part of public API. */
-  /* Return the features * nums matrix for this word as a flat array. */
-  int[] getScores(String val) {
-    return fAssociations2.get(val);
-  }
-
   // serialize the ExtractorFrames and ExtractorFramesRare in filename
-  private void saveExtractors(OutputStream os) throws IOException {
+  void saveExtractors(OutputStream os) throws IOException {
 
     ObjectOutputStream out = new ObjectOutputStream(os);
 
@@ -559,7 +631,7 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
   }
 
   // Read the extractors from a stream.
-  private void readExtractors(InputStream file) throws IOException, ClassNotFoundException {
+  void readExtractors(InputStream file) throws IOException, ClassNotFoundException {
     ObjectInputStream in = new ObjectInputStream(file);
     extractors = (Extractors) in.readObject();
     extractorsRare = (Extractors) in.readObject();
@@ -603,8 +675,9 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
 
       saveExtractors(file);
 
-      file.writeInt(fAssociations.size());
-      for (Map.Entry<FeatureKey,Integer> item : fAssociations.entrySet()) {
+      HashMap<FeatureKey,Integer> associations = getFeatureAssociations();
+      file.writeInt(associations.size());
+      for (Map.Entry<FeatureKey,Integer> item : associations.entrySet()) {
         int numF = item.getValue();
         file.writeInt(numF);
         FeatureKey fk = item.getKey();
@@ -645,7 +718,12 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     //   System.err.println(" length of model holder " + new File(modelFileOrUrl).length());
     // }
 
-    readModelAndInit(config, rf, printLoading);
+    // a binary model in a plain file can be memory-mapped
+    File modelFile = new File(modelFileOrUrl);
+    if ( ! modelFile.isFile() || modelFileOrUrl.endsWith(".gz")) {
+      modelFile = null;
+    }
+    readModelAndInit(config, rf, printLoading, modelFile);
     rf.close();
   }
 
@@ -668,13 +746,27 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
    */
   protected void readModelAndInit(TaggerConfig config, DataInputStream rf,
                                   boolean printLoading) throws IOException, ClassNotFoundException {
+    readModelAndInit(config, rf, printLoading, null);
+  }
+
+  private void readModelAndInit(TaggerConfig config, DataInputStream rf,
+                                boolean printLoading, File modelFile)
+    throws IOException, ClassNotFoundException
+  {
     Timing t = new Timing();
     if (printLoading) t.doing("Reading POS tagger model from " + config.getModel());
     // then init tagger
     init(config);
     TaggerConfig.readConfig(rf); // TaggerConfig in file has already been put into config in constructor of TaggerConfig, so usually just read past it.
 
-    xSize = rf.readInt();
+    int first = rf.readInt();
+    if (first == BinaryModel.MAGIC) {
+      BinaryModel.read(this, rf, modelFile);
+      if (printLoading) t.done();
+      return;
+    }
+    // the original format has no magic number, so that was xSize
+    xSize = first;
     ySize = rf.readInt();
     dict.read(rf);
 
@@ -688,15 +780,13 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     numExtractors = extractors.getSize() + extractorsRare.getSize();
     int[] numFA = new int[numExtractors];
     int sizeAssoc = rf.readInt();
-    // init the Hash at the right size for efficiency (avoid resizing ops)
-    // mg2008: sizeAssoc defines the number of keys, whereas specifying
-    // sizeAssoc as argument defines an initial size.
-    // Unless load factor is >= 1, fAssociations is guaranteed to resize at least once.
-    //fAssociations = new HashMap<FeatureKey,Integer>(sizeAssoc);
-    fAssociations = new HashMap<FeatureKey,Integer>(sizeAssoc*2);
+    // Tagging only needs the feature table, so fAssociations is left
+    // empty, to be rebuilt from it if it is needed (see
+    // getFeatureAssociations), rather than keeping a FeatureKey and an
+    // Integer for every feature.
+    fAssociations = new HashMap<FeatureKey,Integer>();
 
-    //TODO: consider sizing this better, # of words
-    fAssociations2 = new HashMap<String,int[]>();
+    featureTable = new FeatureTable(sizeAssoc, featureHashBits);
 
     if (VERBOSE) System.err.printf("Reading %d feature keys...\n",sizeAssoc);
     PrintFile pfVP = null;
@@ -704,37 +794,14 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
       pfVP = new PrintFile("pairs.txt");
     }
 
-    int arr[] = null;
-    String lastVal = null;
     for (int i = 0; i < sizeAssoc; i++) {
       int numF = rf.readInt();
       FeatureKey fK = new FeatureKey();
       fK.read(rf);
       numFA[fK.num]++;
-      fAssociations.put(fK, numF);
-
-      // It turns out we'll often hit this case and have to do the hash lookup,
-      // if we changed saveModel to serialize the feature keys in order of the vals,
-      // this loop would be a lot faster.
-      //
-      // I don't know how to run the model train/export phase, so I'll just leave this as a
-      // suggestion for future work.
-      if(!fK.val.equals(lastVal)) {
-        arr = fAssociations2.get(fK.val);
-        if(arr == null) {
-          // First time we've encountered this word, allocate an array for scores
-          arr = new int[numFA.length * ySize];
-          for(int j = 0; j < arr.length; j++)
-            arr[j] = -1;
-          fAssociations2.put(fK.val, arr);
-        }
-
-        lastVal = fK.val;
-      }
-
-      int tagIndex = tags.getIndex(fK.tag);
-      arr[tagIndex * numFA.length + fK.num] = numF;
+      featureTable.add(fK.num, fK.val, tags.getIndex(fK.tag), numF);
     }
+    featureTable.compact();
 
     if (VERBOSE) {
       pfVP.close();
@@ -743,6 +810,7 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
       for (int k = 0; k < numFA.length; k++) {
         System.err.println(" Number of features of kind " + k + ' ' + numFA[k]);
       }
+      System.err.println(" " + featureTable);
     }
     prob = new LambdaSolveTagger(rf);
     if (VERBOSE) {
@@ -753,18 +821,54 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
 
 
   protected void dumpModel(PrintStream out) {
-    assert fAssociations.size() == prob.lambda.length;
-    for (Map.Entry<FeatureKey,Integer> fk : fAssociations.entrySet()) {
+    HashMap<FeatureKey,Integer> associations = getFeatureAssociations();
+    assert associations.size() == prob.lambda.length;
+    for (Map.Entry<FeatureKey,Integer> fk : associations.entrySet()) {
       out.println(fk.getKey() + ": " + prob.lambda[fk.getValue()]);
     }
   }
 
+  // A loaded model doesn't fill in fAssociations, so rebuild it from
+  // the feature table if it is needed.
+  HashMap<FeatureKey,Integer> getFeatureAssociations() {
+    if (fAssociations.isEmpty() && featureTable != null) {
+      fAssociations = featureTable.toAssociations(tags);
+    }
+    return fAssociations;
+  }
+
 
   /* Package access so it doesn't appear in public API. */
   boolean isRare(String word) {
     return dict.sum(word) < rareWordThresh;
   }
 
+  /**
+   * Returns the cache of local feature scores shared across sentences,
+   * which can be inspected for its size and hit rate.
+   *
+   * @return The cache, or null if the localScoreCacheSize option is 0
+   */
+  public LocalScoreCache getLocalScoreCache() {
+    return localScoreCache;
+  }
+
+  /**
+   * Sets what is told of each sentence tagged (and each text tokenized
+   * by the tagger's TaggerWrapper), from then on.  Measuring costs a
+   * little time, so it is off (null) by default.
+   *
+   * @param metrics The metrics to give the measurements to, or null for none
+   */
+  public void setMetrics(TaggerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /** Returns what measurements of tagging are given to, or null if none. */
+  public TaggerMetrics getMetrics() {
+    return metrics;
+  }
+
   // todo: clean this up. It seems like we'd be better off without this method. Used once in (MT's) PrefixTagger
   public TTags getTags() {
     return tags;
@@ -838,6 +942,73 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
   }
 
 
+  /**
+   * Tags a batch of sentences, using several threads if asked to.  Each
+   * thread has one TestSentence, whose buffers are reused for all the
+   * sentences it tags, and the threads take sentences from the batch
+   * a chunk at a time, so that long and short sentences even out.
+   * The result is the same as that of {@link #process}.
+   *
+   * @param sentences The sentences to tag
+   * @param parallelism The number of threads to tag with.  With 1 (or
+   *     fewer), the sentences are tagged in the calling thread.
+   * @return The tagged sentences, in the same order as the input
+   */
+  public List<ArrayList<TaggedWord>> tagBatch(final List<? extends List<? extends HasWord>> sentences,
+                                              int parallelism) {
+    final int numSentences = sentences.size();
+    int numThreads = Math.min(parallelism, (numSentences + BATCH_CHUNK_SIZE - 1) / BATCH_CHUNK_SIZE);
+    if (numThreads <= 1) {
+      return process(sentences);
+    }
+
+    final List<ArrayList<TaggedWord>> taggedSentences =
+      new ArrayList<ArrayList<TaggedWord>>(Collections.<ArrayList<TaggedWord>>nCopies(numSentences, null));
+    final AtomicInteger nextChunk = new AtomicInteger();
+    Runnable worker = new Runnable() {
+        public void run() {
+          TestSentence testSentence = new TestSentence(MaxentTagger.this);
+          int start;
+          while ((start = nextChunk.getAndAdd(BATCH_CHUNK_SIZE)) < numSentences) {
+            int end = Math.min(start + BATCH_CHUNK_SIZE, numSentences);
+            for (int i = start; i < end; i++) {
+              // each index is set by one thread; Future.get() publishes them
+              taggedSentences.set(i, testSentence.tagSentence(sentences.get(i), false));
+            }
+          }
+        }
+      };
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+      for (int i = 0; i < numThreads; i++) {
+        futures.add(executor.submit(worker));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while tagging a batch", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+    return taggedSentences;
+  }
+
+  /** The number of sentences a tagBatch thread takes at a time. */
+  private static final int BATCH_CHUNK_SIZE = 16;
+
+
   /**
    * Returns a new Sentence that is a copy of the given sentence with all the
    * words tagged with their part-of-speech. Convenience method when you only
@@ -866,6 +1037,37 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     return testSentence.tagSentence(sentence, reuseTags);
   }
 
+  /**
+   * Returns a new Sentence that is a copy of the given sentence with all the
+   * words tagged with their part-of-speech, found with the given decoder
+   * rather than the configured one.  For instance, callers with a tight
+   * time budget can ask for "greedy" decoding of a sentence.
+   * @param sentence sentence to tag
+   * @param decoder "exact", "beam" or "greedy" (see {@link TestSentence#setDecoder})
+   * @return tagged sentence
+   */
+  public ArrayList<TaggedWord> tagSentence(List<? extends HasWord> sentence,
+                                           String decoder) {
+    TestSentence testSentence = new TestSentence(this);
+    testSentence.setDecoder(decoder);
+    return testSentence.tagSentence(sentence, false);
+  }
+
+  /**
+   * Tags the sentence, and says how sure the tagger is: returns the k
+   * best taggings of the sentence, with their probabilities, and the
+   * marginal probability of each possible tag of each word.  These come
+   * from scoring the sentence once, so this costs about as much as
+   * tagging it with the exact decoder.
+   * @param sentence sentence to tag
+   * @param k the number of taggings wanted
+   * @return the taggings and tag probabilities
+   */
+  public SentenceScores scoreSentence(List<? extends HasWord> sentence, int k) {
+    TestSentence testSentence = new TestSentence(this);
+    return testSentence.scoreSentence(sentence, k);
+  }
+
   /**
    * Takes a sentence composed of CoreLabels and add the tags to the
    * CoreLabels, modifying the input sentence.
@@ -980,10 +1182,8 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     try {
       MaxentTagger tagger = new MaxentTagger(config.getModel(), config);
 
-      Timing t = new Timing();
       TestClassifier testClassifier = new TestClassifier(config, tagger);
-      long millis = t.stop();
-      printErrWordsPerSec(millis, testClassifier.getNumWords());
+      printErrWordsPerSec(testClassifier.getMillis(), testClassifier.getNumWords());
       testClassifier.printModelAndAccuracy(config, tagger);
     } catch (Exception e) {
       System.err.println("An error occurred while testing the tagger.");
@@ -1011,21 +1211,32 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     System.err.println("Samples from " + config.getFile());
     System.err.println("Number of features: " + feats.size());
     Problem p = new Problem(samples, feats);
-    LambdaSolveTagger prob = new LambdaSolveTagger(p, 0.0001, 0.00001, maxentTagger.fnumArr);
+    LambdaSolveTagger prob = new LambdaSolveTagger(p, 0.0001, 0.00001, maxentTagger.fnumArr, samples.getPossibleTags());
     maxentTagger.prob = prob;
-
-    if (config.getSearch().equals("owlqn")) {
-      CGRunner runner = new CGRunner(prob, config.getModel(), config.getSigmaSquared());
+    prob.setNumThreads(config.getNThreads());
+
+    String search = config.getSearch();
+    boolean iis = ! (search.equals("owlqn") || search.equals("cg") || search.equals("qn") || search.equals("sgd"));
+    if (iis && (config.getCheckpointEvery() > 0 || config.getResume() || config.getWarmStart().length() > 0)) {
+      System.err.println("Warning: checkpointEvery, resume and warmStart are ignored for iis search");
+    } else if (config.getWarmStart().length() > 0) {
+      maxentTagger.warmStart(config.getWarmStart());
+    }
+    CGRunner runner = new CGRunner(prob, config.getModel(), config.getSigmaSquared());
+    runner.setCheckpointIterations(config.getCheckpointEvery());
+    runner.setResume(config.getResume());
+    if (search.equals("owlqn")) {
       runner.solveL1(config.getRegL1());
-    } else if (config.getSearch().equals("cg")) {
-      CGRunner runner = new CGRunner(prob, config.getModel(), config.getSigmaSquared());
+    } else if (search.equals("cg")) {
       runner.solveCG();
-    } else if (config.getSearch().equals("qn")) {
-      CGRunner runner = new CGRunner(prob, config.getModel(), config.getSigmaSquared());
+    } else if (search.equals("qn")) {
       runner.solveQN();
+    } else if (search.equals("sgd")) {
+      runner.solveSGD(config.getSGDLearningRate(), config.getSGDBatchSize(), config.getSGDPasses());
     } else {
       prob.improvedIterative(config.getIterations());
     }
+    prob.setNumThreads(1);
 
     if (prob.checkCorrectness()) {
       System.err.println("Model is correct [empirical expec = model expec]");
@@ -1033,6 +1244,47 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
       System.err.println("Model is not correct");
     }
     maxentTagger.saveModel(modelName, config);
+    if ( ! iis && (config.getCheckpointEvery() > 0 || config.getResume())) {
+      // the model is saved, so the checkpoint isn't needed (even if this
+      // run only resumed from it)
+      new File(runner.checkpointFile()).delete();
+    }
+  }
+
+
+  /**
+   * Starts the weights of the features being trained at their weights in
+   * another model (features not in it stay at zero), to retrain it on
+   * more or newer data.  The features are matched by their FeatureKey,
+   * so the models must have the same extractors.
+   */
+  private void warmStart(String modelFile) throws IOException {
+    MaxentTagger warm;
+    try {
+      warm = new MaxentTagger(modelFile);
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException("Couldn't read warmStart model " + modelFile, e);
+    }
+    if ( ! warm.extractors.toString().equals(extractors.toString()) ||
+         ! warm.extractorsRare.toString().equals(extractorsRare.toString())) {
+      throw new IllegalArgumentException("warmStart model " + modelFile + " has other extractors: " +
+                                         warm.extractors + " " + warm.extractorsRare);
+    }
+    if (warm.featureHashBits != featureHashBits) {
+      throw new IllegalArgumentException("warmStart model " + modelFile + " has featureHashBits " +
+                                         warm.featureHashBits + ", not " + featureHashBits);
+    }
+    HashMap<FeatureKey,Integer> warmAssociations = warm.getFeatureAssociations();
+    int found = 0;
+    for (Map.Entry<FeatureKey,Integer> fk : fAssociations.entrySet()) {
+      Integer warmNum = warmAssociations.get(fk.getKey());
+      if (warmNum != null) {
+        prob.lambda[fk.getValue()] = warm.prob.lambda[warmNum];
+        found++;
+      }
+    }
+    System.err.println("warmStart: took the weights of " + found + " of " + fAssociations.size() +
+                       " features from " + modelFile);
   }
 
 
@@ -1080,13 +1332,12 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     private final TaggerConfig config;
     private final MaxentTagger tagger;
     private TokenizerFactory<? extends HasWord> tokenizerFactory;
-    private int sentNum; // = 0;
+    private final AtomicInteger sentNum = new AtomicInteger();
 
     private final boolean tokenize;
     private final boolean outputVerbosity, outputLemmas;
     private final OutputStyle outputStyle;
     private final String tagSeparator;
-    private final Morphology morpha;
 
     protected TaggerWrapper(MaxentTagger tagger) {
       this(tagger.config, tagger);
@@ -1111,22 +1362,47 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
       outputStyle = OutputStyle.fromShortName(config.getOutputFormat());
       outputVerbosity = config.getOutputVerbosity();
       outputLemmas = config.getOutputLemmas();
-      morpha = (outputLemmas) ? new Morphology() : null;
       tokenize = config.getTokenize();
       tagSeparator = config.getTagSeparator();
     }
 
-    public String apply(String o) {
-      StringBuilder taggedResults = new StringBuilder();
-      TestSentence testSentence = new TestSentence(tagger);
+    MaxentTagger getTagger() {
+      return tagger;
+    }
 
+    /** Splits text into sentences of words, as apply does. */
+    List<List<HasWord>> tokenize(String text) {
+      TaggerMetrics metrics = tagger.metrics;
+      long start = (metrics != null) ? System.nanoTime() : 0;
       List<List<HasWord>> sentences;
       if (tokenize) {
-        sentences = tokenizeText(new StringReader(o), tokenizerFactory);
+        sentences = tokenizeText(new StringReader(text), tokenizerFactory);
       } else {
         sentences = new ArrayList<List<HasWord>>();
-        sentences.add(Sentence.toWordList(Arrays.asList(o.split("\\s+"))));
+        sentences.add(Sentence.toWordList(Arrays.asList(text.split("\\s+"))));
+      }
+      if (metrics != null) {
+        metrics.textTokenized(sentences.size(), System.nanoTime() - start);
       }
+      return sentences;
+    }
+
+    // A TaggerWrapper may be shared between threads (MaxentTaggerServer
+    // does so), so all mutable state, including the Morphology, is
+    // local to a single call.
+    public String apply(String o) {
+      return apply(o, new TestSentence(tagger));
+    }
+
+    /**
+     * As apply, but tags with the given TestSentence, so that a thread
+     * that tags a lot can reuse one.
+     */
+    String apply(String o, TestSentence testSentence) {
+      StringBuilder taggedResults = new StringBuilder();
+      Morphology morpha = (outputLemmas) ? new Morphology() : null;
+
+      List<List<HasWord>> sentences = tokenize(o);
 
       for (List<? extends HasWord> sent : sentences) {
         if (sent.size() > 0 && sent.get(0) instanceof CoreLabel) {
@@ -1146,7 +1422,7 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
           break;
         case XML:
         case INLINE_XML:
-          taggedResults.append(getXMLWords(sent, sentNum++, outputLemmas));
+          taggedResults.append(getXMLWords(sent, sentNum.getAndIncrement(), outputLemmas));
           break;
         case SLASH_TAGS:
           taggedResults.append(Sentence.listToString(sent, false,
@@ -1403,8 +1679,13 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
           TaggedFileRecord record = TaggedFileRecord.createRecord(config, filename);
           runTagger(record.reader(), writer, outputStyle);
         } else {
-          br = IOUtils.readReaderFromString(config.getFile(), config.getEncoding());
-          runTagger(br, writer, config.getTagInside(), outputStyle);
+          List<File> files = listTextFiles(filename);
+          if (files != null) {
+            runTagger(files, writer, outputStyle);
+          } else {
+            br = IOUtils.readReaderFromString(config.getFile(), config.getEncoding());
+            runTagger(br, writer, config.getTagInside(), outputStyle);
+          }
         }
       } else {
         System.err.println("Type some text to tag, then EOF.");
@@ -1525,7 +1806,17 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     throws IOException
   {
     Timing t = new Timing();
+    int numWords = tagDocument(document, writer, outputStyle);
+    long millis = t.stop();
+    printErrWordsPerSec(millis, numWords);
+  }
 
+  /** Tags and writes out a document, and returns the number of words in it. */
+  private <X extends HasWord> int tagDocument(Iterable<List<X>> document,
+                                              BufferedWriter writer,
+                                              OutputStyle outputStyle)
+    throws IOException
+  {
     //Counts
     int numWords = 0;
     int numSentences = 0;
@@ -1556,8 +1847,7 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     }
 
     writer.flush();
-    long millis = t.stop();
-    printErrWordsPerSec(millis, numWords);
+    return numWords;
   }
 
 
@@ -1581,6 +1871,14 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
                         String tagInside, OutputStyle outputStyle)
     throws IOException
   {
+    runTagger(documentPreprocessor(reader, tagInside), writer, outputStyle);
+  }
+
+  /**
+   * A DocumentPreprocessor that splits the text from the reader into
+   * sentences of tokens to tag, as set up in the TaggerConfig.
+   */
+  private DocumentPreprocessor documentPreprocessor(BufferedReader reader, String tagInside) {
     String sentenceDelimiter = config.getSentenceDelimiter();
     if (sentenceDelimiter != null && sentenceDelimiter.equals("newline")) {
       sentenceDelimiter = "\n";
@@ -1599,8 +1897,184 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     }
     docProcessor.setTokenizerFactory(tokenizerFactory);
     docProcessor.setEncoding(config.getEncoding());
+    return docProcessor;
+  }
+
+
+  /**
+   * The files that the name of a textFile stands for, if it is a
+   * directory or has the wildcards * or ? in its last part, sorted by
+   * name.  The files in a directory are all its files but hidden ones;
+   * wildcards only match file names (such as <code>data/*.txt</code>,
+   * not <code>data/*&#47;text</code>).  If the name is that of one file
+   * (even if it has a * or ?), or of no file and has no wildcards, this
+   * returns null.  If it matches no files, that is an error, rather than
+   * a run that tags nothing.
+   *
+   * @throws IOException If the directory can't be listed, or nothing
+   *     matches the name
+   */
+  static List<File> listTextFiles(String filename) throws IOException {
+    File file = new File(filename);
+    File dir;
+    final Pattern namePattern;
+    if (file.isDirectory()) {
+      dir = file;
+      namePattern = null;
+    } else if ( ! file.exists() && (file.getName().indexOf('*') >= 0 || file.getName().indexOf('?') >= 0)) {
+      dir = file.getParentFile();
+      if (dir == null) {
+        dir = new File(".");
+      }
+      StringBuilder regex = new StringBuilder();
+      for (String part : file.getName().split("(?=[*?])|(?<=[*?])")) {
+        if (part.equals("*")) {
+          regex.append(".*");
+        } else if (part.equals("?")) {
+          regex.append('.');
+        } else if (part.length() > 0) {
+          regex.append(Pattern.quote(part));
+        }
+      }
+      namePattern = Pattern.compile(regex.toString());
+    } else {
+      return null;
+    }
+
+    File[] matches = dir.listFiles(new FileFilter() {
+        public boolean accept(File f) {
+          if (namePattern == null) {
+            return f.isFile() && ! f.isHidden();
+          }
+          return f.isFile() && namePattern.matcher(f.getName()).matches();
+        }
+      });
+    if (matches == null) {
+      throw new IOException("Cannot list the files in " + dir);
+    }
+    if (matches.length == 0) {
+      throw new IOException("No files match " + filename);
+    }
+    Arrays.sort(matches);
+    return Arrays.asList(matches);
+  }
+
+  /**
+   * Tags several files, nthreads (from the TaggerConfig) at a time, all
+   * with this tagger.  If the TaggerConfig has an outputDir, each file's
+   * output is written to a file there, named as the file with ".tag"
+   * added.  Otherwise the outputs are all written to the given writer,
+   * one after another in the order of the files: each is kept in memory
+   * until those before it are written, and no more than twice nthreads
+   * files are tagged ahead of the one being waited for.  A file that
+   * can't be read or written is reported and skipped, and an IOException
+   * is thrown once the others are done.  At the end, the total words
+   * tagged per second is reported.
+   */
+  public void runTagger(List<File> files, BufferedWriter writer, OutputStyle outputStyle)
+    throws IOException
+  {
+    String outputDir = config.getOutputDir();
+    File dir = null;
+    if (outputDir.length() > 0) {
+      dir = new File(outputDir);
+      if ( ! dir.isDirectory() && ! dir.mkdirs()) {
+        throw new IOException("Cannot create the output directory " + outputDir);
+      }
+    }
+
+    Timing t = new Timing();
+    AtomicInteger numWords = new AtomicInteger();
+    int numFiles = files.size();
+    int numThreads = Math.max(1, Math.min(config.getNThreads(), numFiles));
+    int maxAhead = 2 * numThreads;
+    int numFailed = 0;
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<String>> futures = new ArrayList<Future<String>>(numFiles);
+      int numDone = 0;
+      for (File file : files) {
+        File outputFile = (dir == null) ? null : new File(dir, file.getName() + ".tag");
+        futures.add(executor.submit(tagFileTask(file, outputFile, outputStyle, numWords)));
+        while (futures.size() - numDone > maxAhead) {
+          numFailed += writeTaggedFile(files.get(numDone), futures, numDone, writer);
+          numDone++;
+        }
+      }
+      while (numDone < numFiles) {
+        numFailed += writeTaggedFile(files.get(numDone), futures, numDone, writer);
+        numDone++;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while tagging files");
+    } finally {
+      executor.shutdownNow();
+    }
+    writer.flush();
 
-    runTagger(docProcessor, writer, outputStyle);
+    long millis = t.stop();
+    System.err.println("Tagged " + (numFiles - numFailed) + " files with " + numThreads + " threads.");
+    printErrWordsPerSec(millis, numWords.get());
+    if (numFailed > 0) {
+      throw new IOException(numFailed + " of " + numFiles + " files could not be tagged");
+    }
+  }
+
+  /**
+   * Tags a file, writing its output to outputFile, or, if that is null,
+   * returning it.
+   */
+  private Callable<String> tagFileTask(final File file, final File outputFile,
+                                       final OutputStyle outputStyle,
+                                       final AtomicInteger numWords) {
+    return new Callable<String>() {
+        public String call() throws IOException {
+          BufferedReader reader = IOUtils.readReaderFromString(file.getPath(), config.getEncoding());
+          Writer out = (outputFile == null) ? new StringWriter() :
+            new OutputStreamWriter(new FileOutputStream(outputFile), config.getEncoding());
+          BufferedWriter writer = new BufferedWriter(out);
+          try {
+            numWords.addAndGet(tagDocument(documentPreprocessor(reader, config.getTagInside()), writer, outputStyle));
+          } finally {
+            IOUtils.closeIgnoringExceptions(reader);
+            writer.close();
+          }
+          return (outputFile == null) ? out.toString() : null;
+        }
+      };
+  }
+
+  /**
+   * Waits for the i-th file to be tagged, and writes out its output, if
+   * it was returned.  Returns 1 if the file failed, and 0 if not.
+   */
+  private static int writeTaggedFile(File file, List<Future<String>> futures, int i,
+                                     BufferedWriter writer)
+    throws IOException, InterruptedException
+  {
+    String output;
+    try {
+      output = futures.get(i).get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        System.err.println("Could not tag " + file + ": " + cause);
+        return 1;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      futures.set(i, null);
+    }
+    if (output != null) {
+      writer.write(output);
+    }
+    return 0;
   }
 
   public void outputSentence(List<? extends HasWord> sentence,
@@ -1,22 +1,81 @@
 package edu.stanford.nlp.tagger.maxent;
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.PrintWriter;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.stanford.nlp.io.EncodingPrintWriter;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.Sentence;
 import edu.stanford.nlp.util.StringUtils;
 
 
 /** A POS tagger server for the Stanford POS Tagger.
  *  Runs on a socket and waits for text to tag and returns the
  *  tagged text.
+ *  <p>
+ *  By default, each connection carries one request: a line of text,
+ *  answered with the tagged text, after which the server closes the
+ *  connection.  Each connection gets a new thread.
+ *  <p>
+ *  With <code>-keepAlive true</code>, a connection instead carries any
+ *  number of requests, one per line, and the server answers each with
+ *  one line (any line breaks in the tagged text become spaces, so the
+ *  default slashTags output suits this best), in order, until the
+ *  client closes its side.  Requests may be pipelined: a client can
+ *  send many before reading the answers.  One thread does all the
+ *  socket I/O, without blocking, and puts the requests of all the
+ *  connections on one queue, which a fixed pool of
+ *  <code>-serverThreads</code> tagging threads take from in micro-batches
+ *  of up to <code>-microBatchSize</code> requests, waiting up to
+ *  <code>-microBatchMillis</code> to fill one (see TaggingWorker).  The
+ *  answers of a connection are put back in the order of its requests.
+ *  <p>
+ *  Admission control: the queue holds at most <code>-maxQueued</code>
+ *  requests, and a request that comes when it is full is shed, answered
+ *  at once with {@link #BUSY_LINE} (or a busy status, in the binary
+ *  protocol), rather than waiting behind the others.  The server also
+ *  stops reading from a connection that has <code>-maxPending</code>
+ *  requests unanswered, and stops accepting connections while it has
+ *  <code>-maxConnections</code> of them, so that a burst of clients
+ *  backs up in TCP rather than in the server's memory.  For the same
+ *  reason, a request line may be at most TaggerProtocol.MAX_MESSAGE
+ *  bytes long; the server closes a connection that sends a longer one.
+ *  <p>
+ *  With <code>-metricsPort</code>, the server also has an HTTP endpoint
+ *  for monitoring; see main.
+ *  <p>
+ *  A keep-alive server also speaks the framed binary protocol of
+ *  {@link TaggerProtocol}, on connections that start with its magic
+ *  number.  This carries batches of sentences, as text or as token
+ *  arrays (optionally with tags to keep), and answers with tags (as
+ *  strings or ids), character offsets and, if asked, lemmas, so clients
+ *  don't have to parse the tagged text.
  *
  * @author Christopher Manning
  */
@@ -36,11 +95,81 @@ public class MaxentTaggerServer {
    */
   private final ServerSocket listener;
 
+  /**
+   * The channel of the listener socket.
+   */
+  private final ServerSocketChannel serverChannel;
+
   /**
    * The classifier that does the actual tagging.
    */
   private final MaxentTagger.TaggerWrapper tagger;
 
+  /**
+   * Whether connections carry many requests; see the class comment.
+   */
+  private final boolean keepAlive;
+
+  /**
+   * The number of tagging threads, in keepAlive mode.
+   */
+  private final int nThreads;
+
+  /**
+   * The most requests of a connection waiting for answers before the
+   * server stops reading from it, in keepAlive mode.
+   */
+  private final int maxPending;
+
+  /**
+   * The most open connections before the server stops accepting, in
+   * keepAlive mode.
+   */
+  private final int maxConnections;
+
+  /**
+   * The most requests waiting for a tagging thread, in keepAlive mode;
+   * more are shed.
+   */
+  private final int maxQueued;
+
+  /**
+   * The most requests a tagging thread takes at once, in keepAlive mode.
+   */
+  private final int microBatchSize;
+
+  /**
+   * How long a tagging thread waits to fill a batch, in keepAlive mode.
+   */
+  private final long microBatchMillis;
+
+  /**
+   * The port of the metrics endpoint, or 0 for none.
+   */
+  private final int metricsPort;
+
+  /**
+   * The answer line to a request that was shed.
+   */
+  public static final String BUSY_LINE = "%BUSY";
+
+  /**
+   * The open connections, in keepAlive mode.  Only the server loop's
+   * thread changes it.
+   */
+  private volatile int numConnections;
+
+  /**
+   * The number of requests shed since the server started.
+   */
+  private final AtomicLong numShed = new AtomicLong();
+
+  // The keepAlive server loop's selector, and the requests going to
+  // and coming back from the tagging threads
+  private Selector selector;
+  private BlockingQueue<Request> queue;
+  private final ConcurrentLinkedQueue<Request> finished = new ConcurrentLinkedQueue<Request>();
+
 
   //// Constructors
 
@@ -55,8 +184,44 @@ public class MaxentTaggerServer {
   public MaxentTaggerServer(int port, MaxentTagger.TaggerWrapper tagger, String charset) 
     throws IOException 
   {
+    this(port, tagger, charset, new Properties());
+  }
+
+  /**
+   * Creates a new tagger server on the specified port, with the options
+   * of the command line (see main) for how it serves: keepAlive,
+   * serverThreads, maxPending, maxConnections, maxQueued, microBatchSize,
+   * microBatchMillis and metricsPort.
+   *
+   * @param port the port this server listens on.
+   * @param tagger The classifier which will do the tagging
+   * @param charset The character set for encoding Strings over the socket stream, e.g., "utf-8"
+   * @param props The server options; those not given have their defaults
+   * @throws java.io.IOException If there is a problem creating a ServerSocket
+   */
+  public MaxentTaggerServer(int port, MaxentTagger.TaggerWrapper tagger, String charset, Properties props)
+    throws IOException
+  {
+    keepAlive = Boolean.parseBoolean(props.getProperty("keepAlive", "false"));
+    nThreads = Integer.parseInt(props.getProperty("serverThreads",
+                                                  Integer.toString(Runtime.getRuntime().availableProcessors())));
+    maxPending = Integer.parseInt(props.getProperty("maxPending", "64"));
+    maxConnections = Integer.parseInt(props.getProperty("maxConnections", "1024"));
+    maxQueued = Integer.parseInt(props.getProperty("maxQueued", "1024"));
+    microBatchSize = Integer.parseInt(props.getProperty("microBatchSize", "16"));
+    microBatchMillis = Long.parseLong(props.getProperty("microBatchMillis", "0"));
+    metricsPort = Integer.parseInt(props.getProperty("metricsPort", "0"));
+    if (nThreads < 1 || maxPending < 1 || maxConnections < 1 || maxQueued < 1 || microBatchSize < 1) {
+      throw new IllegalArgumentException("MaxentTaggerServer: threads, pending and queued requests, connections " +
+                                         "and batch size must be positive");
+    }
+    if (microBatchMillis < 0) {
+      throw new IllegalArgumentException("MaxentTaggerServer: microBatchMillis can't be negative");
+    }
     this.tagger = tagger;
-    listener = new ServerSocket(port);
+    serverChannel = ServerSocketChannel.open();
+    listener = serverChannel.socket();
+    listener.bind(new InetSocketAddress(port));
     this.charset = charset;
   }
 
@@ -67,6 +232,23 @@ public class MaxentTaggerServer {
    */
   @SuppressWarnings({"InfiniteLoopStatement", "ConstantConditions", "null"})
   public void run() {
+    if (metricsPort > 0) {
+      try {
+        new MetricsEndpoint(metricsPort).start();
+      } catch (IOException e) {
+        System.err.println("MaxentTaggerServer: couldn't start the metrics endpoint on port " + metricsPort);
+        e.printStackTrace(System.err);
+      }
+    }
+    if (keepAlive) {
+      try {
+        runKeepAlive();
+      } catch (IOException e) {
+        System.err.println("MaxentTaggerServer: server loop failed");
+        e.printStackTrace(System.err);
+      }
+      return;
+    }
     if (DEBUG) {
       System.err.println("Starting server loop");
     }
@@ -93,8 +275,537 @@ public class MaxentTaggerServer {
   }
 
 
+  /**
+   * The keepAlive server loop: this thread does all the socket I/O, and
+   * the TaggingWorkers tag.  A worker hands its answers back through
+   * <code>finished</code> and wakes the selector, so that only this
+   * thread touches a Connection.
+   */
+  @SuppressWarnings({"InfiniteLoopStatement"})
+  private void runKeepAlive() throws IOException {
+    if (DEBUG) {
+      System.err.println("Starting keep-alive server loop with " + nThreads + " tagging threads");
+    }
+    selector = Selector.open();
+    serverChannel.configureBlocking(false);
+    SelectionKey acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    queue = new ArrayBlockingQueue<Request>(maxQueued);
+    for (int i = 1; i <= nThreads; i++) {
+      new TaggingWorker(i).start();
+    }
+
+    while (true) {
+      selector.select();
+      for (Request done; (done = finished.poll()) != null; ) {
+        done.connection.finished(done);
+      }
+      for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+        SelectionKey key = it.next();
+        it.remove();
+        try {
+          if ( ! key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+              continue;
+            }
+            if (DEBUG) {
+              System.err.println("Accepted connection from " + channel.socket().getInetAddress().getHostName());
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
+            clientKey.attach(new Connection(channel, clientKey));
+            numConnections++;
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          if (key.isReadable()) {
+            connection.read();
+          }
+          if (key.isValid() && key.isWritable()) {
+            connection.write();
+          }
+        } catch (IOException e) {
+          if (DEBUG) {
+            System.err.println("MaxentTaggerServer: connection failed: " + e);
+          }
+          if (key.attachment() != null) {
+            ((Connection) key.attachment()).close();
+          }
+        }
+      }
+      acceptKey.interestOps((numConnections < maxConnections) ? SelectionKey.OP_ACCEPT : 0);
+    }
+  }
+
+  /** Tags a request of the line protocol, and returns the answer line. */
+  private byte[] answerLine(byte[] request, TestSentence testSentence) {
+    try {
+      String input = new String(request, charset);
+      if (input.endsWith("\r")) {
+        input = input.substring(0, input.length() - 1);
+      }
+      if (DEBUG) {
+        EncodingPrintWriter.err.println("Receiving: \"" + input + '\"', charset);
+      }
+      String output;
+      try {
+        output = tagger.apply(input, testSentence);
+      } catch (RuntimeException e) {
+        // answer anyway, so the client's answers stay in step with its requests
+        System.err.println("MaxentTaggerServer: error running POS tagger");
+        e.printStackTrace(System.err);
+        output = "";
+      }
+      String answer = output.replace("\r\n", " ").replace('\n', ' ').trim();
+      if (DEBUG) {
+        EncodingPrintWriter.err.println("Sending: \"" + answer + '\"', charset);
+      }
+      return (answer + '\n').getBytes(charset);
+    } catch (IOException e) {
+      // the charset was checked when the server started
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  /**
+   * Writes the measurements of the tagger, and those of the server's
+   * queue and connections if it is keepAlive, as plain text.
+   */
+  void reportMetrics(TaggerStats stats, StringBuilder out) {
+    stats.report(out, tagger.getTagger().getLocalScoreCache());
+    if (keepAlive) {
+      TaggerStats.line(out, "tagger_server_connections", numConnections);
+      TaggerStats.line(out, "tagger_server_queued_requests", (queue == null) ? 0 : queue.size());
+      TaggerStats.line(out, "tagger_server_shed_requests_total", numShed.get());
+    }
+  }
+
+
   //// Inner Classes
 
+  /**
+   * A minimal HTTP endpoint that answers every GET of /metrics (or /)
+   * with the server's measurements as plain text, for a monitoring
+   * system to scrape.  It gives the tagger a TaggerStats to measure with,
+   * unless it already has one.  Scrapes are answered one at a time, on
+   * this thread.
+   */
+  private class MetricsEndpoint extends Thread {
+
+    private final ServerSocket socket;
+    private final TaggerStats stats;
+
+    private MetricsEndpoint(int port) throws IOException {
+      super("MaxentTaggerServer-metrics");
+      setDaemon(true);
+      socket = new ServerSocket(port);
+      MaxentTagger maxentTagger = tagger.getTagger();
+      if (maxentTagger.getMetrics() instanceof TaggerStats) {
+        stats = (TaggerStats) maxentTagger.getMetrics();
+      } else {
+        stats = new TaggerStats();
+        maxentTagger.setMetrics(stats);
+      }
+    }
+
+    @Override
+    @SuppressWarnings({"InfiniteLoopStatement"})
+    public void run() {
+      while (true) {
+        Socket client = null;
+        try {
+          client = socket.accept();
+          client.setSoTimeout(10000);
+          answer(client);
+        } catch (IOException e) {
+          if (DEBUG) {
+            System.err.println("MaxentTaggerServer: metrics request failed: " + e);
+          }
+        } finally {
+          if (client != null) {
+            try {
+              client.close();
+            } catch (IOException e) {
+              // nothing more to do with it
+            }
+          }
+        }
+      }
+    }
+
+    private void answer(Socket client) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "us-ascii"));
+      String requestLine = in.readLine();
+      for (String header = requestLine; header != null && header.length() > 0; ) {
+        header = in.readLine();
+      }
+      String[] request = (requestLine == null) ? new String[0] : requestLine.split(" ");
+      String status;
+      StringBuilder body = new StringBuilder();
+      if (request.length < 2 || ! request[0].equals("GET")) {
+        status = "405 Method Not Allowed";
+        body.append("Only GET is supported\n");
+      } else if (request[1].equals("/") || request[1].equals("/metrics")) {
+        status = "200 OK";
+        reportMetrics(stats, body);
+      } else {
+        status = "404 Not Found";
+        body.append("The metrics are at /metrics\n");
+      }
+      byte[] bytes = body.toString().getBytes("utf-8");
+      OutputStream out = client.getOutputStream();
+      out.write(("HTTP/1.0 " + status + "\r\n" +
+                 "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+                 "Content-Length: " + bytes.length + "\r\n" +
+                 "Connection: close\r\n\r\n").getBytes("us-ascii"));
+      out.write(bytes);
+      out.flush();
+    }
+
+  } // end class MetricsEndpoint
+
+
+  /** A request of a keep-alive connection, and then its answer. */
+  private static class Request {
+
+    private final Connection connection;
+    /** The place of the request among those of its connection. */
+    private final long number;
+    private final byte[] input;
+    private final boolean binary;
+    private byte[] answer;
+
+    private Request(Connection connection, long number, byte[] input, boolean binary) {
+      this.connection = connection;
+      this.number = number;
+      this.input = input;
+      this.binary = binary;
+    }
+
+  } // end class Request
+
+
+  /**
+   * A tagging thread of a keep-alive server.  It takes the queued
+   * requests in batches of up to microBatchSize: it waits for one, takes
+   * as many more as are queued, and then waits up to microBatchMillis
+   * for the rest.  It tags them all with the same TestSentence, so the
+   * working arrays are reused, and then wakes the server loop once for
+   * the whole batch.  With microBatchMillis 0, a lone request isn't
+   * delayed, but under load the batches fill up.  If answering a request
+   * fails, even with an Error, it is answered with an error instead, so
+   * that the thread goes on and the connection isn't left waiting.
+   */
+  private class TaggingWorker extends Thread {
+
+    private final TestSentence testSentence = new TestSentence(tagger.getTagger());
+    private final List<Request> batch = new ArrayList<Request>(microBatchSize);
+
+    private TaggingWorker(int number) {
+      super("MaxentTaggerServer-" + number);
+      setDaemon(true);
+    }
+
+    @Override
+    @SuppressWarnings({"InfiniteLoopStatement"})
+    public void run() {
+      try {
+        while (true) {
+          nextBatch();
+          for (Request request : batch) {
+            try {
+              if ( ! request.connection.isOpen()) {
+                // no one to answer
+              } else if (request.binary) {
+                request.answer = TaggerProtocol.respond(tagger, request.input, testSentence);
+              } else {
+                request.answer = answerLine(request.input, testSentence);
+              }
+            } catch (Throwable e) {
+              System.err.println("MaxentTaggerServer: error answering a request");
+              e.printStackTrace(System.err);
+              request.answer = errorAnswer(request, e);
+            }
+            finished.add(request);
+          }
+          batch.clear();
+          selector.wakeup();
+        }
+      } catch (InterruptedException e) {
+        // the server is stopping
+      }
+    }
+
+    /**
+     * The answer to a request that failed: an error response, or in the
+     * line protocol an empty line, as answerLine gives when tagging fails.
+     */
+    private byte[] errorAnswer(Request request, Throwable e) {
+      if (request.binary) {
+        return TaggerProtocol.errorResponse(e.toString());
+      }
+      try {
+        return "\n".getBytes(charset);
+      } catch (IOException ioe) {
+        // the charset was checked when the server started
+        throw new RuntimeException(ioe);
+      }
+    }
+
+    private void nextBatch() throws InterruptedException {
+      batch.add(queue.take());
+      queue.drainTo(batch, microBatchSize - batch.size());
+      if (microBatchMillis > 0) {
+        long deadline = System.nanoTime() + microBatchMillis * 1000000L;
+        while (batch.size() < microBatchSize) {
+          long wait = deadline - System.nanoTime();
+          Request request = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+          if (request == null) {
+            break;
+          }
+          batch.add(request);
+          queue.drainTo(batch, microBatchSize - batch.size());
+        }
+      }
+    }
+
+  } // end class TaggingWorker
+
+
+  /**
+   * A keep-alive connection: its requests that haven't been answered
+   * yet, and the answers waiting to be written, in the order of the
+   * requests.  It speaks the line protocol, or the binary one of
+   * {@link TaggerProtocol} if its first byte is the first byte of
+   * TaggerProtocol.MAGIC.  Only the server loop's thread uses it, but for
+   * isOpen.
+   */
+  private class Connection {
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    /** The bytes of the request line being read, in the line protocol. */
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    /** The bytes not yet made into requests, in the binary protocol. */
+    private ByteBuffer input;
+    /** Requests read but not yet queued, since maxPending are unanswered. */
+    private final LinkedList<byte[]> waiting = new LinkedList<byte[]>();
+    /** Answers that came back before those of earlier requests. */
+    private final Map<Long,byte[]> early = new HashMap<Long,byte[]>();
+    private final LinkedList<ByteBuffer> answers = new LinkedList<ByteBuffer>();
+    /** The number of the next request read. */
+    private long nextRequest;
+    /** The number of the next request to answer. */
+    private long nextAnswer;
+    /** Whether the client has closed its side. */
+    private boolean endOfInput;
+    /** Whether any bytes have been read. */
+    private boolean started;
+    private boolean binary;
+    private boolean magicRead;
+
+    private Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+    }
+
+    private boolean isOpen() {
+      return key.isValid();
+    }
+
+    private void read() throws IOException {
+      readBuffer.clear();
+      int n = channel.read(readBuffer);
+      if (n < 0) {
+        endOfInput = true;
+        if ( ! binary && line.size() > 0) {
+          waiting.add(line.toByteArray());
+          line.reset();
+        }
+      } else if (n > 0) {
+        byte[] bytes = readBuffer.array();
+        if ( ! started) {
+          started = true;
+          binary = bytes[0] == (byte) (TaggerProtocol.MAGIC >>> 24);
+          if (binary) {
+            input = ByteBuffer.allocate(8192);
+          }
+        }
+        if (binary) {
+          readMessages(bytes, n);
+        } else {
+          int start = 0;
+          for (int i = 0; i < n; i++) {
+            if (bytes[i] == '\n') {
+              line.write(bytes, start, i - start);
+              checkLineLength();
+              waiting.add(line.toByteArray());
+              line.reset();
+              start = i + 1;
+            }
+          }
+          line.write(bytes, start, n - start);
+          checkLineLength();
+        }
+      }
+      submitWaiting();
+      update();
+    }
+
+    /**
+     * Fails, so that the connection is closed, if the request line being
+     * read is too long, rather than buffering it until a newline comes.
+     */
+    private void checkLineLength() throws IOException {
+      if (line.size() > TaggerProtocol.MAX_MESSAGE) {
+        throw new IOException("Request line longer than " + TaggerProtocol.MAX_MESSAGE + " bytes");
+      }
+    }
+
+    /** Adds n more bytes of the binary protocol, and the whole messages to waiting. */
+    private void readMessages(byte[] bytes, int n) throws IOException {
+      if (input.remaining() < n) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(input.capacity() * 2, input.position() + n));
+        input.flip();
+        input = larger.put(input);
+      }
+      input.put(bytes, 0, n);
+      input.flip();
+      if ( ! magicRead && input.remaining() >= 4) {
+        if (input.getInt() != TaggerProtocol.MAGIC) {
+          throw new IOException("Not the tagger protocol");
+        }
+        magicRead = true;
+      }
+      while (magicRead && input.remaining() >= 4) {
+        int length = input.getInt(input.position());
+        if (length < 0 || length > TaggerProtocol.MAX_MESSAGE) {
+          throw new IOException("Bad message length " + length);
+        }
+        if (input.remaining() < length + 4) {
+          break;
+        }
+        input.getInt();
+        byte[] message = new byte[length];
+        input.get(message);
+        waiting.add(message);
+      }
+      input.compact();
+    }
+
+    /** Submits waiting requests, while fewer than maxPending are unanswered. */
+    private void submitWaiting() {
+      while ( ! waiting.isEmpty() && nextRequest - nextAnswer < maxPending) {
+        submit(waiting.removeFirst());
+      }
+    }
+
+    /**
+     * Queues a request for the tagging threads, or if the queue is full,
+     * sheds it: answers at once that the server is busy.
+     */
+    private void submit(byte[] bytes) {
+      Request request = new Request(this, nextRequest++, bytes, binary);
+      if ( ! queue.offer(request)) {
+        numShed.incrementAndGet();
+        if (DEBUG) {
+          System.err.println("MaxentTaggerServer: queue full, shedding a request");
+        }
+        early.put(request.number, shedAnswer());
+        moveAnswers();
+      }
+    }
+
+    private byte[] shedAnswer() {
+      if (binary) {
+        return TaggerProtocol.busyResponse();
+      }
+      try {
+        return (BUSY_LINE + '\n').getBytes(charset);
+      } catch (IOException e) {
+        // the charset was checked when the server started
+        throw new RuntimeException(e);
+      }
+    }
+
+    /** Takes the answer to a request, and writes what answers it can. */
+    private void finished(Request request) {
+      if ( ! key.isValid()) {
+        return;
+      }
+      early.put(request.number, request.answer);
+      moveAnswers();
+      submitWaiting();
+      try {
+        write();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /** Moves the answers that are next in order to be written. */
+    private void moveAnswers() {
+      for (byte[] answer; (answer = early.remove(nextAnswer)) != null; nextAnswer++) {
+        answers.add(ByteBuffer.wrap(answer));
+      }
+    }
+
+    private void write() throws IOException {
+      while ( ! answers.isEmpty()) {
+        ByteBuffer answer = answers.getFirst();
+        channel.write(answer);
+        if (answer.hasRemaining()) {
+          break;
+        }
+        answers.removeFirst();
+      }
+      update();
+    }
+
+    /** Sets what to wait for, or closes the connection if it is done. */
+    private void update() {
+      if ( ! key.isValid()) {
+        return;
+      }
+      long unanswered = nextRequest - nextAnswer;
+      if (endOfInput && waiting.isEmpty() && unanswered == 0 && answers.isEmpty()) {
+        close();
+        return;
+      }
+      int ops = 0;
+      if ( ! endOfInput && waiting.isEmpty() && unanswered < maxPending) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if ( ! answers.isEmpty()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(ops);
+    }
+
+    private void close() {
+      if ( ! key.isValid()) {
+        return;
+      }
+      numConnections--;
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        System.err.println("MaxentTaggerServer:Connection: can't close connection");
+        e.printStackTrace();
+      }
+    }
+
+  } // end class Connection
+
+
   /**
    * A single user session, accepting one request, processing it, and
    * sending back the results.
@@ -227,10 +938,203 @@ public class MaxentTaggerServer {
       }
       stdIn.close();
     }
-  } // end static class NERClient
+
+    /**
+     * Sends every line of standard input to a keep-alive server over one
+     * connection, without waiting for the answers, and prints the answers
+     * as they come back, one line each, in order.  A second thread does
+     * the sending, so that neither side waits on the other.  The lines
+     * that the server shed (answered with BUSY_LINE) are counted apart
+     * from those tagged, and the rate reported is of the lines tagged.
+     */
+    private static void pipelineToMaxentTaggerServer(String host, int port, final String charset) throws IOException {
+      if (host == null) {
+        host = "localhost";
+      }
+      final Socket socket;
+      try {
+        socket = new Socket(host, port);
+      } catch (UnknownHostException e) {
+        System.err.print("Cannot find host: ");
+        System.err.println(host);
+        return;
+      }
+      socket.setTcpNoDelay(true);
+      final BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in, charset));
+      final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), charset));
+      final AtomicInteger numSent = new AtomicInteger();
+      Thread sender = new Thread("TaggerClient-sender") {
+          @Override
+          public void run() {
+            try {
+              for (String userInput; (userInput = stdIn.readLine()) != null; ) {
+                out.print(userInput);
+                out.print('\n');
+                numSent.incrementAndGet();
+              }
+              out.flush();
+              socket.shutdownOutput();
+            } catch (IOException e) {
+              System.err.println("I/O error sending to the tagger server: " + e);
+            }
+          }
+        };
+      long start = System.currentTimeMillis();
+      sender.start();
+
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), charset));
+      PrintWriter stdOut = new PrintWriter(new OutputStreamWriter(System.out, charset));
+      int numTagged = 0;
+      int numShed = 0;
+      for (String answer; (answer = in.readLine()) != null; ) {
+        stdOut.println(answer);
+        if (answer.equals(BUSY_LINE)) {
+          numShed++;
+        } else {
+          numTagged++;
+        }
+      }
+      stdOut.flush();
+      try {
+        sender.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      socket.close();
+      double seconds = (System.currentTimeMillis() - start) / 1000.0;
+      reportThroughput(numTagged, numShed, numSent.get(), seconds);
+    }
+
+    /**
+     * As pipelineToMaxentTaggerServer, but in the binary protocol: sends
+     * the lines of standard input in batches of batchSize, each line a
+     * text (or, if tokenized, a sentence of whitespace separated tokens),
+     * and prints the tagged words of each line on a line.
+     */
+    private static void pipelineBinaryToMaxentTaggerServer(String host, int port, final String charset,
+                                                           final int batchSize, final boolean tokenized)
+      throws IOException
+    {
+      if (host == null) {
+        host = "localhost";
+      }
+      final Socket socket;
+      try {
+        socket = new Socket(host, port);
+      } catch (UnknownHostException e) {
+        System.err.print("Cannot find host: ");
+        System.err.println(host);
+        return;
+      }
+      socket.setTcpNoDelay(true);
+      final BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in, charset));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      // the token arrays of each request sent, for reading its response
+      final BlockingQueue<List<List<String>>> sent = new LinkedBlockingQueue<List<List<String>>>();
+      final List<List<String>> endOfRequests = new ArrayList<List<String>>();
+      final AtomicInteger numSent = new AtomicInteger();
+      Thread sender = new Thread("TaggerClient-sender") {
+          @Override
+          public void run() {
+            try {
+              out.writeInt(TaggerProtocol.MAGIC);
+              List<String> texts = new ArrayList<String>();
+              for (String userInput; ; ) {
+                userInput = stdIn.readLine();
+                if (userInput != null) {
+                  texts.add(userInput);
+                }
+                if (texts.size() == batchSize || (userInput == null && texts.size() > 0)) {
+                  if (tokenized) {
+                    List<List<String>> sentences = new ArrayList<List<String>>();
+                    for (String text : texts) {
+                      String trimmed = text.trim();
+                      sentences.add((trimmed.length() == 0) ? new ArrayList<String>() :
+                                    Arrays.asList(trimmed.split("\\s+")));
+                    }
+                    TaggerProtocol.writeTagRequest(out, sentences, null, 0);
+                    sent.add(sentences);
+                  } else {
+                    TaggerProtocol.writeTagRequest(out, texts, 0);
+                    sent.add(Collections.nCopies(texts.size(), Collections.<String>emptyList()));
+                  }
+                  numSent.addAndGet(texts.size());
+                  texts = new ArrayList<String>();
+                }
+                if (userInput == null) {
+                  break;
+                }
+              }
+              out.flush();
+              socket.shutdownOutput();
+            } catch (IOException e) {
+              System.err.println("I/O error sending to the tagger server: " + e);
+            } finally {
+              sent.add(endOfRequests);
+            }
+          }
+        };
+      long start = System.currentTimeMillis();
+      sender.start();
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      PrintWriter stdOut = new PrintWriter(new OutputStreamWriter(System.out, charset));
+      int numTagged = 0;
+      int numShed = 0;
+      try {
+        for (List<List<String>> tokens; (tokens = sent.take()) != endOfRequests; ) {
+          StringBuilder[] lines = new StringBuilder[tokens.size()];
+          for (int item = 0; item < lines.length; item++) {
+            lines[item] = new StringBuilder();
+          }
+          List<List<CoreLabel>> sentences;
+          try {
+            sentences = TaggerProtocol.readTagResponse(in, 0, null, tokenized ? tokens : null);
+            numTagged += lines.length;
+          } catch (TaggerProtocol.ServerBusyException e) {
+            sentences = Collections.emptyList();
+            for (StringBuilder line : lines) {
+              line.append(BUSY_LINE);
+            }
+            numShed += lines.length;
+          }
+          for (int s = 0; s < sentences.size(); s++) {
+            List<CoreLabel> sentence = sentences.get(s);
+            if ( ! sentence.isEmpty()) {
+              int item = tokenized ? s : sentence.get(0).sentIndex();
+              lines[item].append(Sentence.listToString(sentence, false, "_")).append(' ');
+            }
+          }
+          for (StringBuilder line : lines) {
+            stdOut.println(line.toString().trim());
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      stdOut.flush();
+      socket.close();
+      double seconds = (System.currentTimeMillis() - start) / 1000.0;
+      reportThroughput(numTagged, numShed, numSent.get(), seconds);
+    }
+
+    /**
+     * Reports how many lines were tagged and how many the server shed as
+     * busy, and the rate of the lines tagged only, since shed lines are
+     * answered at once without being tagged.
+     */
+    private static void reportThroughput(int numTagged, int numShed, int numSent, double seconds) {
+      System.err.printf("Tagged %d of %d lines (%d shed as busy) in %.1f sec (%.1f lines tagged/sec)%n", numTagged,
+                        numSent, numShed, seconds, numTagged / Math.max(seconds, 0.001));
+    }
+
+  } // end static class TaggerClient
 
 
-  private static final String USAGE = "Usage: MaxentTaggerServer [-model file|-client] -port portNumber [other MaxentTagger options]";
+  private static final String USAGE = "Usage: MaxentTaggerServer [-model file|-client] -port portNumber " +
+    "[-keepAlive true [-serverThreads n] [-maxPending n] [-maxConnections n] [-maxQueued n] " +
+    "[-microBatchSize n] [-microBatchMillis ms]] [-metricsPort port] " +
+    "[-client -keepAlive true [-binary true [-batchSize n] [-tokenized true]]] [other MaxentTagger options]";
 
   /**
    * Starts this server on the specified port.  The classifier used can be
@@ -240,6 +1144,31 @@ public class MaxentTaggerServer {
    * /classifiers/ directory of the jar file.
    * <p>
    * Usage: <code>java edu.stanford.nlp.tagger.maxent.MaxentTaggerServer [-model file|-client] -port portNumber [other MaxentTagger options]</code>
+   * <p>
+   * With <code>-keepAlive true</code>, the server keeps connections open
+   * for many requests (see the class comment), tagging them on
+   * <code>-serverThreads</code> threads (by default, one per processor),
+   * with at most <code>-maxPending</code> (default 64) unanswered
+   * requests per connection and <code>-maxConnections</code> (default
+   * 1024) open connections.  Requests wait on a queue of at most
+   * <code>-maxQueued</code> (default 1024), beyond which they are shed,
+   * and the tagging threads take up to <code>-microBatchSize</code>
+   * (default 16) at once, waiting up to <code>-microBatchMillis</code>
+   * (default 0) for them.
+   * <p>
+   * With <code>-metricsPort port</code>, in either mode, the server also
+   * answers HTTP GETs of /metrics on that port with live measurements:
+   * sentences and words per second, sentence latency percentiles, the
+   * unknown word rate, the hit rate of the local score cache, the time
+   * spent tokenizing, scoring histories and decoding, and the queue and
+   * connections of a keepAlive server (see {@link TaggerStats}).
+   * <p>
+   * The client, given <code>-keepAlive true</code>, sends all of standard
+   * input down one connection, a line per request, without waiting for
+   * answers; with <code>-binary true</code> as well, it uses the binary
+   * protocol, sending <code>-batchSize</code> (default 100) lines per
+   * request, each tokenized by the server or, with <code>-tokenized
+   * true</code>, split at whitespace by the client.
    *
    * @param args Command-line arguments (described above)
    * @throws Exception If file or Java class problems with serialized classifier
@@ -253,6 +1182,7 @@ public class MaxentTaggerServer {
     // Use both Properties and TaggerConfig.  It's okay.
     Properties props = StringUtils.argsToProperties(args);
     String client = props.getProperty("client");
+    boolean keepAlive = Boolean.parseBoolean(props.getProperty("keepAlive", "false"));
 
     String portStr = props.getProperty("port");
     if (portStr == null || portStr.equals("")) {
@@ -275,12 +1205,20 @@ public class MaxentTaggerServer {
       if (encoding == null || "".equals(encoding)) {
         encoding = "utf-8";
       }
-      TaggerClient.communicateWithMaxentTaggerServer(host, port, encoding);
+      if (keepAlive && Boolean.parseBoolean(props.getProperty("binary", "false"))) {
+        int batchSize = Integer.parseInt(props.getProperty("batchSize", "100"));
+        boolean tokenized = Boolean.parseBoolean(props.getProperty("tokenized", "false"));
+        TaggerClient.pipelineBinaryToMaxentTaggerServer(host, port, encoding, batchSize, tokenized);
+      } else if (keepAlive) {
+        TaggerClient.pipelineToMaxentTaggerServer(host, port, encoding);
+      } else {
+        TaggerClient.communicateWithMaxentTaggerServer(host, port, encoding);
+      }
     } else {
       TaggerConfig config = new TaggerConfig(args);
       MaxentTagger tagger = new MaxentTagger(config.getModel(), config); // initializes tagger
       MaxentTagger.TaggerWrapper wrapper = new MaxentTagger.TaggerWrapper(tagger);
-      new MaxentTaggerServer(port, wrapper, config.getEncoding()).run();
+      new MaxentTaggerServer(port, wrapper, config.getEncoding(), props).run();
     }
   }
 
@@ -0,0 +1,256 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import edu.stanford.nlp.util.StringUtils;
+
+
+/**
+ * Makes a tagger model smaller: removes the features whose lambdas are
+ * near zero, quantizes the lambdas of the rest, and writes the model
+ * again.  A smaller model loads faster, and more taggers fit in memory.
+ * Usage:
+ * <blockquote><code>
+ * java edu.stanford.nlp.tagger.maxent.ModelPruner -model in.tagger
+ * -outputModel out.tagger [-threshold 0.0] [-lambdaBits 64]
+ * [-binary false] [-testFile test.txt]
+ * </code></blockquote>
+ * Features whose lambdas are less than <code>threshold</code> in
+ * magnitude are removed.  <code>lambdaBits</code> is 64 to keep the
+ * lambdas as they are, 32 to round them to floats, or 16 or 8 to
+ * replace them with the nearest of 2<sup>16</sup> or 2<sup>8</sup>
+ * values, chosen by k-means.  Quantized lambdas only take less space in
+ * a binary model (see {@link BinaryModel}), which <code>-binary
+ * true</code> writes, so <code>lambdaBits</code> other than 64 needs it;
+ * otherwise the model is written in the original format.  (16 bit codes
+ * only save space in a model with many more than 2<sup>16</sup>
+ * features; for a smaller one, BinaryModel writes doubles instead.)
+ * <p>
+ * The size of the new model is reported against that of the input, and
+ * for a binary model also against the input saved as a binary model
+ * without pruning or quantizing, since that is what it replaces.  With
+ * a <code>testFile</code>, both models are tested on it with
+ * {@link TestClassifier}, and the change in accuracy is reported.
+ */
+public class ModelPruner {
+
+  /** The most k-means iterations for a codebook. */
+  private static final int MAX_ITERATIONS = 20;
+
+  private ModelPruner() {
+  }
+
+
+  /**
+   * Removes the features whose lambdas are less than the threshold in
+   * magnitude from a loaded tagger, renumbering the others in order, and
+   * rebuilds its feature table.
+   *
+   * @return The number of features removed
+   */
+  static int prune(MaxentTagger tagger, double threshold) {
+    double[] lambda = tagger.prob.lambda;
+    int[] newNumbers = new int[lambda.length];
+    int numKept = 0;
+    for (int i = 0; i < lambda.length; i++) {
+      newNumbers[i] = (Math.abs(lambda[i]) >= threshold) ? numKept++ : -1;
+    }
+    double[] newLambda = new double[numKept];
+    for (int i = 0; i < lambda.length; i++) {
+      if (newNumbers[i] >= 0) {
+        newLambda[newNumbers[i]] = lambda[i];
+      }
+    }
+
+    HashMap<FeatureKey,Integer> associations = tagger.getFeatureAssociations();
+    HashMap<FeatureKey,Integer> newAssociations = new HashMap<FeatureKey,Integer>(numKept * 2);
+    FeatureTable featureTable = new FeatureTable(numKept, tagger.featureHashBits);
+    for (Map.Entry<FeatureKey,Integer> item : associations.entrySet()) {
+      int numF = newNumbers[item.getValue()];
+      if (numF >= 0) {
+        FeatureKey fK = item.getKey();
+        newAssociations.put(fK, numF);
+        featureTable.add(fK.num, fK.val, tagger.tags.getIndex(fK.tag), numF);
+      }
+    }
+    featureTable.compact();
+
+    tagger.fAssociations = newAssociations;
+    tagger.featureTable = featureTable;
+    tagger.prob = new LambdaSolveTagger(newLambda);
+    return lambda.length - numKept;
+  }
+
+
+  /**
+   * Quantizes the lambdas in place, so that they can be saved in
+   * lambdaBits bits: for 32, to the nearest float; for 16 or 8, to the
+   * nearest of at most 2<sup>lambdaBits</sup> values, found by k-means
+   * (in one dimension, starting from the means of equal sized groups of
+   * the sorted lambdas).
+   *
+   * @return The largest change made to a lambda
+   */
+  static double quantize(double[] lambda, int lambdaBits) {
+    double[] quantized;
+    if (lambdaBits == 64) {
+      return 0.0;
+    } else if (lambdaBits == 32) {
+      quantized = new double[lambda.length];
+      for (int i = 0; i < lambda.length; i++) {
+        quantized[i] = (float) lambda[i];
+      }
+    } else if (lambdaBits == 16 || lambdaBits == 8) {
+      double[] codebook = codebook(lambda, 1 << lambdaBits);
+      quantized = new double[lambda.length];
+      for (int i = 0; i < lambda.length; i++) {
+        quantized[i] = codebook[nearest(codebook, lambda[i])];
+      }
+    } else {
+      throw new IllegalArgumentException("lambdaBits must be 64, 32, 16 or 8: " + lambdaBits);
+    }
+    double maxError = 0.0;
+    for (int i = 0; i < lambda.length; i++) {
+      maxError = Math.max(maxError, Math.abs(quantized[i] - lambda[i]));
+      lambda[i] = quantized[i];
+    }
+    return maxError;
+  }
+
+  /** At most size values (sorted) to quantize the lambdas to. */
+  private static double[] codebook(double[] lambda, int size) {
+    double[] sorted = lambda.clone();
+    Arrays.sort(sorted);
+    int n = sorted.length;
+    int numDistinct = 0;
+    for (int i = 0; i < n; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        numDistinct++;
+      }
+    }
+    if (numDistinct <= size) {
+      return sorted;
+    }
+
+    double[] centers = new double[size];
+    for (int c = 0; c < size; c++) {
+      int start = (int) ((long) c * n / size);
+      int end = (int) ((long) (c + 1) * n / size);
+      double sum = 0.0;
+      for (int i = start; i < end; i++) {
+        sum += sorted[i];
+      }
+      centers[c] = sum / (end - start);
+    }
+    double[] sums = new double[size];
+    int[] counts = new int[size];
+    for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+      Arrays.fill(sums, 0.0);
+      Arrays.fill(counts, 0);
+      // the centers stay sorted, so the values of each are contiguous
+      int c = 0;
+      for (double value : sorted) {
+        while (c + 1 < size && value - centers[c] > centers[c + 1] - value) {
+          c++;
+        }
+        sums[c] += value;
+        counts[c]++;
+      }
+      boolean changed = false;
+      for (c = 0; c < size; c++) {
+        if (counts[c] > 0 && sums[c] / counts[c] != centers[c]) {
+          centers[c] = sums[c] / counts[c];
+          changed = true;
+        }
+      }
+      if ( ! changed) {
+        break;
+      }
+    }
+    return centers;
+  }
+
+  /** The index of the value in the sorted codebook nearest to this one. */
+  private static int nearest(double[] codebook, double value) {
+    int index = Arrays.binarySearch(codebook, value);
+    if (index >= 0) {
+      return index;
+    }
+    int above = -index - 1;
+    if (above == 0) {
+      return 0;
+    } else if (above == codebook.length) {
+      return codebook.length - 1;
+    }
+    return (value - codebook[above - 1] <= codebook[above] - value) ? above - 1 : above;
+  }
+
+
+  /** The accuracy of a model on a test file, as TestClassifier finds it. */
+  private static double accuracy(String modelFile, String testFile) throws Exception {
+    TaggerConfig config = new TaggerConfig("-model", modelFile, "-testFile", testFile, "-verboseResults", "false");
+    MaxentTagger tagger = new MaxentTagger(modelFile, config);
+    return new TestClassifier(config, tagger).getAccuracy();
+  }
+
+
+  public static void main(String[] args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
+    if ( ! props.containsKey("model") || ! props.containsKey("outputModel")) {
+      System.err.println("Usage: java edu.stanford.nlp.tagger.maxent.ModelPruner -model modelFile -outputModel prunedModelFile " +
+                         "[-threshold 0.0] [-lambdaBits 64] [-binary false] [-testFile testFile]");
+      System.exit(1);
+    }
+    String modelFile = props.getProperty("model");
+    String outputFile = props.getProperty("outputModel");
+    double threshold = Double.parseDouble(props.getProperty("threshold", "0.0"));
+    int lambdaBits = Integer.parseInt(props.getProperty("lambdaBits", "64"));
+    boolean binary = Boolean.parseBoolean(props.getProperty("binary", "false"));
+    String testFile = props.getProperty("testFile");
+    if (lambdaBits != 64 && ! binary) {
+      System.err.println("-lambdaBits " + lambdaBits + " needs -binary true: the original format writes doubles");
+      System.exit(1);
+    }
+
+    MaxentTagger tagger = new MaxentTagger(modelFile);
+    long binarySize = -1;
+    if (binary) {
+      File unpruned = File.createTempFile("unpruned", ".tagger");
+      try {
+        BinaryModel.save(tagger, unpruned.getPath());
+        binarySize = unpruned.length();
+      } finally {
+        unpruned.delete();
+      }
+    }
+    int numFeatures = tagger.prob.lambda.length;
+    int numPruned = prune(tagger, threshold);
+    double maxError = quantize(tagger.prob.lambda, lambdaBits);
+    if (binary) {
+      BinaryModel.save(tagger, outputFile, lambdaBits);
+    } else {
+      tagger.saveModel(outputFile, tagger.config);
+    }
+
+    System.err.printf("Features: %d -> %d (%d pruned with |lambda| < %s)%n", numFeatures,
+                      numFeatures - numPruned, numPruned, threshold);
+    if (lambdaBits != 64) {
+      System.err.printf("Lambdas quantized to %d bits; the largest change was %g%n", lambdaBits, maxError);
+    }
+    File file = new File(modelFile);
+    System.err.printf("Model size: %s bytes%s -> %d bytes%n", file.isFile() ? Long.toString(file.length()) : "?",
+                      (binarySize >= 0) ? " (" + binarySize + " as a binary model, unpruned)" : "",
+                      new File(outputFile).length());
+    if (testFile != null) {
+      double before = accuracy(modelFile, testFile);
+      double after = accuracy(outputFile, testFile);
+      System.err.printf("Accuracy on %s: %.4f%% -> %.4f%% (%+.4f%%)%n", testFile, before * 100.0,
+                        after * 100.0, (after - before) * 100.0);
+    }
+  }
+
+}
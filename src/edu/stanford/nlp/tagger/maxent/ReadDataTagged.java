@@ -20,7 +20,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 
 
@@ -29,6 +31,12 @@ import java.util.StringTokenizer;
  * The tagged data has to be whitespace-separated items, with the word and
  * tag split off by a delimiter character, which is found as the last instance
  * of the delimiter character in the item.
+ * <p>
+ * Normally every token read is kept, as a DataWordTag, until the features
+ * have been extracted.  With the streamTraining option, the files are only
+ * used to build the dictionary and count the tokens when they are first
+ * read, and are read again, a chunk of sentences at a time, by
+ * {@link #chunks}.
  *
  * @author Kristina Toutanova
  * @version 1.0
@@ -36,6 +44,7 @@ import java.util.StringTokenizer;
 public class ReadDataTagged {
 
   private final List<TaggedFileRecord> fileRecords;
+  private final boolean streaming;
   private ArrayList<DataWordTag> v = new ArrayList<DataWordTag>();
   private int numElements = 0;
   private int totalSentences = 0;
@@ -52,6 +61,7 @@ public class ReadDataTagged {
   {
     this.maxentTagger = maxentTagger;
     this.pairs = pairs;
+    streaming = config.getStreamTraining();
     fileRecords = TaggedFileRecord.createRecords(config, config.getFile());
     for (TaggedFileRecord record : fileRecords)
       loadFile(record.reader());
@@ -65,10 +75,111 @@ public class ReadDataTagged {
   }
 
 
-  DataWordTag get(int index) {
-    return v.get(index);
+  /**
+   * Returns the tokens, in order, in chunks of at least minSize tokens
+   * (but the last).  Streaming, the training files are read again, and
+   * each chunk is of whole sentences, with a PairsHolder of its own;
+   * otherwise the chunks are views of the tokens read.
+   */
+  Iterator<List<DataWordTag>> chunks(final int minSize) {
+    if ( ! streaming) {
+      return new Iterator<List<DataWordTag>>() {
+        private int start = 0;
+        public boolean hasNext() {
+          return start < v.size();
+        }
+        public List<DataWordTag> next() {
+          if ( ! hasNext()) {
+            throw new NoSuchElementException();
+          }
+          int end = Math.min(v.size(), start + minSize);
+          List<DataWordTag> chunk = v.subList(start, end);
+          start = end;
+          return chunk;
+        }
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+    return new Iterator<List<DataWordTag>>() {
+      private final Iterator<TaggedFileRecord> records = fileRecords.iterator();
+      private TaggedFileReader reader = null;
+      private final List<String> words = new ArrayList<String>();
+      private final List<String> tags = new ArrayList<String>();
+
+      public boolean hasNext() {
+        while (reader == null || ! reader.hasNext()) {
+          if ( ! records.hasNext()) {
+            return false;
+          }
+          reader = records.next().reader();
+        }
+        return true;
+      }
+
+      public List<DataWordTag> next() {
+        if ( ! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        PairsHolder chunkPairs = new PairsHolder();
+        List<DataWordTag> chunk = new ArrayList<DataWordTag>(minSize);
+        while (chunk.size() < minSize && hasNext()) {
+          List<TaggedWord> sentence = applyWordFunction(reader.next());
+          for (TaggedWord tw : sentence) {
+            if (tw != null) {
+              words.add(tw.word());
+              tags.add(tw.tag());
+            }
+          }
+          words.add(TaggerConstants.EOS_WORD);
+          tags.add(TaggerConstants.EOS_TAG);
+          addSentence(words, tags, chunk.size(), chunkPairs, chunk);
+          words.clear();
+          tags.clear();
+        }
+        return chunk;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
   }
 
+
+  private List<TaggedWord> applyWordFunction(List<TaggedWord> sentence) {
+    if (maxentTagger.wordFunction == null) {
+      return sentence;
+    }
+    List<TaggedWord> newSentence = 
+      new ArrayList<TaggedWord>(sentence.size());
+    for (TaggedWord word : sentence) {
+      TaggedWord newWord = 
+        new TaggedWord(maxentTagger.wordFunction.apply(word.word()), 
+                       word.tag());
+      newSentence.add(newWord);
+    }
+    return newSentence;
+  }
+
+
+  /**
+   * Adds the tokens of a sentence (ending with the end of sentence token)
+   * to the PairsHolder, from position start on, and their DataWordTags to
+   * data.
+   */
+  private void addSentence(List<String> words, List<String> tags, int start,
+                           PairsHolder pairs, List<DataWordTag> data) {
+    int end = start + words.size() - 1;
+    for (int i = 0; i < words.size(); i++) {
+      History h = new History(start, end, start + i, pairs, maxentTagger.extractors);
+      pairs.add(new WordTag(words.get(i), tags.get(i)));
+      data.add(new DataWordTag(h, maxentTagger.tags.getIndex(tags.get(i)), maxentTagger.tags));
+    }
+  }
+
+
   private void loadFile(TaggedFileReader reader) {
     System.err.println("Loading tagged words from " + reader.filename());
 
@@ -78,27 +189,23 @@ public class ReadDataTagged {
     int numWords = 0;
     int maxLen = Integer.MIN_VALUE;
     int minLen = Integer.MAX_VALUE;
+    // only whether a tag has fewer word types than this is ever asked
+    int closedTagThreshold = maxentTagger.tags.getClosedTagThreshold();
 
     for (List<TaggedWord> sentence : reader) {
-      if (maxentTagger.wordFunction != null) {
-        List<TaggedWord> newSentence = 
-          new ArrayList<TaggedWord>(sentence.size());
-        for (TaggedWord word : sentence) {
-          TaggedWord newWord = 
-            new TaggedWord(maxentTagger.wordFunction.apply(word.word()), 
-                           word.tag());
-          newSentence.add(newWord);
-        }
-        sentence = newSentence;
-      }
+      sentence = applyWordFunction(sentence);
       for (TaggedWord tw : sentence) {
         if(tw != null) {
           words.add(tw.word());
           tags.add(tw.tag());
-          if (!maxentTagger.tagTokens.containsKey(tw.tag())) {
-            maxentTagger.tagTokens.put(tw.tag(), new HashSet<String>());
+          HashSet<String> tagWords = maxentTagger.tagTokens.get(tw.tag());
+          if (tagWords == null) {
+            tagWords = new HashSet<String>();
+            maxentTagger.tagTokens.put(tw.tag(), tagWords);
+          }
+          if (tagWords.size() < closedTagThreshold) {
+            tagWords.add(tw.word());
           }
-          maxentTagger.tagTokens.get(tw.tag()).add(tw.word());
         }
       }
       maxLen = (sentence.size() > maxLen ? sentence.size() : maxLen);
@@ -108,18 +215,11 @@ public class ReadDataTagged {
       numElements = numElements + sentence.size() + 1;
       // iterate over the words in the sentence
       for (int i = 0; i < sentence.size() + 1; i++) {
-        History h = new History(totalWords + totalSentences, 
-                                totalWords + totalSentences + sentence.size(), 
-                                totalWords + totalSentences + i, 
-                                pairs, maxentTagger.extractors);
-        String tag = tags.get(i);
-        String word = words.get(i);
-        pairs.add(new WordTag(word,tag));
-        int y = maxentTagger.tags.add(tag);
-        DataWordTag dat = new DataWordTag(h, y, maxentTagger.tags);
-        v.add(dat);
-        maxentTagger.dict.add(word, tag);
-
+        maxentTagger.tags.add(tags.get(i));
+        maxentTagger.dict.add(words.get(i), tags.get(i));
+      }
+      if ( ! streaming) {
+        addSentence(words, tags, totalWords + totalSentences, pairs, v);
       }
       totalSentences++;
       totalWords += sentence.size();
@@ -0,0 +1,77 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.util.ScoredObject;
+
+
+/**
+ * How sure the tagger is about its tagging of a sentence: its k best
+ * taggings, with their probabilities, and the marginal probability of
+ * each possible tag of each word.  These all come from one scoring of
+ * the sentence (see {@link MaxentTagger#scoreSentence}), so asking for
+ * them costs little more than tagging.
+ */
+public class SentenceScores {
+
+  private final List<ScoredObject<ArrayList<TaggedWord>>> kBest;
+  private final String[][] possibleTags;
+  private final double[][] marginals;
+
+  SentenceScores(List<ScoredObject<ArrayList<TaggedWord>>> kBest,
+                 String[][] possibleTags, double[][] marginals) {
+    this.kBest = kBest;
+    this.possibleTags = possibleTags;
+    this.marginals = marginals;
+  }
+
+  /** The number of words in the sentence. */
+  public int size() {
+    return possibleTags.length;
+  }
+
+  /**
+   * The best taggings found, best first, scored by their log
+   * probabilities.  There may be fewer than were asked for, if the
+   * sentence doesn't have that many possible taggings.
+   */
+  public List<ScoredObject<ArrayList<TaggedWord>>> kBest() {
+    return kBest;
+  }
+
+  /** The best tagging, which is what tagging the sentence gives. */
+  public ArrayList<TaggedWord> bestTagging() {
+    return kBest.get(0).object();
+  }
+
+  /** The tags the word could have; the others have probability 0. */
+  public String[] possibleTags(int word) {
+    return possibleTags[word];
+  }
+
+  /**
+   * The marginal probabilities of the word's possible tags, in the
+   * order of {@link #possibleTags}.
+   */
+  public double[] marginals(int word) {
+    return marginals[word];
+  }
+
+  /** The marginal probability that the word has the given tag. */
+  public double marginal(int word, String tag) {
+    for (int i = 0; i < possibleTags[word].length; i++) {
+      if (possibleTags[word][i].equals(tag)) {
+        return marginals[word][i];
+      }
+    }
+    return 0.0;
+  }
+
+  /** The marginal probability of the word's tag in the best tagging. */
+  public double confidence(int word) {
+    return marginal(word, bestTagging().get(word).tag());
+  }
+
+}
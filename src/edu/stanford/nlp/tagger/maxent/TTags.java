@@ -27,7 +27,7 @@ public class TTags {
 
   private Index<String> index = new HashIndex<String>();
   private final HashSet<String> closed = new HashSet<String>();
-  private HashSet<String> openTags = null; /* cache */
+  private volatile Set<String> openTags = null; /* cache; may be filled in by concurrent taggers */
   private final boolean isEnglish; // for speed
   private static final boolean doDeterministicTagExpansion = true;
 
@@ -250,8 +250,9 @@ public class TTags {
    * @return set of open tags
    */
   public Set<String> getOpenTags() {
-    if (openTags == null) { /* cache check */
-      HashSet<String> open = new HashSet<String>();
+    Set<String> open = openTags;
+    if (open == null) { /* cache check */
+      open = new HashSet<String>();
 
       for (String tag : index) {
         if ( ! closed.contains(tag)) {
@@ -261,7 +262,7 @@ public class TTags {
 
       openTags = open;
     } // if
-    return openTags;
+    return open;
   }
 
   protected int add(String tag) {
@@ -273,6 +274,11 @@ public class TTags {
     return index.get(i);
   }
 
+  /** The number of word types below which a tag may be learned to be closed. */
+  int getClosedTagThreshold() {
+    return closedTagThreshold;
+  }
+
   protected void save(String filename,
                       HashMap<String, HashSet<String>> tagTokens) {
     try {
@@ -290,7 +296,9 @@ public class TTags {
       file.writeInt(index.size());
       for (String item : index) {
         file.writeUTF(item);
-        if (learnClosedTags) {
+        // (a tagger that was loaded rather than trained has no
+        // tagTokens, and its closed tags are already known)
+        if (learnClosedTags && tagTokens.containsKey(item)) {
           if (tagTokens.get(item).size() < closedTagThreshold) {
             markClosed(item);
           }
@@ -348,8 +356,7 @@ public class TTags {
   }
 
   public void setOpenClassTags(String[] openClassTags) {
-    openTags = new HashSet<String>();
-    openTags.addAll(Arrays.asList(openClassTags));
+    openTags = new HashSet<String>(Arrays.asList(openClassTags));
     for (String tag : openClassTags) {
       add(tag);
     }
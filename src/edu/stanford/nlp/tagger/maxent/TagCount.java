@@ -26,13 +26,20 @@ class TagCount {
   private HashMap<String, Integer> map = new HashMap<String, Integer>();
   private int ambClassId = -1; /* This is a numeric ID shared by all words that have the same set of possible tags. */
 
-  private String[] getTagsCache; // = null;
-  private int sumCache = 0;
-  private boolean sumDirty = true;
-  private boolean dirty = true;
+  // These caches are filled in lazily, possibly by several tagging
+  // threads at once.  A null getTagsCache or a negative sumCache means
+  // the value needs recomputing; each is a single field, so a reader
+  // never sees a "clean" flag without the value that goes with it.
+  private volatile String[] getTagsCache; // = null;
+  private volatile int sumCache = -1;
 
   TagCount() { }
 
+  /** Makes a TagCount with the given tag counts.  The map is not copied. */
+  TagCount(HashMap<String, Integer> map) {
+    this.map = map;
+  }
+
   private static final String NULL_SYMBOL = "<<NULL>>";
 
   /**
@@ -81,8 +88,8 @@ class TagCount {
 	if (tag.equals(NULL_SYMBOL)) tag = null;
 	map.put(tag, count);
       }
-      dirty = true;
-      sumDirty = true;
+      getTagsCache = null;
+      sumCache = -1;
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -120,14 +127,14 @@ class TagCount {
    * @return the number of total occurrences of the word .
    */
   protected int sum() {
-    if(!sumDirty)
-      return sumCache;
+    int s = sumCache;
+    if (s >= 0)
+      return s;
 
-    int s = 0;
+    s = 0;
     for (Integer i : map.values()) {
       s += i;
     }
-    sumDirty = false;
     sumCache = s;
     return s;
   }
@@ -137,12 +144,12 @@ class TagCount {
   protected void add(String tag) {
     int val;
 
-    sumDirty = true;
+    sumCache = -1;
     if (map.get(tag) != null) {
       val = map.get(tag);
     } else {
       val = 0;
-      dirty = true;  // the set of tags has changed
+      getTagsCache = null;  // the set of tags has changed
     }
 
     map.put(tag, val + 1);
@@ -158,11 +165,12 @@ class TagCount {
    * @return an array of the tags the word has had.
    */
   public String[] getTags() {
-    if (dirty) {
-      getTagsCache = map.keySet().toArray(new String[map.keySet().size()]);
-      dirty = false;
+    String[] tags = getTagsCache;
+    if (tags == null) {
+      tags = map.keySet().toArray(new String[map.keySet().size()]);
+      getTagsCache = tags;
     }
-    return getTagsCache; //map.keySet().toArray(new String[0]);
+    return tags; //map.keySet().toArray(new String[0]);
   }
 
 
@@ -0,0 +1,257 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.ling.Word;
+import edu.stanford.nlp.process.DocumentPreprocessor;
+import edu.stanford.nlp.process.Morphology;
+import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.sequences.BestSequenceFinder;
+import edu.stanford.nlp.util.StringUtils;
+
+
+/**
+ * Benchmarks the tagger's hot paths, so that changes to them are
+ * measured the same way every time.  Usage:
+ * <blockquote><code>
+ * java edu.stanford.nlp.tagger.maxent.TaggerBenchmark -model modelFile
+ * [-textFiles texts/betel.txt,texts/grey-cup.txt,texts/raf-northolt.txt]
+ * [-synthetic 0] [-benchmarks load,tokenize,tagSentence,scores,exactBestSequence,lemma]
+ * [-iterations 10] [-warmup 3]
+ * </code></blockquote>
+ * The text files are plain text; they are tokenized with PTBTokenizer
+ * and split into sentences, and the <code>-synthetic</code> option adds
+ * that many more sentences, made by drawing words at random (with a fixed
+ * seed) from the text files, for a corpus as large as wanted.
+ * <p>
+ * Each benchmark runs over the whole corpus once per iteration, on one
+ * thread; the warmup iterations aren't reported.  The result is the
+ * mean time per operation over the iterations and its standard
+ * deviation, and the bytes allocated per operation, measured with the
+ * HotSpot thread allocation counter (and reported as unavailable on JVMs
+ * without one).  The benchmarks, and what an operation is, are:
+ * <ul>
+ * <li>load: reading the model (one load)
+ * <li>tokenize: PTBTokenizer over the text files (one token)
+ * <li>tagSentence: {@link MaxentTagger#tagSentence(List)} (one sentence)
+ * <li>scores: the feature scores of every word of a sentence, as
+ *     {@link TestSentence#getHistories} computes them for a decoder (one
+ *     sentence)
+ * <li>exactBestSequence: the bestSequence of the finder that
+ *     {@link TestSentence} uses for the exact decoder, which includes the
+ *     scoring (one sentence)
+ * <li>lemma: {@link Morphology#lemma} of each tagged word (one word)
+ * </ul>
+ */
+public class TaggerBenchmark {
+
+  private static final String DEFAULT_TEXT_FILES =
+    "texts/betel.txt,texts/grey-cup.txt,texts/raf-northolt.txt";
+
+  private static final String ALL_BENCHMARKS =
+    "load,tokenize,tagSentence,scores,exactBestSequence,lemma";
+
+  private final String modelFile;
+  private final MaxentTagger tagger;
+  private final List<String> texts;
+  private final List<List<HasWord>> sentences;
+  private final List<TaggedWord> taggedWords;
+  private final int numWords;
+
+  private TaggerBenchmark(String modelFile, List<String> texts, int synthetic)
+    throws IOException, ClassNotFoundException
+  {
+    this.modelFile = modelFile;
+    this.tagger = new MaxentTagger(modelFile);
+    this.texts = texts;
+    this.sentences = new ArrayList<List<HasWord>>();
+    for (String text : texts) {
+      for (List<HasWord> sentence : new DocumentPreprocessor(new StringReader(text))) {
+        sentences.add(sentence);
+      }
+    }
+    sentences.addAll(syntheticSentences(sentences, synthetic, new Random(42)));
+    int words = 0;
+    for (List<HasWord> sentence : sentences) {
+      words += sentence.size();
+    }
+    numWords = words;
+    taggedWords = new ArrayList<TaggedWord>(numWords);
+    for (List<HasWord> sentence : sentences) {
+      taggedWords.addAll(tagger.tagSentence(sentence));
+    }
+  }
+
+  /**
+   * Makes sentences of the same lengths as the given ones, with words
+   * drawn at random from them (so with their word frequencies).
+   */
+  static List<List<HasWord>> syntheticSentences(List<List<HasWord>> sentences, int numSentences, Random random) {
+    List<HasWord> words = new ArrayList<HasWord>();
+    for (List<HasWord> sentence : sentences) {
+      words.addAll(sentence);
+    }
+    List<List<HasWord>> synthetic = new ArrayList<List<HasWord>>(numSentences);
+    if (words.isEmpty()) {
+      return synthetic;
+    }
+    for (int i = 0; i < numSentences; i++) {
+      int length = sentences.get(random.nextInt(sentences.size())).size();
+      List<HasWord> sentence = new ArrayList<HasWord>(length);
+      for (int j = 0; j < length; j++) {
+        sentence.add(new Word(words.get(random.nextInt(words.size())).word()));
+      }
+      synthetic.add(sentence);
+    }
+    return synthetic;
+  }
+
+  /**
+   * Returns the number of bytes the current thread has allocated, or
+   * -1 if this JVM can't say.
+   */
+  static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * Runs one iteration of the benchmark.
+   *
+   * @return The number of operations done
+   */
+  private int runOnce(String benchmark) throws Exception {
+    if (benchmark.equals("load")) {
+      new MaxentTagger(modelFile);
+      return 1;
+    } else if (benchmark.equals("tokenize")) {
+      int tokens = 0;
+      for (String text : texts) {
+        PTBTokenizer<Word> tokenizer = PTBTokenizer.newPTBTokenizer(new StringReader(text));
+        while (tokenizer.hasNext()) {
+          tokenizer.next();
+          tokens++;
+        }
+      }
+      return tokens;
+    } else if (benchmark.equals("tagSentence")) {
+      for (List<HasWord> sentence : sentences) {
+        tagger.tagSentence(sentence);
+      }
+      return sentences.size();
+    } else if (benchmark.equals("scores")) {
+      TestSentence testSentence = new TestSentence(tagger);
+      for (List<HasWord> sentence : sentences) {
+        testSentence.setSentence(sentence, false);
+        testSentence.initializeScorer();
+        int leftWindow = testSentence.leftWindow();
+        int padLength = testSentence.length() + leftWindow + testSentence.rightWindow();
+        int[] tags = new int[padLength];
+        for (int pos = 0; pos < padLength; pos++) {
+          tags[pos] = testSentence.getPossibleValues(pos)[0];
+        }
+        for (int pos = leftWindow; pos < leftWindow + testSentence.length(); pos++) {
+          testSentence.scoresOf(tags, pos);
+        }
+        testSentence.cleanUpScorer();
+      }
+      return sentences.size();
+    } else if (benchmark.equals("exactBestSequence")) {
+      TestSentence testSentence = new TestSentence(tagger);
+      testSentence.setDecoder("exact");
+      BestSequenceFinder finder = testSentence.bestSequenceFinder();
+      for (List<HasWord> sentence : sentences) {
+        testSentence.setSentence(sentence, false);
+        testSentence.initializeScorer();
+        finder.bestSequence(testSentence);
+        testSentence.cleanUpScorer();
+      }
+      return sentences.size();
+    } else if (benchmark.equals("lemma")) {
+      Morphology morphology = new Morphology();
+      for (TaggedWord word : taggedWords) {
+        morphology.lemma(word.word(), word.tag());
+      }
+      return taggedWords.size();
+    }
+    throw new IllegalArgumentException("Unknown benchmark: " + benchmark);
+  }
+
+  private void run(String benchmark, int warmup, int iterations) throws Exception {
+    double[] nanosPerOp = new double[iterations];
+    long totalOps = 0;
+    long totalAllocated = 0;
+    for (int i = -warmup; i < iterations; i++) {
+      long allocated = allocatedBytes();
+      long start = System.nanoTime();
+      int ops = runOnce(benchmark);
+      long nanos = System.nanoTime() - start;
+      if (i >= 0) {
+        nanosPerOp[i] = (double) nanos / ops;
+        totalOps += ops;
+        totalAllocated = (allocated < 0 || totalAllocated < 0) ? -1 : totalAllocated + allocatedBytes() - allocated;
+      }
+    }
+    double mean = 0.0;
+    for (double n : nanosPerOp) {
+      mean += n;
+    }
+    mean /= iterations;
+    double variance = 0.0;
+    for (double n : nanosPerOp) {
+      variance += (n - mean) * (n - mean);
+    }
+    double stdev = (iterations > 1) ? Math.sqrt(variance / (iterations - 1)) : 0.0;
+    System.out.printf("%-18s %6d %14.1f %12.1f %12s %14.1f%n", benchmark, iterations, mean, stdev,
+                      (totalAllocated < 0) ? "unknown" : Long.toString(totalAllocated / totalOps),
+                      1e9 / mean);
+  }
+
+  private static String readText(String filename) throws IOException {
+    StringBuilder text = new StringBuilder();
+    BufferedReader reader = IOUtils.readReaderFromString(filename);
+    for (String line; (line = reader.readLine()) != null; ) {
+      text.append(line).append('\n');
+    }
+    reader.close();
+    return text.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
+    if ( ! props.containsKey("model")) {
+      System.err.println("Usage: java edu.stanford.nlp.tagger.maxent.TaggerBenchmark -model modelFile [-textFiles " + DEFAULT_TEXT_FILES + "] [-synthetic 0] [-benchmarks " + ALL_BENCHMARKS + "] [-iterations 10] [-warmup 3]");
+      System.exit(1);
+    }
+    int iterations = Integer.parseInt(props.getProperty("iterations", "10"));
+    int warmup = Integer.parseInt(props.getProperty("warmup", "3"));
+    int synthetic = Integer.parseInt(props.getProperty("synthetic", "0"));
+    List<String> texts = new ArrayList<String>();
+    for (String filename : props.getProperty("textFiles", DEFAULT_TEXT_FILES).split(",")) {
+      texts.add(readText(filename));
+    }
+
+    TaggerBenchmark benchmark = new TaggerBenchmark(props.getProperty("model"), texts, synthetic);
+    System.err.println("Corpus: " + benchmark.sentences.size() + " sentences, " + benchmark.numWords + " words");
+    System.out.printf("%-18s %6s %14s %12s %12s %14s%n", "Benchmark", "Cnt", "ns/op", "Error", "B/op", "ops/s");
+    for (String name : Arrays.asList(props.getProperty("benchmarks", ALL_BENCHMARKS).split(","))) {
+      benchmark.run(name.trim(), warmup, iterations);
+    }
+  }
+
+}
@@ -65,8 +65,22 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
   TOKENIZER_OPTIONS = "",
   DEFAULT_REG_L1 = "1.0",
   OUTPUT_FILE = "",
+  OUTPUT_DIR = "",
   OUTPUT_FORMAT = "slashTags",
-  OUTPUT_FORMAT_OPTIONS = "";
+  OUTPUT_FORMAT_OPTIONS = "",
+  LOCAL_SCORE_CACHE_SIZE = "10000",
+  DECODER = "exact",
+  BEAM_SIZE = "10",
+  NTHREADS = "1",
+  SPARSE_TRAINING = "false",
+  STREAM_TRAINING = "false",
+  CHECKPOINT_EVERY = "0",
+  RESUME = "false",
+  WARM_START = "",
+  SGD_PASSES = "2",
+  SGD_BATCH_SIZE = "1000",
+  SGD_LEARNING_RATE = "0.5",
+  FEATURE_HASH_BITS = "0";
 
   public static final String
   ENCODING_PROPERTY = "encoding",
@@ -106,8 +120,22 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     defaultValues.put("tokenizerOptions", TOKENIZER_OPTIONS);
     defaultValues.put("regL1", DEFAULT_REG_L1);
     defaultValues.put("outputFile", OUTPUT_FILE);
+    defaultValues.put("outputDir", OUTPUT_DIR);
     defaultValues.put("outputFormat", OUTPUT_FORMAT);
     defaultValues.put("outputFormatOptions", OUTPUT_FORMAT_OPTIONS);
+    defaultValues.put("localScoreCacheSize", LOCAL_SCORE_CACHE_SIZE);
+    defaultValues.put("decoder", DECODER);
+    defaultValues.put("beamSize", BEAM_SIZE);
+    defaultValues.put("nthreads", NTHREADS);
+    defaultValues.put("sparseTraining", SPARSE_TRAINING);
+    defaultValues.put("streamTraining", STREAM_TRAINING);
+    defaultValues.put("checkpointEvery", CHECKPOINT_EVERY);
+    defaultValues.put("resume", RESUME);
+    defaultValues.put("warmStart", WARM_START);
+    defaultValues.put("sgdPasses", SGD_PASSES);
+    defaultValues.put("sgdBatchSize", SGD_BATCH_SIZE);
+    defaultValues.put("sgdLearningRate", SGD_LEARNING_RATE);
+    defaultValues.put("featureHashBits", FEATURE_HASH_BITS);
   }
 
   /**
@@ -187,8 +215,8 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
 
     this.setProperty("search", props.getProperty("search", oldConfig.getProperty("search")).trim().toLowerCase());
     String srch = this.getProperty("search");
-    if ( ! (srch.equals("cg") || srch.equals("iis") || srch.equals("owlqn") || srch.equals("qn"))) {
-      throw new RuntimeException("'search' must be one of 'iis', 'cg', 'qn' or 'owlqn': " + srch);
+    if ( ! (srch.equals("cg") || srch.equals("iis") || srch.equals("owlqn") || srch.equals("qn") || srch.equals("sgd"))) {
+      throw new RuntimeException("'search' must be one of 'iis', 'cg', 'qn', 'owlqn' or 'sgd': " + srch);
     }
 
     this.setProperty("sigmaSquared", props.getProperty("sigmaSquared", oldConfig.getProperty("sigmaSquared")));
@@ -234,6 +262,38 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     this.setProperty("verboseResults", props.getProperty("verboseResults", oldConfig.getProperty("verboseResults")));
 
     this.setProperty("regL1", props.getProperty("regL1", oldConfig.getProperty("regL1")));
+    this.setProperty("nthreads", props.getProperty("nthreads", oldConfig.getProperty("nthreads", NTHREADS)).trim());
+    if (getNThreads() < 1) {
+      throw new RuntimeException("'nthreads' must be positive: " + getNThreads());
+    }
+    // a model must be tagged with the normalization it was trained with
+    this.setProperty("sparseTraining", ((mode == Mode.TRAIN) ? props.getProperty("sparseTraining", SPARSE_TRAINING) :
+                                        oldConfig.getProperty("sparseTraining", SPARSE_TRAINING)).trim());
+    this.setProperty("streamTraining", props.getProperty("streamTraining", oldConfig.getProperty("streamTraining", STREAM_TRAINING)).trim());
+    this.setProperty("checkpointEvery", props.getProperty("checkpointEvery", oldConfig.getProperty("checkpointEvery", CHECKPOINT_EVERY)).trim());
+    if (getCheckpointEvery() < 0) {
+      throw new RuntimeException("'checkpointEvery' must not be negative: " + getCheckpointEvery());
+    }
+    this.setProperty("resume", props.getProperty("resume", oldConfig.getProperty("resume", RESUME)).trim());
+    this.setProperty("warmStart", props.getProperty("warmStart", oldConfig.getProperty("warmStart", WARM_START)).trim());
+    this.setProperty("sgdPasses", props.getProperty("sgdPasses", oldConfig.getProperty("sgdPasses", SGD_PASSES)).trim());
+    if (getSGDPasses() < 1) {
+      throw new RuntimeException("'sgdPasses' must be positive: " + getSGDPasses());
+    }
+    this.setProperty("sgdBatchSize", props.getProperty("sgdBatchSize", oldConfig.getProperty("sgdBatchSize", SGD_BATCH_SIZE)).trim());
+    if (getSGDBatchSize() < 1) {
+      throw new RuntimeException("'sgdBatchSize' must be positive: " + getSGDBatchSize());
+    }
+    this.setProperty("sgdLearningRate", props.getProperty("sgdLearningRate", oldConfig.getProperty("sgdLearningRate", SGD_LEARNING_RATE)).trim());
+    if ( ! (getSGDLearningRate() > 0.0)) {
+      throw new RuntimeException("'sgdLearningRate' must be positive: " + getSGDLearningRate());
+    }
+    // a model can only be used with the hashing it was trained with
+    this.setProperty("featureHashBits", ((mode == Mode.TRAIN) ? props.getProperty("featureHashBits", FEATURE_HASH_BITS) :
+                                         oldConfig.getProperty("featureHashBits", FEATURE_HASH_BITS)).trim());
+    if (getFeatureHashBits() < 0 || getFeatureHashBits() > 30) {
+      throw new RuntimeException("'featureHashBits' must be from 0 to 30: " + getFeatureHashBits());
+    }
 
     //this is a property that is stored (not like the general properties)
     this.setProperty("xmlInput", props.getProperty("xmlInput", oldConfig.getProperty("xmlInput")).trim());
@@ -242,8 +302,20 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     this.setProperty("approximate", props.getProperty("approximate", oldConfig.getProperty("approximate"))); //this isn't something we save from time to time
     this.setProperty("tokenizerOptions", props.getProperty("tokenizerOptions", oldConfig.getProperty("tokenizerOptions"))); //this isn't something we save from time to time
     this.setProperty("outputFile", props.getProperty("outputFile", oldConfig.getProperty("outputFile")).trim()); //this isn't something we save from time to time
+    this.setProperty("outputDir", props.getProperty("outputDir", oldConfig.getProperty("outputDir", OUTPUT_DIR)).trim()); //this isn't something we save from time to time
     this.setProperty("outputFormat", props.getProperty("outputFormat", oldConfig.getProperty("outputFormat")).trim()); //this isn't something we save from time to time
     this.setProperty("outputFormatOptions", props.getProperty("outputFormatOptions", oldConfig.getProperty("outputFormatOptions")).trim()); //this isn't something we save from time to time
+    this.setProperty("localScoreCacheSize", props.getProperty("localScoreCacheSize", oldConfig.getProperty("localScoreCacheSize", LOCAL_SCORE_CACHE_SIZE)).trim()); //this isn't something we save from time to time
+    this.setProperty("decoder", props.getProperty("decoder", oldConfig.getProperty("decoder", DECODER)).trim().toLowerCase());
+    for (String decoder : getDecoders()) {
+      if ( ! (decoder.equals("exact") || decoder.equals("beam") || decoder.equals("greedy"))) {
+        throw new RuntimeException("'decoder' must be 'exact', 'beam' or 'greedy', or a comma-separated list of them: " + decoder);
+      }
+    }
+    this.setProperty("beamSize", props.getProperty("beamSize", oldConfig.getProperty("beamSize", BEAM_SIZE)).trim());
+    if (getBeamSize() <= 0) {
+      throw new RuntimeException("'beamSize' must be positive: " + getBeamSize());
+    }
     String sentenceDelimiter = props.getProperty("sentenceDelimiter", oldConfig.getProperty("sentenceDelimiter"));
     if (sentenceDelimiter != null) {
       // this isn't something we save from time to time.
@@ -263,6 +335,8 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
 
   public String getOutputFile() { return getProperty("outputFile"); }
 
+  public String getOutputDir() { return getProperty("outputDir", OUTPUT_DIR); }
+
   public String getOutputFormat() { return getProperty("outputFormat"); }
 
   public String[] getOutputOptions() { return getProperty("outputFormatOptions").split("\\s*,\\s*"); }
@@ -347,6 +421,42 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
 
   public double getRegL1() { return Double.parseDouble(getProperty("regL1")); }
 
+  /** The number of threads to extract features, and compute the objective and its gradient, with when training. */
+  public int getNThreads() { return Integer.parseInt(getProperty("nthreads", NTHREADS)); }
+
+  /**
+   * Whether the model's conditional distributions are over each word's
+   * possible tags only, rather than over all the tags.
+   */
+  public boolean getSparseTraining() { return Boolean.parseBoolean(getProperty("sparseTraining", SPARSE_TRAINING)); }
+
+  /**
+   * Whether to read the training files again when extracting features,
+   * rather than keeping every token of them in memory.
+   */
+  public boolean getStreamTraining() { return Boolean.parseBoolean(getProperty("streamTraining", STREAM_TRAINING)); }
+
+  /** How many iterations of cg or qn search (or passes of sgd) to save a checkpoint after; 0 for never. */
+  public int getCheckpointEvery() { return Integer.parseInt(getProperty("checkpointEvery", CHECKPOINT_EVERY)); }
+
+  /** Whether to continue training from the model's checkpoint file. */
+  public boolean getResume() { return Boolean.parseBoolean(getProperty("resume", RESUME)); }
+
+  /** A model to start the weights of the features at, or "" to start them at zero. */
+  public String getWarmStart() { return getProperty("warmStart", WARM_START); }
+
+  /** The most passes over the training data for sgd search. */
+  public int getSGDPasses() { return Integer.parseInt(getProperty("sgdPasses", SGD_PASSES)); }
+
+  /** The number of training tokens in each batch for sgd search. */
+  public int getSGDBatchSize() { return Integer.parseInt(getProperty("sgdBatchSize", SGD_BATCH_SIZE)); }
+
+  /** The AdaGrad learning rate for sgd search. */
+  public double getSGDLearningRate() { return Double.parseDouble(getProperty("sgdLearningRate", SGD_LEARNING_RATE)); }
+
+  /** The number of bits extractor values are hashed into, or 0 if they aren't hashed. */
+  public int getFeatureHashBits() { return Integer.parseInt(getProperty("featureHashBits", FEATURE_HASH_BITS)); }
+
   public String[] getXMLInput() {
     return wsvStringToStringArray(getProperty("xmlInput"));
   }
@@ -373,6 +483,35 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
 
   public String getTokenizerOptions() { return getProperty("tokenizerOptions"); }
 
+  /** The number of words whose local feature scores are cached across
+   *  sentences (0 turns the shared cache off).
+   *
+   * @return Maximum size of the tagger's LocalScoreCache
+   */
+  public int getLocalScoreCacheSize() {
+    return Integer.parseInt(getProperty("localScoreCacheSize", LOCAL_SCORE_CACHE_SIZE));
+  }
+
+  /** The decoders to use.  The first one is used for tagging; when
+   *  testing, each is run in turn so their accuracy and speed can be
+   *  compared.
+   *
+   * @return The decoder names: "exact" (Viterbi search), "beam" or "greedy"
+   */
+  public String[] getDecoders() {
+    return getProperty("decoder", DECODER).split("\\s*,\\s*");
+  }
+
+  /** The decoder used when tagging, the first of {@link #getDecoders()}. */
+  public String getDecoder() {
+    return getDecoders()[0];
+  }
+
+  /** The number of partial taggings kept by the beam decoder. */
+  public int getBeamSize() {
+    return Integer.parseInt(getProperty("beamSize", BEAM_SIZE));
+  }
+
   public boolean getTokenizerInvertible() {
     String tokenizerOptions = getTokenizerOptions();
     if (tokenizerOptions != null &&
@@ -443,6 +582,16 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     pw.println("                    sgml = " + getProperty("sgml"));
     pw.println("            sigmaSquared = " + getProperty("sigmaSquared"));
     pw.println("                   regL1 = " + getProperty("regL1"));
+    pw.println("                nthreads = " + getProperty("nthreads"));
+    pw.println("          sparseTraining = " + getProperty("sparseTraining"));
+    pw.println("          streamTraining = " + getProperty("streamTraining"));
+    pw.println("         checkpointEvery = " + getProperty("checkpointEvery"));
+    pw.println("                  resume = " + getProperty("resume"));
+    pw.println("               warmStart = " + getProperty("warmStart"));
+    pw.println("               sgdPasses = " + getProperty("sgdPasses"));
+    pw.println("            sgdBatchSize = " + getProperty("sgdBatchSize"));
+    pw.println("         sgdLearningRate = " + getProperty("sgdLearningRate"));
+    pw.println("         featureHashBits = " + getProperty("featureHashBits"));
     pw.println("               tagInside = " + getProperty("tagInside"));
     pw.println("                tokenize = " + getProperty("tokenize"));
     pw.println("        tokenizerFactory = " + getProperty("tokenizerFactory"));
@@ -452,8 +601,12 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     pw.println("    veryCommonWordThresh = " + getProperty("veryCommonWordThresh"));
     pw.println("                xmlInput = " + getProperty("xmlInput"));
     pw.println("              outputFile = " + getProperty("outputFile"));
+    pw.println("               outputDir = " + getProperty("outputDir"));
     pw.println("            outputFormat = " + getProperty("outputFormat"));
     pw.println("     outputFormatOptions = " + getProperty("outputFormatOptions"));
+    pw.println("     localScoreCacheSize = " + getProperty("localScoreCacheSize"));
+    pw.println("                 decoder = " + getProperty("decoder"));
+    pw.println("                beamSize = " + getProperty("beamSize"));
     pw.flush();
   }
 
@@ -528,6 +681,12 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     out.println("# outputFile = " + OUTPUT_FILE);
     out.println();
 
+    out.println("# When textFile is a directory or a pattern of several files, a directory to");
+    out.println("# write each file's tagged output to, as a file of the same name plus \".tag\".");
+    out.println("# If empty, the outputs are all written to outputFile (or stdout), in order.");
+    out.println("# outputDir = " + OUTPUT_DIR);
+    out.println();
+
     out.println("# Output format. One of: slashTags (default), xml, or tsv");
     out.println("# outputFormat = " + OUTPUT_FORMAT);
     out.println();
@@ -574,6 +733,20 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     out.println("# tokenize = " + TOKENIZE);
     out.println();
 
+    out.println("# Number of words whose local feature scores are cached and shared");
+    out.println("# across sentences when tagging. 0 turns the cache off.");
+    out.println("# localScoreCacheSize = " + LOCAL_SCORE_CACHE_SIZE);
+    out.println();
+
+    out.println("# How to find the best tags: 'exact' (Viterbi search), 'beam' (beam");
+    out.println("# search, faster for bidirectional architectures) or 'greedy' (best tag");
+    out.println("# for each word in turn, for left-only architectures). With -testFile,");
+    out.println("# a comma-separated list of decoders are all run and compared.");
+    out.println("# decoder = " + DECODER);
+    out.println("# Number of partial taggings kept by the beam decoder.");
+    out.println("# beamSize = " + BEAM_SIZE);
+    out.println();
+
     out.println("# Write debugging information (words, top words, unknown words). Useful for");
     out.println("# error analysis. Default is false.");
     out.println("# debug = "+ DEBUG);
@@ -647,7 +820,8 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     out.println();
 
     out.println("# search method for optimization. Normally use the default 'qn'. choices: 'qn' (quasi-Newton),");
-    out.println("# 'cg' (conjugate gradient, 'owlqn' (L1 regularization) or 'iis' (improved iterative scaling)");
+    out.println("# 'cg' (conjugate gradient, 'owlqn' (L1 regularization), 'iis' (improved iterative scaling)");
+    out.println("# or 'sgd' (mini-batch stochastic gradient descent, for very large training sets)");
     out.println("# search = " + SEARCH);
     out.println();
 
@@ -661,6 +835,56 @@ public class TaggerConfig extends Properties /* Inherits implementation of seria
     out.println("# regL1 = " + DEFAULT_REG_L1);
     out.println();
 
+    out.println("# the number of threads to extract features from the training data with, and, for");
+    out.println("# conjugate gradient, quasi-Newton or OWLQN search, to compute the likelihood and its");
+    out.println("# gradient with.  When tagging several files, the number of files tagged at once.");
+    out.println("# Default is 1.");
+    out.println("# nthreads = " + NTHREADS);
+    out.println();
+
+    out.println("# whether to normalize each word's tag distribution over its possible tags only (those");
+    out.println("# it was seen with in training, or the open-class tags for unknown words), storing");
+    out.println("# only those when training, which needs much less memory. Default is false.");
+    out.println("# sparseTraining = " + SPARSE_TRAINING);
+    out.println();
+
+    out.println("# whether to read the training files a second time to extract features from them,");
+    out.println("# a chunk of sentences at a time, rather than holding all their tokens in memory.");
+    out.println("# Slower, but needs much less memory for large training sets. Default is false.");
+    out.println("# streamTraining = " + STREAM_TRAINING);
+    out.println();
+
+    out.println("# for cg or qn search, save the state of training to model.checkpoint every this");
+    out.println("# many iterations (for qn, with its history), so that it can be resumed; for sgd,");
+    out.println("# every this many passes. Default is 0, never.");
+    out.println("# checkpointEvery = " + CHECKPOINT_EVERY);
+    out.println();
+
+    out.println("# whether to continue training from model.checkpoint, as saved by an earlier run on");
+    out.println("# the same data with the same options. Default is false.");
+    out.println("# resume = " + RESUME);
+    out.println();
+
+    out.println("# a model trained with the same arch to start the weights of the features from;");
+    out.println("# features not in it start at zero. For cg, qn, owlqn and sgd search. Default is none.");
+    out.println("# warmStart = " + WARM_START);
+    out.println();
+
+    out.println("# for sgd search, the most passes over the training data, the number of tokens in");
+    out.println("# each batch, and the AdaGrad learning rate. A pass or two is usually enough on a");
+    out.println("# large training set.");
+    out.println("# sgdPasses = " + SGD_PASSES);
+    out.println("# sgdBatchSize = " + SGD_BATCH_SIZE);
+    out.println("# sgdLearningRate = " + SGD_LEARNING_RATE);
+    out.println();
+
+    out.println("# if greater than 0, hash each extractor value into one of 2^featureHashBits buckets,");
+    out.println("# and put the features on the buckets, so that the number of features and the size");
+    out.println("# of the model are bounded whatever the training data. Collisions are reported when");
+    out.println("# training. Default is 0, no hashing.");
+    out.println("# featureHashBits = " + FEATURE_HASH_BITS);
+    out.println();
+
     out.println("# For improved iterative scaling, the number of iterations, otherwise ignored");
     out.println("# iterations = " + ITERATIONS);
     out.println();
@@ -28,14 +28,26 @@
 package edu.stanford.nlp.tagger.maxent;
 
 import edu.stanford.nlp.maxent.Experiments;
-import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.Timing;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -50,9 +62,25 @@ public class TaggerExperiments extends Experiments {
   private static final boolean DEBUG = true;
   private static final String zeroSt = "0";
 
+  /**
+   * The (least) number of tokens in each shard of the training data that
+   * features are extracted from at once, perhaps in parallel.
+   */
+  private static final int SHARD_SIZE = 10000;
+
+  /** How many extractors, or tags, a feature template's key has room for. */
+  private static final int MAX_PACKED = 1 << 16;
+
   private final TaggerFeatures feats;
-  private final Set<FeatureKey> sTemplates = new HashSet<FeatureKey>();
-  private final HistoryTable tHistories = new HistoryTable();
+  /**
+   * The feature templates, each packed into a long as the (interned)
+   * value of the extractor, the extractor number and the tag number;
+   * see templateKey.
+   */
+  private final LongIndex sTemplates = new LongIndex();
+  /** The extractor values (and words) of the training data, interned. */
+  private final Index<String> values = new HashIndex<String>();
+  private final HistoryTable tHistories;
 
   private final int numFeatsGeneral;
   private final int numFeatsAll;
@@ -61,12 +89,29 @@ public class TaggerExperiments extends Experiments {
 
   private final TemplateHash tFeature;
 
+  /**
+   * With feature hashing, the distinct extractor values (as fingerprints;
+   * see valueFingerprint) and the bucket of each, as the extractor and
+   * the bucket number, for reporting how many values share buckets;
+   * otherwise null.
+   */
+  private LongIndex hashedValues;
+  private long[] valueBuckets;
+
+  /**
+   * With sparseTraining, the sorted numbers of the possible tags of each
+   * history's word, which are the tags its distribution is over;
+   * otherwise null.  Histories with the same word share an array.
+   */
+  private int[][] possibleTags;
+
   // This constructor is only used by unit tests.
   TaggerExperiments(MaxentTagger maxentTagger) {
     this.maxentTagger = maxentTagger;
     this.tFeature = new TemplateHash(maxentTagger);
     numFeatsGeneral = maxentTagger.extractors.getSize();
     numFeatsAll = numFeatsGeneral + maxentTagger.extractorsRare.getSize();
+    tHistories = new HistoryTable(numFeatsGeneral);
     feats = new TaggerFeatures(maxentTagger.tags, this);
   }
 
@@ -78,28 +123,60 @@ public class TaggerExperiments extends Experiments {
     ReadDataTagged c = new ReadDataTagged(config, maxentTagger, pairs);
     vArray = new int[c.getSize()][2];
 
-    initTemplatesNew();
-    System.err.println("Featurizing tagged data tokens...");
-    for (int i = 0, size = c.getSize(); i < size; i++) {
+    if (numFeatsAll > MAX_PACKED || maxentTagger.tags.getSize() > MAX_PACKED) {
+      throw new IllegalArgumentException("TaggerExperiments: too many extractors (" + numFeatsAll +
+                                         ") or tags (" + maxentTagger.tags.getSize() + ")");
+    }
 
-      DataWordTag d = c.get(i);
-      String yS = d.getY();
-      History h = d.getHistory();
-      int indX = tHistories.add(h);
-      int indY = d.getYInd();
-      addTemplatesNew(h, yS);
-      addRareTemplatesNew(h, yS);
-      vArray[i][0] = indX;
-      vArray[i][1] = indY;
-
-      if (i > 0 && (i % 10000) == 0) {
-        System.err.printf("%d ",i);
-        if (i % 100000 == 0) { System.err.println(); }
+    initTemplatesNew();
+    if (maxentTagger.featureHashBits > 0) {
+      hashedValues = new LongIndex();
+      valueBuckets = new long[0];
+    }
+    ExecutorService executor = null;
+    if (config.getNThreads() > 1) {
+      executor = Executors.newFixedThreadPool(config.getNThreads(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TaggerExperiments-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    }
+    try {
+      System.err.println("Featurizing tagged data tokens...");
+      featurize(c, executor, config.getNThreads());
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
       }
     }
     System.err.println();
-    System.err.println("Featurized " + c.getSize() + " data tokens [done].");
+    System.err.println("Featurized " + c.getSize() + " data tokens [done]: " + values.size() +
+                       " distinct feature values, " + sTemplates.size() + " templates.");
+    if (hashedValues != null) {
+      int numValues = hashedValues.size();
+      LongIndex buckets = new LongIndex();
+      int[] bucketSizes = new int[numValues];
+      for (int v = 0; v < numValues; v++) {
+        bucketSizes[buckets.indexOf(valueBuckets[v], true)]++;
+      }
+      int shared = 0;
+      for (int b = 0; b < buckets.size(); b++) {
+        if (bucketSizes[b] > 1) {
+          shared += bucketSizes[b];
+        }
+      }
+      System.err.printf("Feature hashing: %d distinct extractor values in %d buckets (of %d per extractor); " +
+                        "%d values (%.2f%%) share a bucket with another%n", numValues, buckets.size(),
+                        1 << maxentTagger.featureHashBits, shared, 100.0 * shared / Math.max(1, numValues));
+      hashedValues = null;
+      valueBuckets = null;
+    }
+    // the histories are all rows of tHistories now
     c.release();
+    pairs.clear();
     ptilde();
     maxentTagger.xSize = xSize;
     maxentTagger.ySize = ySize;
@@ -107,13 +184,18 @@ public class TaggerExperiments extends Experiments {
 
     hashHistories();
 
-    // if we'll look at occurring tags only, we need the histories and pairs still
+    if (maxentTagger.sparseTraining) {
+      initPossibleTags();
+    }
+
+    // if we'll look at occurring tags only, we need the histories' words still
     if (!maxentTagger.occurringTagsOnly && !maxentTagger.possibleTagsOnly) {
       tHistories.release();
-      pairs.clear();
     }
 
     getFeaturesNew();
+    tHistories.release();
+    values.clear();
   }
 
 
@@ -122,183 +204,440 @@ public class TaggerExperiments extends Experiments {
   }
 
 
-  /** Adds a FeatureKey to the set of known FeatureKeys.
-   *
-   * @param s The feature key to be added
-   * @return Whether the key was already known (false) or added (true)
+  /**
+   * The tags each history's conditional distribution is over, or null
+   * if it is over all the tags.
+   */
+  int[][] getPossibleTags() {
+    return possibleTags;
+  }
+
+
+  /**
+   * Works out possibleTags: the tags the word of each history was seen
+   * with, expanded as when tagging.  (All the training words are in the
+   * dictionary, so this always includes the history's correct tag.)
+   * Rare words stand in for unknown words, which are tagged over the
+   * open-class tags, so the rare word features are trained over those
+   * too: a rare word's possible tags are the open-class tags and the
+   * tags it was seen with.
+   * <p>
+   * When tagging, a known rare word is still only given the tags it was
+   * seen with (see TestSentence.stringTagsAt), as every known word is in
+   * a model trained over all the tags.  Giving it the open-class tags as
+   * well, to match its training, lets unlikely tags through that the
+   * dictionary would have ruled out: on a 600 sentence training set, it
+   * took the accuracy from 91.8% to 89.4%, for no gain on unknown words.
    */
-  protected boolean add(FeatureKey s) {
-    if ((sTemplates.contains(s))) {
-      return false;
+  private void initPossibleTags() {
+    System.err.println("Finding possible tags of histories ...");
+    Map<Integer, int[]> wordTags = new HashMap<Integer, int[]>();
+    possibleTags = new int[xSize][];
+    long numPairs = 0;
+    for (int x = 0; x < xSize; x++) {
+      int wordId = tHistories.getWord(x);
+      int[] tagNums = wordTags.get(wordId);
+      if (tagNums == null) {
+        String word = values.get(wordId);
+        String[] tags = maxentTagger.dict.getTags(word);
+        if (maxentTagger.isRare(word)) {
+          Set<String> rareTags = new HashSet<String>(maxentTagger.tags.getOpenTags());
+          rareTags.addAll(Arrays.asList(tags));
+          tags = rareTags.toArray(new String[rareTags.size()]);
+        }
+        tags = maxentTagger.tags.deterministicallyExpandTags(tags);
+        tagNums = new int[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+          tagNums[i] = maxentTagger.tags.getIndex(tags[i]);
+        }
+        Arrays.sort(tagNums);
+        wordTags.put(wordId, tagNums);
+      }
+      possibleTags[x] = tagNums;
+      numPairs += tagNums.length;
     }
-    sTemplates.add(s);
-    return true;
+    System.err.println("  " + numPairs + " possible x,y pairs, of " + ((long) xSize * ySize) +
+                       "; mean " + ((float) numPairs / xSize) + " tags per x");
   }
 
-  /** This method uses and deletes a file tempXXXXXX.x in the current directory! */
+
+  /**
+   * Makes the TaggerFeatures from the feature templates, with the
+   * histories each one is active on in one int array (feats.xIndexed),
+   * which is built up in memory.
+   */
   private void getFeaturesNew() {
-    // todo: Change to rethrow a RuntimeIOException.
     // todo: Move the fnumArr variable to this class. Btw, can it overflow?
-    try {
-      System.err.println("TaggerExperiments.getFeaturesNew: initializing fnumArr.");
+    Timing timing = new Timing();
+    long memoryBefore = usedMemory();
+    System.err.println("TaggerExperiments.getFeaturesNew: initializing fnumArr.");
+    if (possibleTags == null) {
       maxentTagger.fnumArr = new byte[xSize][ySize]; // what is the maximum number of active features
-      File hFile = File.createTempFile("temp",".x", new File("./"));
-      RandomAccessFile hF = new RandomAccessFile(hFile, "rw");
-      System.err.println("  length of sTemplates keys: " + sTemplates.size());
-      System.err.println("getFeaturesNew adding features ...");
-      int current = 0;
-      int numFeats = 0;
-      final boolean VERBOSE = false;
-      for (FeatureKey fK : sTemplates) {
-        int numF = fK.num;
-        int[] xValues;
-        Pair<Integer, String> wT = new Pair<Integer, String>(numF, fK.val);
-        xValues = tFeature.getXValues(wT);
-        if (xValues == null) {
-          System.err.println("  xValues is null: " + fK.toString()); //  + " " + i
+    } else {
+      maxentTagger.fnumArr = new byte[xSize][];
+      for (int x = 0; x < xSize; x++) {
+        maxentTagger.fnumArr[x] = new byte[possibleTags[x].length];
+      }
+    }
+    int[] xIndexed = new int[Math.max(xSize, 16)];
+    System.err.println("  length of sTemplates keys: " + sTemplates.size());
+    System.err.println("getFeaturesNew adding features ...");
+    int current = 0;
+    int numFeats = 0;
+    final boolean VERBOSE = false;
+    for (int t = 0, numTemplates = sTemplates.size(); t < numTemplates; t++) {
+      long template = sTemplates.get(t);
+      int value = (int) (template >>> 32);
+      int numF = (int) (template >>> 16) & 0xFFFF;
+      int y = (int) template & 0xFFFF;
+      String tag = maxentTagger.tags.getTag(y);
+      int[] xValues = tFeature.getXValues(numF, value);
+      if (xValues == null) {
+        System.err.println("  xValues is null: " + new FeatureKey(numF, values.get(value), tag)); //  + " " + i
+        continue;
+      }
+      int numEvidence = 0;
+      for (int xValue : xValues) {
+
+        if (maxentTagger.occurringTagsOnly) {
+          //check whether the current word in x has occurred with y
+          String word = values.get(tHistories.getWord(xValue));
+          if (maxentTagger.dict.getCount(word, tag) == 0) {
+            continue;
+          }
+        }
+        if (possibleTags != null && Arrays.binarySearch(possibleTags[xValue], y) < 0) {
           continue;
         }
-        int numEvidence = 0;
-        int y = maxentTagger.tags.getIndex(fK.tag);
-        for (int xValue : xValues) {
-
-          if (maxentTagger.occurringTagsOnly) {
-            //check whether the current word in x has occurred with y
-            String word = ExtractorFrames.cWord.extract(tHistories.getHistory(xValue));
-            if (maxentTagger.dict.getCount(word, fK.tag) == 0) {
-              continue;
-            }
-          }
-          if (maxentTagger.possibleTagsOnly) {
-            String word = ExtractorFrames.cWord.extract(tHistories.getHistory(xValue));
-            String[] tags = maxentTagger.dict.getTags(word);
-            Set<String> s = new HashSet<String>(Arrays.asList(maxentTagger.tags.deterministicallyExpandTags(tags)));
-            if(DEBUG)
-              System.err.printf("possible tags for %s: %s\n", word, Arrays.toString(s.toArray()));
-            if(!s.contains(fK.tag))
-              continue;
-          }
-          numEvidence += this.px[xValue];
+        if (maxentTagger.possibleTagsOnly) {
+          String word = values.get(tHistories.getWord(xValue));
+          String[] tags = maxentTagger.dict.getTags(word);
+          Set<String> s = new HashSet<String>(Arrays.asList(maxentTagger.tags.deterministicallyExpandTags(tags)));
+          if(DEBUG)
+            System.err.printf("possible tags for %s: %s\n", word, Arrays.toString(s.toArray()));
+          if(!s.contains(tag))
+            continue;
         }
+        numEvidence += this.px[xValue];
+      }
 
-        if (populated(numF, numEvidence)) {
-          int[] positions = tFeature.getPositions(fK);
-          if (maxentTagger.occurringTagsOnly || maxentTagger.possibleTagsOnly) { // TODO
-            positions = null;
-          }
+      if (populated(numF, numEvidence)) {
+        FeatureKey fK = new FeatureKey(numF, values.get(value), tag);
+        int[] positions = tFeature.getPositions(numF, value);
+        if (maxentTagger.occurringTagsOnly || maxentTagger.possibleTagsOnly || possibleTags != null) { // TODO
+          positions = null;
+        }
 
-          if (positions == null) {
-            // write this in the file and create a TaggerFeature for it
-            //int numElem
-            int numElements = 0;
-
-            for (int x : xValues) {
-              if (maxentTagger.occurringTagsOnly) {
-                //check whether the current word in x has occurred with y
-                String word = ExtractorFrames.cWord.extract(tHistories.getHistory(x));
-                if (maxentTagger.dict.getCount(word, fK.tag) == 0) {
-                  continue;
-                }
+        if (positions == null) {
+          // add its histories to the index and create a TaggerFeature for it
+          //int numElem
+          int numElements = 0;
+
+          for (int x : xValues) {
+            if (maxentTagger.occurringTagsOnly) {
+              //check whether the current word in x has occurred with y
+              String word = values.get(tHistories.getWord(x));
+              if (maxentTagger.dict.getCount(word, tag) == 0) {
+                continue;
               }
-              if(maxentTagger.possibleTagsOnly) {
-                String word = ExtractorFrames.cWord.extract(tHistories.getHistory(x));
-                String[] tags = maxentTagger.dict.getTags(word);
-                Set<String> s = new HashSet<String>(Arrays.asList(maxentTagger.tags.deterministicallyExpandTags(tags)));
-                if(!s.contains(fK.tag))
-                  continue;
-              }
-              numElements++;
-
-              hF.writeInt(x);
-              maxentTagger.fnumArr[x][y]++;
             }
-            TaggerFeature tF = new TaggerFeature(current, current + numElements - 1, fK,
-                                                 maxentTagger.tags, this);
-            tFeature.addPositions(current, current + numElements - 1, fK);
-            current = current + numElements;
-            feats.add(tF);
-            if (VERBOSE) {
-              System.err.println("  added feature with key " + fK.toString() + " has support " + numElements);
+            if (possibleTags != null && Arrays.binarySearch(possibleTags[x], y) < 0) {
+              continue;
             }
-          } else {
-
-            for(int x : xValues) {
-              maxentTagger.fnumArr[x][y]++;
+            if(maxentTagger.possibleTagsOnly) {
+              String word = values.get(tHistories.getWord(x));
+              String[] tags = maxentTagger.dict.getTags(word);
+              Set<String> s = new HashSet<String>(Arrays.asList(maxentTagger.tags.deterministicallyExpandTags(tags)));
+              if(!s.contains(tag))
+                continue;
             }
-            // this is the second time to write these values
-            TaggerFeature tF = new TaggerFeature(positions[0], positions[1], fK,
-                                                 maxentTagger.tags, this);
-            feats.add(tF);
-            if (VERBOSE) {
-              System.err.println("  added feature with key " + fK.toString() + " has support " + xValues.length);
+            numElements++;
+
+            if (current + numElements > xIndexed.length) {
+              xIndexed = Arrays.copyOf(xIndexed, Math.max(current + numElements, xIndexed.length * 2));
             }
+            xIndexed[current + numElements - 1] = x;
+            maxentTagger.fnumArr[x][(possibleTags == null) ? y : Arrays.binarySearch(possibleTags[x], y)]++;
+          }
+          TaggerFeature tF = new TaggerFeature(current, current + numElements - 1, fK,
+                                               maxentTagger.tags, this);
+          tFeature.addPositions(current, current + numElements - 1, numF, value);
+          current = current + numElements;
+          feats.add(tF);
+          if (VERBOSE) {
+            System.err.println("  added feature with key " + fK.toString() + " has support " + numElements);
           }
+        } else {
 
-          maxentTagger.fAssociations.put(fK, numFeats);
-          numFeats++;
+          for(int x : xValues) {
+            maxentTagger.fnumArr[x][y]++;
+          }
+          // this is the second time to write these values
+          TaggerFeature tF = new TaggerFeature(positions[0], positions[1], fK,
+                                               maxentTagger.tags, this);
+          feats.add(tF);
+          if (VERBOSE) {
+            System.err.println("  added feature with key " + fK.toString() + " has support " + xValues.length);
+          }
         }
 
-      } // foreach FeatureKey fK
-      // read out the file and put everything in an array of ints stored in Feats
-      tFeature.release();
-      feats.xIndexed = new int[current];
-      hF.seek(0);
-      int current1 = 0;
-      while (current1 < current) {
-        feats.xIndexed[current1] = hF.readInt();
-        current1++;
+        maxentTagger.fAssociations.put(fK, numFeats);
+        numFeats++;
       }
-      System.err.println("  total feats: " + sTemplates.size() + ", populated: " + numFeats);
-      hF.close();
-      hFile.delete();
-
-      // what is the maximum number of active features per pair
-      int max = 0;
-      int maxGt = 0;
-      int numZeros = 0;
-      for (int x = 0; x < xSize; x++) {
-        int numGt = 0;
-        for (int y = 0; y < ySize; y++) {
-          if (maxentTagger.fnumArr[x][y] > 0) {
-            numGt++;
-            if (max < maxentTagger.fnumArr[x][y]) {
-              max = maxentTagger.fnumArr[x][y];
-            }
-          } else {
-            // if 00
-            numZeros++;
+
+    } // for each template
+    tFeature.release();
+    feats.xIndexed = (xIndexed.length == current) ? xIndexed : Arrays.copyOf(xIndexed, current);
+    System.err.println("  total feats: " + sTemplates.size() + ", populated: " + numFeats);
+    System.err.println("  feature index: " + current + " entries, " + (4L * current / 1024) + " KB");
+
+    // what is the maximum number of active features per pair
+    int max = 0;
+    int maxGt = 0;
+    long numZeros = 0;
+    long numNonZeros = 0;
+    for (int x = 0; x < xSize; x++) {
+      int numGt = 0;
+      for (int y = 0; y < maxentTagger.fnumArr[x].length; y++) {
+        if (maxentTagger.fnumArr[x][y] > 0) {
+          numGt++;
+          numNonZeros++;
+          if (max < maxentTagger.fnumArr[x][y]) {
+            max = maxentTagger.fnumArr[x][y];
           }
+        } else {
+          // if 00
+          numZeros++;
+        }
+      }
+      if (maxGt < numGt) {
+        maxGt = numGt;
+      }
+    } // for x
+
+    System.err.println("  Max features per x,y pair: " + max);
+    System.err.println("  Max non-zero y values for an x: " + maxGt);
+    System.err.println("  Number of non-zero feature x,y pairs: " + numNonZeros);
+    System.err.println("  Number of zero feature x,y pairs: " + numZeros);
+    System.err.println("end getFeaturesNew: " + Timing.toSecondsString(timing.stop()) + " sec, " +
+                       ((usedMemory() - memoryBefore) / (1024 * 1024)) + " MB more heap in use.");
+  }
+
+
+  /** The heap memory in use, in bytes (as of the last garbage collection, roughly). */
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+
+  /**
+   * Finds the histories and feature templates of the tokens.  The tokens
+   * are split into shards of (about) SHARD_SIZE, each of which interns
+   * its own extractor values and finds its own histories and templates,
+   * in the order they first occur in it; these are then added to values,
+   * tHistories and sTemplates shard by shard.  So the values and
+   * histories get the same numbers, and the templates are added in the
+   * same order, whatever the number of threads.  With no executor, the
+   * shards are done one after another on this thread; otherwise the
+   * tokens of a few shards per thread are read ahead of the one being
+   * added, so that only they are in memory when streaming.
+   */
+  private void featurize(ReadDataTagged c, ExecutorService executor, int nThreads) {
+    Iterator<List<DataWordTag>> chunks = c.chunks(SHARD_SIZE);
+    int start = 0;
+    if (executor == null) {
+      while (chunks.hasNext()) {
+        List<DataWordTag> chunk = chunks.next();
+        addShard(featurizeShard(chunk, start));
+        start += chunk.size();
+      }
+      return;
+    }
+    LinkedList<Future<Shard>> pending = new LinkedList<Future<Shard>>();
+    while (chunks.hasNext() || ! pending.isEmpty()) {
+      while (chunks.hasNext() && pending.size() < 2 * nThreads) {
+        final List<DataWordTag> chunk = chunks.next();
+        final int chunkStart = start;
+        pending.add(executor.submit(new Callable<Shard>() {
+            public Shard call() {
+              return featurizeShard(chunk, chunkStart);
+            }
+          }));
+        start += chunk.size();
+      }
+      addShard(getShard(pending.removeFirst()));
+    }
+  }
+
+
+  /**
+   * Finds the values of the extractors on each token of a shard, and so
+   * its history and feature templates.  The extractors that are zero
+   * ("0") on a token are part of its history, but not of any template.
+   * With feature hashing, the other values are replaced by their
+   * buckets' (see FeatureTable.hashedValue).
+   */
+  private Shard featurizeShard(List<DataWordTag> tokens, int start) {
+    Shard shard = new Shard(start, tokens.size(), numFeatsGeneral);
+    int hashBits = maxentTagger.featureHashBits;
+    int[] row = new int[numFeatsAll];
+    for (int i = 0; i < shard.xs.length; i++) {
+      DataWordTag d = tokens.get(i);
+      History h = d.getHistory();
+      String tag = d.getY();
+      int tagIndex = d.getYInd();
+      String word = ExtractorFrames.cWord.extract(h);
+      int fSize = maxentTagger.isRare(word) ? numFeatsAll : numFeatsGeneral;
+      for (int j = 0; j < fSize; j++) {
+        String s = (j < numFeatsGeneral) ? maxentTagger.extractors.extract(j, h) :
+          maxentTagger.extractorsRare.extract(j - numFeatsGeneral, h);
+        if (hashBits > 0 && ! s.equals(zeroSt)) {
+          int bucket = FeatureTable.bucket(j, s, hashBits);
+          int v = shard.hashedValues.indexOf(valueFingerprint(j, s), true);
+          shard.valueBuckets = set(shard.valueBuckets, v, ((long) j << 32) | bucket);
+          s = FeatureTable.hashedValue(bucket);
         }
-        if (maxGt < numGt) {
-          maxGt = numGt;
+        row[j] = shard.values.indexOf(s, true);
+        if ( ! s.equals(zeroSt)) {
+          addTemplates(j, row[j], tag, tagIndex, shard.templates);
         }
-      } // for x
-
-      System.err.println("  Max features per x,y pair: " + max);
-      System.err.println("  Max non-zero y values for an x: " + maxGt);
-      System.err.println("  Number of non-zero feature x,y pairs: " +
-          (xSize * ySize - numZeros));
-      System.err.println("  Number of zero feature x,y pairs: " + numZeros);
-      System.err.println("end getFeaturesNew.");
-    } catch (Exception e) {
-      e.printStackTrace();
+      }
+      shard.xs[i] = shard.histories.add(row, fSize, shard.values.indexOf(word, true));
+      shard.ys[i] = tagIndex;
+    }
+    return shard;
+  }
+
+
+  /**
+   * Adds the values, histories and templates of a shard to those of the
+   * shards before it, renumbering its values and histories.
+   */
+  private void addShard(Shard shard) {
+    int[] globalValues = new int[shard.values.size()];
+    for (int v = 0; v < globalValues.length; v++) {
+      globalValues[v] = values.indexOf(shard.values.get(v), true);
+    }
+    int[] row = new int[numFeatsAll];
+    int[] globalXs = new int[shard.histories.size()];
+    for (int localX = 0; localX < globalXs.length; localX++) {
+      int[] localRow = shard.histories.getRow(localX);
+      for (int j = 0; j < localRow.length; j++) {
+        row[j] = globalValues[localRow[j]];
+      }
+      globalXs[localX] = tHistories.add(row, localRow.length, globalValues[shard.histories.getWord(localX)]);
+    }
+    for (int i = 0; i < shard.xs.length; i++) {
+      vArray[shard.start + i][0] = globalXs[shard.xs[i]];
+      vArray[shard.start + i][1] = shard.ys[i];
+    }
+    for (int t = 0, numTemplates = shard.templates.size(); t < numTemplates; t++) {
+      long template = shard.templates.get(t);
+      int value = globalValues[(int) (template >>> 32)];
+      sTemplates.indexOf(((long) value << 32) | (template & 0xFFFFFFFFL), true);
+    }
+    if (hashedValues != null) {
+      for (int i = 0, size = shard.hashedValues.size(); i < size; i++) {
+        int v = hashedValues.indexOf(shard.hashedValues.get(i), true);
+        valueBuckets = set(valueBuckets, v, shard.valueBuckets[i]);
+      }
+    }
+    int end = shard.start + shard.xs.length;
+    if (end / 100000 > shard.start / 100000) {
+      System.err.printf("%d ", end);
+    }
+  }
+
+
+  /** The values, histories and templates found in one shard of the tokens. */
+  private static class Shard {
+    final int start;
+    final int[] xs;
+    final int[] ys;
+    final Index<String> values = new HashIndex<String>();
+    final HistoryTable histories;
+    final LongIndex templates = new LongIndex();
+    // for the feature hashing statistics
+    final LongIndex hashedValues = new LongIndex();
+    long[] valueBuckets = new long[0];
+
+    Shard(int start, int size, int numFeatsGeneral) {
+      this.start = start;
+      xs = new int[size];
+      ys = new int[size];
+      histories = new HistoryTable(numFeatsGeneral);
+    }
+  }
+
+
+  /** Sets array[index], first growing the array if it is too short. */
+  private static long[] set(long[] array, int index, long value) {
+    if (index >= array.length) {
+      array = Arrays.copyOf(array, Math.max(16, Math.max(index + 1, array.length * 2)));
+    }
+    array[index] = value;
+    return array;
+  }
+
+
+  /**
+   * A 64 bit (FNV-1a) hash of the extractor number and an extractor
+   * value, to count the distinct values without keeping them.  Each is
+   * hashed a byte at a time (the number's 4, then each char's 2), so
+   * that the number and the value can't cancel each other out.
+   */
+  private static long valueFingerprint(int extractor, String value) {
+    long h = 0xcbf29ce484222325L;
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      h ^= (extractor >>> shift) & 0xff;
+      h *= 0x100000001b3L;
+    }
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char c = value.charAt(i);
+      h ^= c >>> 8;
+      h *= 0x100000001b3L;
+      h ^= c & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+
+  /**
+   * Waits for a shard, rethrowing whatever featurizing it threw.
+   */
+  private static Shard getShard(Future<Shard> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while extracting features", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
     }
   }
 
 
   private void hashHistories() {
-    int fAll = maxentTagger.extractors.getSize() + maxentTagger.extractorsRare.getSize();
-    int fGeneral = maxentTagger.extractors.getSize();
+    int zero = values.indexOf(zeroSt);
     System.err.println("Hashing histories ...");
     for (int x = 0; x < xSize; x++) {
-      History h = tHistories.getHistory(x);
+      int[] row = tHistories.getRow(x);
       if (x > 0 && x % 10000 == 0) {
         System.err.printf("%d ",x);
         if (x % 100000 == 0) { System.err.println(); }
       }
-      int fSize = (maxentTagger.isRare(ExtractorFrames.cWord.extract(h)) ? fAll : fGeneral);
-      for (int i = 0; i < fSize; i++) {
-        tFeature.addPrev(i, h);
+      for (int i = 0; i < row.length; i++) {
+        if (row[i] != zero) {
+          tFeature.addPrev(i, row[i]);
+        }
       }
     } // for x
     // now for the populated ones
@@ -306,14 +645,15 @@ public class TaggerExperiments extends Experiments {
     System.err.println("Hashed " + xSize + " histories.");
     System.err.println("Hashing populated histories ...");
     for (int x = 0; x < xSize; x++) {
-      History h = tHistories.getHistory(x);
+      int[] row = tHistories.getRow(x);
       if (x > 0 && x % 10000 == 0) {
         System.err.print(x + " ");
         if (x % 100000 == 0) { System.err.println(); }
       }
-      int fSize = (maxentTagger.isRare(ExtractorFrames.cWord.extract(h)) ? fAll : fGeneral);
-      for (int i = 0; i < fSize; i++) {
-        tFeature.add(i, h, x); // write this to check whether to add
+      for (int i = 0; i < row.length; i++) {
+        if (row[i] != zero) {
+          tFeature.add(i, row[i], x); // write this to check whether to add
+        }
       }
     } // for x
     System.err.println();
@@ -341,81 +681,31 @@ public class TaggerExperiments extends Experiments {
   }
 
 
-  // Add a new feature key in a hashtable of feature templates
-  private void addTemplatesNew(History h, String tag) {
-    // Feature templates general
-
-    for (int i = 0; i < numFeatsGeneral; i++) {
-      String s = maxentTagger.extractors.extract(i, h);
-      if (s.equals(zeroSt)) {
-        continue;
-      } //do not add the feature
-      //iterate over tags in dictionary
-      if (maxentTagger.alltags) {
-        int numTags = maxentTagger.tags.getSize();
-        for (int j = 0; j < numTags; j++) {
-
-          String tag1 = maxentTagger.tags.getTag(j);
-
-          FeatureKey key = new FeatureKey(i, s, tag1);
-
-          if (!maxentTagger.extractors.get(i).precondition(tag1)) {
-            continue;
-          }
-
-          add(key);
-        }
-      } else {
-        //only this tag
-        FeatureKey key = new FeatureKey(i, s, tag);
-
-        if (!maxentTagger.extractors.get(i).precondition(tag)) {
-          continue;
-        }
-
-        add(key);
-      }
-    }
+  /**
+   * The key of a feature template in sTemplates: the (interned) value
+   * of the extractor in the high 32 bits, then 16 bits each for the
+   * extractor number and the tag number.
+   */
+  private static long templateKey(int value, int nFeatFrame, int tagIndex) {
+    return ((long) value << 32) | ((long) nFeatFrame << 16) | tagIndex;
   }
 
 
-  private void addRareTemplatesNew(History h, String tag) {
-    // Feature templates rare
-
-    if (!(maxentTagger.isRare(ExtractorFrames.cWord.extract(h)))) {
-      return;
-    }
-    int start = numFeatsGeneral;
-    for (int i = start; i < numFeatsAll; i++) {
-      String s = maxentTagger.extractorsRare.extract(i - start, h);
-
-      if (s.equals(zeroSt)) {
-        continue;
-      } //do not add the feature
-      if (maxentTagger.alltags) {
-        int numTags = maxentTagger.tags.getSize();
-        for (int j = 0; j < numTags; j++) {
-
-          String tag1 = maxentTagger.tags.getTag(j);
-
-          FeatureKey key = new FeatureKey(i, s, tag1);
-
-          if (!maxentTagger.extractorsRare.get(i - start).precondition(tag1)) {
-            continue;
-          }
-
-          add(key);
+  // Add the feature templates of an extractor value to a set of them
+  private void addTemplates(int i, int value, String tag, int tagIndex, LongIndex templates) {
+    Extractor e = (i < numFeatsGeneral) ? maxentTagger.extractors.get(i) :
+      maxentTagger.extractorsRare.get(i - numFeatsGeneral);
+    //iterate over tags in dictionary
+    if (maxentTagger.alltags) {
+      int numTags = maxentTagger.tags.getSize();
+      for (int j = 0; j < numTags; j++) {
+        if (e.precondition(maxentTagger.tags.getTag(j))) {
+          templates.indexOf(templateKey(value, i, j), true);
         }
-      } else {
-        //only this tag
-        FeatureKey key = new FeatureKey(i, s, tag);
-
-        if (!maxentTagger.extractorsRare.get(i - start).precondition(tag)) {
-          continue;
-        }
-
-        add(key);
       }
+    } else if (e.precondition(tag)) {
+      //only this tag
+      templates.indexOf(templateKey(value, i, tagIndex), true);
     }
   }
 
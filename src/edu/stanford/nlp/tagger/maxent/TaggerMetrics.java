@@ -0,0 +1,34 @@
+package edu.stanford.nlp.tagger.maxent;
+
+
+/**
+ * Receives measurements of tagging as it happens, for monitoring a
+ * tagger that is in use (for instance in a {@link MaxentTaggerServer}).
+ * Set one with {@link MaxentTagger#setMetrics}; {@link TaggerStats} is
+ * one that keeps counts and a latency histogram.  The methods are called
+ * from whatever threads are tagging, so they must be thread-safe, and
+ * they should be quick.
+ */
+public interface TaggerMetrics {
+
+  /**
+   * Called when a TestSentence has tagged a sentence.
+   *
+   * @param numWords The number of words in the sentence
+   * @param numUnknown How many of them the tagger's dictionary doesn't have
+   * @param historiesNanos The time spent scoring the words' histories
+   *     (in getHistories)
+   * @param decodeNanos The rest of the time spent tagging the sentence,
+   *     mostly in the decoder (Viterbi, by default)
+   */
+  void sentenceTagged(int numWords, int numUnknown, long historiesNanos, long decodeNanos);
+
+  /**
+   * Called when text has been split into sentences of tokens to tag.
+   *
+   * @param numSentences The number of sentences
+   * @param nanos The time taken
+   */
+  void textTokenized(int numSentences, long nanos);
+
+}
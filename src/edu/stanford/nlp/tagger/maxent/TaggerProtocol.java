@@ -0,0 +1,425 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.HasOffset;
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.process.Morphology;
+
+
+/**
+ * The framed binary protocol of {@link MaxentTaggerServer}, which a
+ * keep-alive server speaks alongside the line protocol.  A client starts
+ * the connection with the int {@link #MAGIC} (whose first byte is 0, so
+ * that no line of text starts like it), and then sends requests and
+ * reads responses, each a message: an int, the number of bytes that
+ * follow, and then the body.  Requests may be pipelined, and are
+ * answered in order.  All numbers are big-endian, as DataOutput writes
+ * them, and strings are as writeUTF writes them.
+ * <p>
+ * A request body is a byte op and then:
+ * <ul>
+ * <li>{@link #OP_TAGSET}: nothing.  The response is the tags, as an int
+ *     count and the strings, in the order of their ids.
+ * <li>{@link #OP_TAG}: an int of flags, an int count of items and the
+ *     items.  Without {@link #TOKENIZED}, an item is a text (an int
+ *     length and that many bytes of UTF-8), which is tokenized and split
+ *     into sentences as the server is configured to.  With it, an item is
+ *     a sentence: an int count of tokens and the token strings, and then,
+ *     with {@link #PRETAGGED}, the same number of tag strings, of which
+ *     the nonempty ones are kept, as with <code>reuseTags</code> in
+ *     {@link MaxentTagger#tagSentence(List, boolean)}.  The response has
+ *     for each item an int count of sentences (one, for a token array),
+ *     and for each sentence an int count of tokens, and for each token:
+ *     its string (only without TOKENIZED), its tag (a short id with
+ *     {@link #TAG_IDS}, or -1 for a kept tag that the model doesn't
+ *     have, else the string), its begin and end character
+ *     offsets as ints (-1 if the tokenizer doesn't give them; for a
+ *     token array, they are offsets into the tokens joined by single
+ *     spaces), and with {@link #LEMMAS}, its lemma.
+ * </ul>
+ * A response body is a byte status and then, for {@link #STATUS_OK}, the
+ * result, or for {@link #STATUS_ERROR} or {@link #STATUS_BUSY} (the
+ * server shed the request, which can be sent again), a string message.
+ * <p>
+ * The static methods here write requests and read responses, for a Java
+ * client; TaggerClient in MaxentTaggerServer uses them.
+ */
+public class TaggerProtocol {
+
+  /** Starts a connection in this protocol. */
+  public static final int MAGIC = 0x00544701;
+
+  /** The largest message body allowed. */
+  public static final int MAX_MESSAGE = 64 << 20;
+
+  public static final byte OP_TAG = 1;
+  public static final byte OP_TAGSET = 2;
+
+  /** Items are token arrays rather than texts. */
+  public static final int TOKENIZED = 1;
+  /** Token arrays come with tags to keep. */
+  public static final int PRETAGGED = 2;
+  /** Answer with tag ids rather than tag strings. */
+  public static final int TAG_IDS = 4;
+  /** Answer with the lemma of each token too. */
+  public static final int LEMMAS = 8;
+
+  public static final byte STATUS_OK = 0;
+  public static final byte STATUS_ERROR = 1;
+  /** The server was too busy to take the request. */
+  public static final byte STATUS_BUSY = 2;
+
+  private TaggerProtocol() {
+  }
+
+
+  /**
+   * Thrown when reading the response to a request that the server shed.
+   * The connection can still be used.
+   */
+  public static class ServerBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServerBusyException(String message) {
+      super(message);
+    }
+
+  }
+
+
+  //// The server side
+
+  /**
+   * Answers a request: returns the whole response message, length and
+   * all.  Errors in the request (or in tagging it) give an error
+   * response rather than an exception.
+   *
+   * @param tagger The tagger, and its tokenizer, to answer with
+   * @param request The body of a request message
+   * @param testSentence What to tag with (it is reused by the caller)
+   * @return The response message
+   */
+  static byte[] respond(MaxentTagger.TaggerWrapper tagger, byte[] request, TestSentence testSentence) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      try {
+        out.writeInt(0); // the length, set below
+        out.writeByte(STATUS_OK);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+        byte op = in.readByte();
+        if (op == OP_TAGSET) {
+          TTags tags = tagger.getTagger().tags;
+          out.writeInt(tags.getSize());
+          for (int i = 0; i < tags.getSize(); i++) {
+            out.writeUTF(tags.getTag(i));
+          }
+        } else if (op == OP_TAG) {
+          tag(tagger, testSentence, in, out);
+        } else {
+          throw new IllegalArgumentException("Unknown op " + op);
+        }
+      } catch (EOFException e) {
+        bytes.reset();
+        writeError(out, "Request ends too soon");
+      } catch (IOException e) {
+        bytes.reset();
+        writeError(out, "Bad request: " + e);
+      } catch (RuntimeException e) {
+        bytes.reset();
+        writeError(out, e.toString());
+      }
+      out.close();
+    } catch (IOException e) {
+      // it's all in memory
+      throw new RuntimeException(e);
+    }
+    return withLength(bytes.toByteArray());
+  }
+
+  /**
+   * The response to a request that the server sheds because it is too
+   * busy.  The client may send it again later.
+   */
+  static byte[] busyResponse() {
+    return statusResponse(STATUS_BUSY, "Server busy");
+  }
+
+  /**
+   * An error response, for a request that the server failed to answer
+   * other than through respond.
+   */
+  static byte[] errorResponse(String message) {
+    return statusResponse(STATUS_ERROR, message);
+  }
+
+  private static byte[] statusResponse(byte status, String message) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0);
+      out.writeByte(status);
+      out.writeUTF(message);
+      out.close();
+    } catch (IOException e) {
+      // it's all in memory
+      throw new RuntimeException(e);
+    }
+    return withLength(bytes.toByteArray());
+  }
+
+  /** Fills in the length at the start of a message. */
+  private static byte[] withLength(byte[] response) {
+    int length = response.length - 4;
+    response[0] = (byte) (length >>> 24);
+    response[1] = (byte) (length >>> 16);
+    response[2] = (byte) (length >>> 8);
+    response[3] = (byte) length;
+    return response;
+  }
+
+  private static void writeError(DataOutputStream out, String message) throws IOException {
+    out.writeInt(0);
+    out.writeByte(STATUS_ERROR);
+    out.writeUTF(message);
+  }
+
+  private static void tag(MaxentTagger.TaggerWrapper tagger, TestSentence testSentence,
+                          DataInputStream in, DataOutputStream out) throws IOException
+  {
+    int flags = in.readInt();
+    boolean tokenized = (flags & TOKENIZED) != 0;
+    boolean pretagged = (flags & PRETAGGED) != 0;
+    boolean tagIds = (flags & TAG_IDS) != 0;
+    Morphology morpha = ((flags & LEMMAS) != 0) ? new Morphology() : null;
+
+    int numItems = readCount(in, 4);
+    out.writeInt(numItems);
+    for (int item = 0; item < numItems; item++) {
+      if (tokenized) {
+        int numTokens = readCount(in, 2);
+        List<TaggedWord> sentence = new ArrayList<TaggedWord>(numTokens);
+        int offset = 0;
+        for (int i = 0; i < numTokens; i++) {
+          String token = in.readUTF();
+          TaggedWord word = new TaggedWord(token);
+          word.setBeginPosition(offset);
+          word.setEndPosition(offset + token.length());
+          offset += token.length() + 1;
+          sentence.add(word);
+        }
+        if (pretagged) {
+          for (TaggedWord word : sentence) {
+            String tag = in.readUTF();
+            word.setTag((tag.length() > 0) ? tag : null);
+          }
+        }
+        out.writeInt(1);
+        List<TaggedWord> tagged = sentence.isEmpty() ? sentence : testSentence.tagSentence(sentence, pretagged);
+        writeSentence(out, sentence, tagged, false, tagIds, morpha, tagger.getTagger().tags);
+      } else {
+        byte[] text = new byte[readCount(in, 1)];
+        in.readFully(text);
+        List<List<HasWord>> sentences = tagger.tokenize(new String(text, "utf-8"));
+        out.writeInt(sentences.size());
+        for (List<HasWord> sentence : sentences) {
+          writeSentence(out, sentence, testSentence.tagSentence(sentence, false), true, tagIds, morpha,
+                        tagger.getTagger().tags);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a count of things in the rest of the request, each taking at
+   * least bytesEach bytes, and checks that the request is long enough to
+   * hold them, so that a bad count gives an error response rather than
+   * a huge allocation.  (in reads a byte array, so what is available is
+   * just what is left of the request.)
+   */
+  private static int readCount(DataInputStream in, int bytesEach) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || (long) count * bytesEach > in.available()) {
+      throw new IOException("Count " + count + " is more than the rest of the request holds");
+    }
+    return count;
+  }
+
+  private static void writeSentence(DataOutputStream out, List<? extends HasWord> sentence,
+                                    List<TaggedWord> tagged, boolean withWords, boolean tagIds,
+                                    Morphology morpha, TTags tags) throws IOException {
+    out.writeInt(tagged.size());
+    for (int i = 0; i < tagged.size(); i++) {
+      TaggedWord word = tagged.get(i);
+      if (withWords) {
+        out.writeUTF(word.word());
+      }
+      if (tagIds) {
+        out.writeShort(tags.getIndex(word.tag()));
+      } else {
+        out.writeUTF(word.tag());
+      }
+      HasWord original = sentence.get(i);
+      if (original instanceof HasOffset) {
+        out.writeInt(((HasOffset) original).beginPosition());
+        out.writeInt(((HasOffset) original).endPosition());
+      } else {
+        out.writeInt(-1);
+        out.writeInt(-1);
+      }
+      if (morpha != null) {
+        out.writeUTF(morpha.lemma(word.word(), word.tag()));
+      }
+    }
+  }
+
+
+  //// The client side
+
+  /**
+   * Writes a request to tag texts, which the server tokenizes.
+   *
+   * @param out Where to write it (it isn't flushed)
+   * @param texts The texts
+   * @param flags Any of TAG_IDS and LEMMAS
+   */
+  public static void writeTagRequest(DataOutputStream out, List<String> texts, int flags) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bytes);
+    body.writeByte(OP_TAG);
+    body.writeInt(flags & ~(TOKENIZED | PRETAGGED));
+    body.writeInt(texts.size());
+    for (String text : texts) {
+      byte[] utf8 = text.getBytes("utf-8");
+      body.writeInt(utf8.length);
+      body.write(utf8);
+    }
+    writeMessage(out, bytes);
+  }
+
+  /**
+   * Writes a request to tag tokenized sentences.
+   *
+   * @param out Where to write it (it isn't flushed)
+   * @param sentences The tokens of each sentence
+   * @param tags If not null, tags to keep for each token of each
+   *     sentence: null or "" lets the tagger choose
+   * @param flags Any of TAG_IDS and LEMMAS
+   */
+  public static void writeTagRequest(DataOutputStream out, List<List<String>> sentences,
+                                     List<List<String>> tags, int flags) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bytes);
+    body.writeByte(OP_TAG);
+    flags = (flags | TOKENIZED) & ~PRETAGGED;
+    body.writeInt((tags != null) ? flags | PRETAGGED : flags);
+    body.writeInt(sentences.size());
+    for (int s = 0; s < sentences.size(); s++) {
+      List<String> tokens = sentences.get(s);
+      body.writeInt(tokens.size());
+      for (String token : tokens) {
+        body.writeUTF(token);
+      }
+      if (tags != null) {
+        for (int i = 0; i < tokens.size(); i++) {
+          String tag = tags.get(s).get(i);
+          body.writeUTF((tag != null) ? tag : "");
+        }
+      }
+    }
+    writeMessage(out, bytes);
+  }
+
+  /** Writes a request for the tags, whose ids TAG_IDS answers with. */
+  public static void writeTagsetRequest(DataOutputStream out) throws IOException {
+    out.writeInt(1);
+    out.writeByte(OP_TAGSET);
+  }
+
+  private static void writeMessage(DataOutputStream out, ByteArrayOutputStream body) throws IOException {
+    if (body.size() > MAX_MESSAGE) {
+      throw new IllegalArgumentException("Request of " + body.size() + " bytes is too long");
+    }
+    out.writeInt(body.size());
+    body.writeTo(out);
+  }
+
+  /** Reads the response to a tagset request. */
+  public static String[] readTagsetResponse(DataInputStream in) throws IOException {
+    readStatus(in);
+    String[] tags = new String[in.readInt()];
+    for (int i = 0; i < tags.length; i++) {
+      tags[i] = in.readUTF();
+    }
+    return tags;
+  }
+
+  /**
+   * Reads the response to a tag request, as a list of sentences of
+   * CoreLabels with their word, tag, offsets and (if asked for) lemma
+   * set, and their sentIndex set to the index of the item (text or
+   * token array) of the request that they came from.
+   *
+   * @param in Where to read it
+   * @param flags The flags of the request
+   * @param tagset The tags, if TAG_IDS was asked for
+   * @param tokens The token arrays of the request, if tokenized (their
+   *     words aren't sent back)
+   */
+  public static List<List<CoreLabel>> readTagResponse(DataInputStream in, int flags, String[] tagset,
+                                                      List<List<String>> tokens) throws IOException {
+    readStatus(in);
+    boolean tokenized = tokens != null;
+    int numItems = in.readInt();
+    List<List<CoreLabel>> sentences = new ArrayList<List<CoreLabel>>();
+    for (int item = 0; item < numItems; item++) {
+      int numSentences = in.readInt();
+      for (int s = 0; s < numSentences; s++) {
+        int numTokens = in.readInt();
+        List<CoreLabel> sentence = new ArrayList<CoreLabel>(numTokens);
+        for (int i = 0; i < numTokens; i++) {
+          CoreLabel label = new CoreLabel();
+          label.setWord(tokenized ? tokens.get(item).get(i) : in.readUTF());
+          label.setValue(label.word());
+          if ((flags & TAG_IDS) != 0) {
+            int id = in.readShort();
+            label.setTag((id >= 0) ? tagset[id] : null);
+          } else {
+            label.setTag(in.readUTF());
+          }
+          label.setBeginPosition(in.readInt());
+          label.setEndPosition(in.readInt());
+          if ((flags & LEMMAS) != 0) {
+            label.setLemma(in.readUTF());
+          }
+          label.setSentIndex(item);
+          sentence.add(label);
+        }
+        sentences.add(sentence);
+      }
+    }
+    return sentences;
+  }
+
+  private static void readStatus(DataInputStream in) throws IOException {
+    in.readInt(); // the length
+    byte status = in.readByte();
+    if (status == STATUS_BUSY) {
+      throw new ServerBusyException(in.readUTF());
+    } else if (status != STATUS_OK) {
+      throw new IOException("Tagger server error: " + in.readUTF());
+    }
+  }
+
+}
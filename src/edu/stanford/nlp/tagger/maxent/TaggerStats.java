@@ -0,0 +1,196 @@
+package edu.stanford.nlp.tagger.maxent;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A {@link TaggerMetrics} that keeps running totals (sentences, words,
+ * unknown words, and the time spent tokenizing, scoring histories and
+ * decoding), the rates of sentences and words over the last few
+ * seconds, and a histogram of the time taken to tag each sentence, from
+ * which it estimates latency percentiles.  Everything is kept in atomic
+ * counters, so recording doesn't lock.  {@link #report} writes it all
+ * as plain text, one <code>name value</code> line per measurement (the
+ * Prometheus text format), which is what the metrics endpoint of
+ * {@link MaxentTaggerServer} serves.
+ */
+public class TaggerStats implements TaggerMetrics {
+
+  /**
+   * The latency histogram has a bucket for each power of two of
+   * microseconds: bucket i holds latencies below 2<sup>i</sup> us (and
+   * at least half that), and the last one all the longer ones.
+   */
+  private static final int NUM_BUCKETS = 32;
+
+  /** The rates are over this many whole seconds. */
+  private static final int RATE_WINDOW = 10;
+
+  private final long startNanos = System.nanoTime();
+
+  private final AtomicLong sentences = new AtomicLong();
+  private final AtomicLong words = new AtomicLong();
+  private final AtomicLong unknownWords = new AtomicLong();
+  private final AtomicLong historiesNanos = new AtomicLong();
+  private final AtomicLong decodeNanos = new AtomicLong();
+  private final AtomicLong texts = new AtomicLong();
+  private final AtomicLong tokenizeNanos = new AtomicLong();
+  private final AtomicLongArray latencyBuckets = new AtomicLongArray(NUM_BUCKETS);
+
+  // Counts for each of the last RATE_WINDOW + 1 seconds, in slots by the
+  // second modulo the number of slots, each with the second it counts.
+  private final AtomicLongArray slotSeconds = new AtomicLongArray(RATE_WINDOW + 1);
+  private final AtomicLongArray slotSentences = new AtomicLongArray(RATE_WINDOW + 1);
+  private final AtomicLongArray slotWords = new AtomicLongArray(RATE_WINDOW + 1);
+
+
+  public void sentenceTagged(int numWords, int numUnknown, long historiesNanos, long decodeNanos) {
+    sentences.incrementAndGet();
+    words.addAndGet(numWords);
+    unknownWords.addAndGet(numUnknown);
+    this.historiesNanos.addAndGet(historiesNanos);
+    this.decodeNanos.addAndGet(decodeNanos);
+    latencyBuckets.incrementAndGet(bucket(historiesNanos + decodeNanos));
+
+    long second = (System.nanoTime() - startNanos) / 1000000000L;
+    int slot = (int) (second % slotSeconds.length());
+    long slotSecond = slotSeconds.get(slot);
+    if (slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second)) {
+      // a count racing with this reset may be lost, which a rate can bear
+      slotSentences.set(slot, 0);
+      slotWords.set(slot, 0);
+    }
+    slotSentences.incrementAndGet(slot);
+    slotWords.addAndGet(slot, numWords);
+  }
+
+  public void textTokenized(int numSentences, long nanos) {
+    texts.incrementAndGet();
+    tokenizeNanos.addAndGet(nanos);
+  }
+
+  private static int bucket(long nanos) {
+    long micros = nanos / 1000;
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    return Math.min(bucket, NUM_BUCKETS - 1);
+  }
+
+  public long sentences() {
+    return sentences.get();
+  }
+
+  public long words() {
+    return words.get();
+  }
+
+  public long unknownWords() {
+    return unknownWords.get();
+  }
+
+  /** The fraction of the words tagged that were unknown, or 0 if none were tagged. */
+  public double unknownWordRate() {
+    long numWords = words.get();
+    return (numWords == 0) ? 0.0 : ((double) unknownWords.get()) / numWords;
+  }
+
+  /** The sentences tagged per second over the last few seconds. */
+  public double sentencesPerSecond() {
+    return recentRate(slotSentences);
+  }
+
+  /** The words tagged per second over the last few seconds. */
+  public double wordsPerSecond() {
+    return recentRate(slotWords);
+  }
+
+  // Sums the slots of the whole seconds in the window, not the current one.
+  private double recentRate(AtomicLongArray counts) {
+    long second = (System.nanoTime() - startNanos) / 1000000000L;
+    long window = Math.min(RATE_WINDOW, second);
+    if (window == 0) {
+      return 0.0;
+    }
+    long total = 0;
+    for (int slot = 0; slot < counts.length(); slot++) {
+      long slotSecond = slotSeconds.get(slot);
+      if (slotSecond < second && slotSecond >= second - window) {
+        total += counts.get(slot);
+      }
+    }
+    return ((double) total) / window;
+  }
+
+  /**
+   * An estimate of the given quantile (such as 0.99) of the time taken
+   * to tag a sentence, in seconds: the upper bound of the histogram
+   * bucket it falls in.  It is 0 if no sentences have been tagged.
+   */
+  public double latencyQuantile(double quantile) {
+    long[] counts = new long[NUM_BUCKETS];
+    long total = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] = latencyBuckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0.0;
+    }
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return (1L << i) / 1e6;
+      }
+    }
+    return (1L << (NUM_BUCKETS - 1)) / 1e6;
+  }
+
+  /**
+   * Writes all the measurements, and the hit rate of the local score
+   * cache, if there is one, as plain text.
+   *
+   * @param out Where to write them
+   * @param cache The cache of the tagger measured, or null
+   */
+  public void report(StringBuilder out, LocalScoreCache cache) {
+    line(out, "tagger_uptime_seconds", (System.nanoTime() - startNanos) / 1e9);
+    line(out, "tagger_sentences_total", sentences.get());
+    line(out, "tagger_words_total", words.get());
+    line(out, "tagger_unknown_words_total", unknownWords.get());
+    line(out, "tagger_unknown_word_rate", unknownWordRate());
+    line(out, "tagger_sentences_per_second", sentencesPerSecond());
+    line(out, "tagger_words_per_second", wordsPerSecond());
+    for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+      line(out, "tagger_sentence_latency_seconds{quantile=\"" + quantile + "\"}", latencyQuantile(quantile));
+    }
+    line(out, "tagger_texts_tokenized_total", texts.get());
+    line(out, "tagger_tokenize_seconds_total", tokenizeNanos.get() / 1e9);
+    line(out, "tagger_histories_seconds_total", historiesNanos.get() / 1e9);
+    line(out, "tagger_decode_seconds_total", decodeNanos.get() / 1e9);
+    if (cache != null) {
+      line(out, "tagger_local_score_cache_size", cache.size());
+      line(out, "tagger_local_score_cache_hits_total", cache.hits());
+      line(out, "tagger_local_score_cache_misses_total", cache.misses());
+      line(out, "tagger_local_score_cache_hit_rate", cache.hitRate());
+    }
+  }
+
+  static void line(StringBuilder out, String name, long value) {
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  static void line(StringBuilder out, String name, double value) {
+    out.append(name).append(' ').append(String.format(Locale.US, "%.6g", value)).append('\n');
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    report(sb, null);
+    return sb.toString();
+  }
+
+}
@@ -7,10 +7,8 @@
 
 package edu.stanford.nlp.tagger.maxent;
 
-import edu.stanford.nlp.util.Pair;
-
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 
 /**
@@ -21,7 +19,8 @@ import java.util.HashMap;
  */
 class ListInstances {
 
-  private final ArrayList<Integer> v = new ArrayList<Integer>();
+  private int[] v = new int[4];
+  private int size = 0;
   private int[] positions = null;
   private int num = 0;
 
@@ -29,7 +28,10 @@ class ListInstances {
   }
 
   protected void add(int x) {
-    v.add(x);
+    if (size == v.length) {
+      v = Arrays.copyOf(v, size * 2);
+    }
+    v[size++] = x;
   }
 
   protected void addPositions(int s, int e) {
@@ -54,13 +56,7 @@ class ListInstances {
 
 
   public int[] getInstances() {
-    int[] arr = new int[v.size()];
-    Integer[] arr1 = new Integer[v.size()];
-    v.toArray(arr1);
-    for (int i = 0; i < v.size(); i++) {
-      arr[i] = arr1[i];
-    }
-    return arr;
+    return Arrays.copyOf(v, size);
   }
 
   /*
@@ -95,8 +91,10 @@ class ListInstances {
 
 public class TemplateHash {
 
-  // the positions of the feature extractors
-  private final HashMap<Pair<Integer,String>,ListInstances> tempHash = new HashMap<Pair<Integer,String>,ListInstances>();
+  // the positions of the feature extractors, keyed by the feature frame
+  // number and the (interned) value of the feature on the history
+  private final LongIndex keys = new LongIndex();
+  private final ArrayList<ListInstances> tempHash = new ArrayList<ListInstances>();
 
   private final MaxentTagger maxentTagger;
 
@@ -104,14 +102,30 @@ public class TemplateHash {
     this.maxentTagger = maxentTagger;
   }
 
-  protected void addPositions(int start, int end, FeatureKey fK) {
-    Pair<Integer, String> key = new Pair<Integer, String>(fK.num, fK.val);
-    tempHash.get(key).addPositions(start, end);
+  /** The feature frame number paired with its (interned) value on the history. */
+  private static long key(int nFeatFrame, int value) {
+    return ((long) value << 32) | nFeatFrame;
+  }
+
+  private ListInstances get(int nFeatFrame, int value) {
+    int index = keys.indexOf(key(nFeatFrame, value));
+    return (index < 0) ? null : tempHash.get(index);
+  }
+
+  private ListInstances getOrAdd(int nFeatFrame, int value) {
+    int index = keys.indexOf(key(nFeatFrame, value), true);
+    if (index == tempHash.size()) {
+      tempHash.add(new ListInstances());
+    }
+    return tempHash.get(index);
+  }
+
+  protected void addPositions(int start, int end, int nFeatFrame, int value) {
+    get(nFeatFrame, value).addPositions(start, end);
   }
 
-  protected int[] getPositions(FeatureKey s) {
-    Pair<Integer, String> p = new Pair<Integer, String>(s.num, s.val);
-    return tempHash.get(p).getPositions();
+  protected int[] getPositions(int nFeatFrame, int value) {
+    return get(nFeatFrame, value).getPositions();
   }
 
   //public void init() {
@@ -125,21 +139,13 @@ public class TemplateHash {
   //}
 
   protected void release() {
+    keys.clear();
     tempHash.clear();
   }
 
-  protected void add(int nFeatFrame, History history, int number) {
-    Pair<Integer,String> wT;
-    int general = maxentTagger.extractors.getSize();
-
-    if (nFeatFrame < general) {
-      wT = new Pair<Integer,String>(nFeatFrame, maxentTagger.extractors.extract(nFeatFrame, history));
-    } else {
-      wT = new Pair<Integer,String>(nFeatFrame, maxentTagger.extractorsRare.extract(nFeatFrame - general, history));
-    }
-
-    if (tempHash.containsKey(wT)) {
-      ListInstances li = tempHash.get(wT);
+  protected void add(int nFeatFrame, int value, int number) {
+    ListInstances li = get(nFeatFrame, value);
+    if (li != null) {
       // TODO: can we clean this call up somehow?  perhaps make the
       // TemplateHash aware of the TaggerExperiments if we need to, or
       // vice-versa?
@@ -147,35 +153,20 @@ public class TemplateHash {
         li.add(number);
       }
     } else {
-      ListInstances li = new ListInstances();
-      li.add(number);
-      tempHash.put(wT, li);
+      getOrAdd(nFeatFrame, value).add(number);
     }
   }
 
 
-  protected void addPrev(int nFeatFrame, History history) {
-    Pair<Integer,String> wT;
-    int general = maxentTagger.extractors.getSize();
-
-    if (nFeatFrame < general) {
-      wT = new Pair<Integer,String>(nFeatFrame, maxentTagger.extractors.extract(nFeatFrame, history));
-    } else {
-      wT = new Pair<Integer,String>(nFeatFrame, maxentTagger.extractorsRare.extract(nFeatFrame - general, history));
-    }
-    if (tempHash.containsKey(wT)) {
-      (tempHash.get(wT)).inc();
-    } else {
-      ListInstances li = new ListInstances();
-      li.inc();
-      tempHash.put(wT, li);
-    }
+  protected void addPrev(int nFeatFrame, int value) {
+    getOrAdd(nFeatFrame, value).inc();
   }
 
 
-  protected int[] getXValues(Pair<Integer, String> key) {
-    if (tempHash.containsKey(key)) {
-      return tempHash.get(key).getInstances();
+  protected int[] getXValues(int nFeatFrame, int value) {
+    ListInstances li = get(nFeatFrame, value);
+    if (li != null) {
+      return li.getInstances();
     }
     return null;
   }
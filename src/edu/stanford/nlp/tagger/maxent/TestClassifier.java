@@ -8,6 +8,7 @@ import edu.stanford.nlp.io.PrintFile;
 import edu.stanford.nlp.ling.TaggedWord;
 import edu.stanford.nlp.tagger.common.TaggerConstants;
 import edu.stanford.nlp.tagger.io.TaggedFileRecord;
+import edu.stanford.nlp.util.Timing;
 
 
 /** Tags data and can handle either data with gold-standard tags (computing
@@ -34,6 +35,10 @@ public class TestClassifier {
   private int numWrongUnknown;
   private int numCorrectSentences;
   private int numSentences;
+  private long millis;
+
+  // how each decoder did, when more than one is being compared
+  private final List<DecoderResult> decoderResults = new ArrayList<DecoderResult>();
 
   // TODO: only one boolean here instead of 3?
   private boolean writeUnknDict;
@@ -53,7 +58,57 @@ public class TestClassifier {
     if (dPrefix == null || dPrefix.equals("")) {
       dPrefix = fileRecord.filename();
     }
-    test(config, dPrefix, maxentTagger);
+
+    // Each decoder tags the whole file; the detailed results and debug
+    // files are those of the first one, which is the one used for tagging
+    String[] decoders = config.getDecoders();
+    if (decoders.length > 1) {
+      // An untimed pass of each first, so that the times compared don't
+      // depend on which decoder ran while the JIT was still compiling
+      setDebug(false);
+      for (String decoder : decoders) {
+        clearCache(maxentTagger);
+        test(config, dPrefix, maxentTagger, decoder, false);
+      }
+    }
+    for (int i = decoders.length - 1; i >= 0; i--) {
+      // so that no decoder gets the others' cached scores
+      clearCache(maxentTagger);
+      setDebug(i == 0 && config.getDebug());
+      Timing t = new Timing();
+      test(config, dPrefix, maxentTagger, decoders[i], config.getVerboseResults());
+      millis = t.stop();
+      String name = decoders[i].equals("beam") ? "beam(" + config.getBeamSize() + ")" : decoders[i];
+      decoderResults.add(0, new DecoderResult(name, numRight, numWrong, unknownWords,
+                                              numWrongUnknown, millis));
+    }
+  }
+
+  private static void clearCache(MaxentTagger maxentTagger) {
+    LocalScoreCache cache = maxentTagger.getLocalScoreCache();
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  /** Accuracy and speed of one decoder on the test file. */
+  private static class DecoderResult {
+    final String decoder;
+    final int numRight;
+    final int numWrong;
+    final int unknownWords;
+    final int numWrongUnknown;
+    final long millis;
+
+    DecoderResult(String decoder, int numRight, int numWrong, int unknownWords,
+                  int numWrongUnknown, long millis) {
+      this.decoder = decoder;
+      this.numRight = numRight;
+      this.numWrong = numWrong;
+      this.unknownWords = unknownWords;
+      this.numWrongUnknown = numWrongUnknown;
+      this.millis = millis;
+    }
   }
 
   /**
@@ -68,7 +123,7 @@ public class TestClassifier {
   private void testOneSentence(List<String> sentence, List<String> tagsArr,
                                PrintFile wordsFile, PrintFile unknDictFile,
                                PrintFile topWordsFile, boolean verboseResults,
-                               MaxentTagger maxentTagger) {
+                               MaxentTagger maxentTagger, String decoder) {
     numSentences++;
 
     int len = sentence.size();
@@ -82,7 +137,7 @@ public class TestClassifier {
     TestSentence testS = new TestSentence(maxentTagger,
                                           testSent, correctTags,
                                           wordsFile, wrongWords,
-                                          verboseResults);
+                                          verboseResults, decoder);
     if (writeUnknDict) testS.printUnknown(numSentences, unknDictFile);
     if (writeTopWords) testS.printTop(topWordsFile);
 
@@ -108,10 +163,17 @@ public class TestClassifier {
    * with method below
    */
   private void test(TaggerConfig config, String saveRoot,
-                    MaxentTagger maxentTagger)
+                    MaxentTagger maxentTagger, String decoder,
+                    boolean verboseResults)
     throws IOException
   {
     numSentences = 0;
+    numRight = 0;
+    numWrong = 0;
+    unknownWords = 0;
+    numWrongUnknown = 0;
+    numCorrectSentences = 0;
+    wrongWords = new Dictionary();
     PrintFile pf = null;
     PrintFile pf1 = null;
     PrintFile pf3 = null;
@@ -120,8 +182,6 @@ public class TestClassifier {
     if(writeUnknDict) pf1 = new PrintFile(saveRoot + ".un.dict");
     if(writeTopWords) pf3 = new PrintFile(saveRoot + ".words.top");
 
-    boolean verboseResults = config.getVerboseResults();
-
     for (List<TaggedWord> taggedSentence : fileRecord.reader()) {
       List<String> sentence = new ArrayList<String>();
       List<String> tagsArr = new ArrayList<String>();
@@ -133,7 +193,7 @@ public class TestClassifier {
 
       appendSentenceEnd(sentence, tagsArr);
       testOneSentence(sentence, tagsArr, pf, pf1, pf3,
-                      verboseResults, maxentTagger);
+                      verboseResults, maxentTagger, decoder);
     }
 
     if(pf != null) pf.close();
@@ -163,6 +223,22 @@ public class TestClassifier {
                                   100.0 - (numWrongUnknown * 100.0 / unknownWords),
                                   numWrongUnknown, numWrongUnknown * 100.0 / unknownWords));
     }
+    LocalScoreCache cache = maxentTagger.getLocalScoreCache();
+    if (cache != null) {
+      output.append(String.format("Local score cache: %d of %d words cached; hits: %d; misses: %d (hit rate %f%%).\n",
+                                  cache.size(), cache.maxSize(), cache.hits(), cache.misses(),
+                                  cache.hitRate() * 100.0));
+    }
+    if (decoderResults.size() > 1) {
+      output.append(String.format("%-12s %12s %14s %12s\n", "Decoder", "Tags right", "Unknown right", "Words/sec"));
+      for (DecoderResult result : decoderResults) {
+        int words = result.numRight + result.numWrong;
+        output.append(String.format("%-12s %11.3f%% %14s %12.1f\n", result.decoder,
+                                    result.numRight * 100.0 / words,
+                                    (result.unknownWords > 0) ? String.format("%.3f%%", 100.0 - (result.numWrongUnknown * 100.0 / result.unknownWords)) : "-",
+                                    words / (result.millis / 1000.0)));
+      }
+    }
     return output.toString();
   }
 
@@ -176,6 +252,16 @@ public class TestClassifier {
     return numRight + numWrong;
   }
 
+  /** The fraction of the words the first decoder tagged right. */
+  double getAccuracy() {
+    return numRight / (double) (numRight + numWrong);
+  }
+
+  /** How long the first decoder took to tag the test file. */
+  long getMillis() {
+    return millis;
+  }
+
   void setDebug(boolean status) {
     writeUnknDict = status;
     writeWords = status;
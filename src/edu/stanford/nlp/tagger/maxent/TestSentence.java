@@ -15,11 +15,15 @@ import edu.stanford.nlp.ling.HasWord;
 import edu.stanford.nlp.ling.Sentence;
 import edu.stanford.nlp.ling.TaggedWord;
 import edu.stanford.nlp.math.ArrayMath;
+import edu.stanford.nlp.sequences.BeamBestSequenceFinder;
 import edu.stanford.nlp.sequences.BestSequenceFinder;
-import edu.stanford.nlp.sequences.ExactBestSequenceFinder;
+import edu.stanford.nlp.sequences.GreedyBestSequenceFinder;
+import edu.stanford.nlp.sequences.ReusableExactBestSequenceFinder;
+import edu.stanford.nlp.sequences.SequenceLattice;
 import edu.stanford.nlp.sequences.SequenceModel;
 import edu.stanford.nlp.tagger.common.TaggerConstants;
 import edu.stanford.nlp.util.ArrayUtils;
+import edu.stanford.nlp.util.ScoredObject;
 
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
@@ -31,6 +35,13 @@ import java.text.DecimalFormat;
 
 
 /**
+ * Tags one sentence at a time against a MaxentTagger's model.  A
+ * TestSentence holds all of the mutable state used while tagging
+ * (the PairsHolder, the History and the local score caches) and only
+ * reads from the tagger, so it is a cheap per-thread tagging session:
+ * it may be reused for many sentences, but must not be shared between
+ * threads.  The MaxentTagger it wraps may be shared freely.
+ *
  * @author Kristina Toutanova
  * @author Michel Galley
  * @version 1.0
@@ -64,6 +75,16 @@ public class TestSentence implements SequenceModel {
   private volatile History history;
   protected volatile Map<String,double[]> localScores = new HashMap<String,double[]>();
   protected volatile double[][] localContextScores;
+  // whether to time getHistories, and the time so far for this sentence
+  private boolean timing;
+  private long historiesNanos;
+  // scratch space for getApproximateHistories, indexed by tag number
+  private int[] tagPositions;
+  private BestSequenceFinder bestSequenceFinder;
+  // The possible tags at each position (as in stringTagsAt) and their
+  // tag numbers, worked out once per sentence in initializeScorer
+  private String[][] tagsAt = new String[0][];
+  private int[][] tagIndexesAt = new int[0][];
 
   protected final MaxentTagger maxentTagger;
 
@@ -80,11 +101,19 @@ public class TestSentence implements SequenceModel {
     }
     history = new History(pairs, maxentTagger.extractors);
     VERBOSE = maxentTagger.config.getVerbose();
+    setDecoder(maxentTagger.decoder);
   }
 
   public TestSentence(MaxentTagger maxentTagger, String[] s, String[] correctTags,
                       PrintFile pf, Dictionary wrongWords, boolean verboseResults) {
+    this(maxentTagger, s, correctTags, pf, wrongWords, verboseResults, maxentTagger.decoder);
+  }
+
+  public TestSentence(MaxentTagger maxentTagger, String[] s, String[] correctTags,
+                      PrintFile pf, Dictionary wrongWords, boolean verboseResults,
+                      String decoder) {
     this(maxentTagger);
+    setDecoder(decoder);
     if (DBG) {
       assert(s.length == correctTags.length);
       System.err.println("Entering TestSentence(); s.length is " + s.length + "; startSizePairs is " + endSizePairs + "; endSizePairs is " + endSizePairs);
@@ -105,6 +134,30 @@ public class TestSentence implements SequenceModel {
     }
   }
 
+  /**
+   * Sets how the best tags are found for the following sentences.
+   *
+   * @param decoder "exact" for Viterbi search, "beam" for beam search
+   *     with the tagger's beam size, or "greedy" to choose the best tag
+   *     for each word in turn, left to right
+   */
+  public void setDecoder(String decoder) {
+    if (decoder.equals("exact")) {
+      bestSequenceFinder = new ReusableExactBestSequenceFinder();
+    } else if (decoder.equals("beam")) {
+      bestSequenceFinder = new BeamBestSequenceFinder(maxentTagger.beamSize);
+    } else if (decoder.equals("greedy")) {
+      bestSequenceFinder = new GreedyBestSequenceFinder();
+    } else {
+      throw new IllegalArgumentException("Unknown decoder: " + decoder);
+    }
+  }
+
+  /** The finder that the decoder set with {@link #setDecoder} uses. */
+  BestSequenceFinder bestSequenceFinder() {
+    return bestSequenceFinder;
+  }
+
   /**
    * Tags the sentence s by running maxent model.  Returns a sentence (List) of
    * TaggedWord objects.
@@ -114,10 +167,88 @@ public class TestSentence implements SequenceModel {
    */
   public ArrayList<TaggedWord> tagSentence(List<? extends HasWord> s,
                                            boolean reuseTags) {
-    this.origWords = new ArrayList<HasWord>(s);
+    TaggerMetrics metrics = maxentTagger.metrics;
+    long start = 0;
+    int unknownBefore = numUnknown;
+    if (metrics != null) {
+      timing = true;
+      historiesNanos = 0;
+      start = System.nanoTime();
+    }
+    setSentence(s, reuseTags);
+    ArrayList<TaggedWord> result = testTagInference();
+    if (maxentTagger.wordFunction != null) {
+      for (int j = 0; j < s.size(); ++j) {
+        result.get(j).setWord(s.get(j).word());
+      }
+    }
+    if (metrics != null) {
+      timing = false;
+      long nanos = System.nanoTime() - start;
+      metrics.sentenceTagged(s.size(), numUnknown - unknownBefore, historiesNanos, nanos - historiesNanos);
+    }
+    return result;
+  }
+
+  /**
+   * Scores the sentence once, and finds both its k best taggings and
+   * the marginal probability of each tag of each word (by
+   * forward-backward over the same window scores that exact decoding
+   * uses).  The configured decoder isn't used; the best tagging is that
+   * of exact decoding.
+   *
+   * @param s Input sentence (List).  This isn't changed.
+   * @param k The number of taggings wanted
+   * @return The taggings and marginal probabilities
+   */
+  public SentenceScores scoreSentence(List<? extends HasWord> s, int k) {
+    setSentence(s, false);
+    initializeScorer();
+    SequenceLattice lattice = new SequenceLattice(this);
+    List<ScoredObject<int[]>> best = lattice.kBest(k);
+    double[][] marginals = lattice.marginals();
+    cleanUpScorer();
+
+    int sz = s.size(); // the EOS isn't reported
+    List<ScoredObject<ArrayList<TaggedWord>>> kBest =
+      new ArrayList<ScoredObject<ArrayList<TaggedWord>>>(best.size());
+    for (ScoredObject<int[]> sequence : best) {
+      ArrayList<TaggedWord> tagging = new ArrayList<TaggedWord>(sz);
+      for (int j = 0; j < sz; j++) {
+        String tag = maxentTagger.tags.getTag(sequence.object()[j + leftWindow()]);
+        tagging.add(new TaggedWord(s.get(j).word(), tag));
+      }
+      kBest.add(new ScoredObject<ArrayList<TaggedWord>>(tagging, sequence.score()));
+    }
+    // copies, since tagsAt holds the dictionary's own arrays, which are
+    // shared with every other thread tagging with this model
+    String[][] possibleTags = new String[sz][];
+    for (int j = 0; j < sz; j++) {
+      possibleTags[j] = tagsAt[j + leftWindow()].clone();
+    }
+    return new SentenceScores(kBest, possibleTags, Arrays.copyOf(marginals, sz));
+  }
+
+  /**
+   * Makes s the sentence to be tagged (or scored), without tagging it.
+   *
+   * @param s Input sentence (List).  This isn't changed.
+   * @param reuseTags Whether to keep the tags of s that are HasTags
+   */
+  void setSentence(List<? extends HasWord> s, boolean reuseTags) {
     int sz = s.size();
-    this.sent = new ArrayList<String>(sz + 1);
-    this.originalTags = new ArrayList<String>(sz + 1);
+    // The lists are only read while tagging this sentence, so when a
+    // TestSentence tags many sentences, they are reused.
+    if (origWords == null) {
+      origWords = new ArrayList<HasWord>(s);
+      sent = new ArrayList<String>(sz + 1);
+      originalTags = new ArrayList<String>(sz + 1);
+    } else {
+      origWords.clear();
+      origWords.addAll(s);
+      sent.clear();
+      originalTags.clear();
+    }
     for (int j = 0; j < sz; j++) {
       if (maxentTagger.wordFunction != null) {
         sent.add(maxentTagger.wordFunction.apply(s.get(j).word()));
@@ -138,13 +269,6 @@ public class TestSentence implements SequenceModel {
                          Sentence.listToString(sent, false, tagSeparator));
     }
     init();
-    ArrayList<TaggedWord> result = testTagInference();
-    if (maxentTagger.wordFunction != null) {
-      for (int j = 0; j < sz; ++j) {
-        result.get(j).setWord(s.get(j).word());
-      }
-    }
-    return result;
   }
 
 
@@ -154,7 +278,11 @@ public class TestSentence implements SequenceModel {
 
   protected void init() {
     //the eos are assumed already there
-    localContextScores = new double[size][];
+    if (localContextScores == null || localContextScores.length < size) {
+      localContextScores = new double[size][];
+    } else {
+      Arrays.fill(localContextScores, 0, size, null);
+    }
     for (int i = 0; i < size - 1; i++) {
       if (maxentTagger.dict.isUnknown(sent.get(i))) {
         numUnknown++;
@@ -236,7 +364,7 @@ public class TestSentence implements SequenceModel {
         for (int j = 0; j < tags.length; j++) {
           // score the j-th tag
           String tag = tags[j];
-          boolean approximate = maxentTagger.defaultScore > 0.0;
+          boolean approximate = possibleTagsScoredOnly();
           int tagindex = approximate ? maxentTagger.tags.getIndex(tag) : j;
           // System.err.println("Mapped from j="+ j + " " + tag + " to " + tagindex);
           probabilities[current][hyp][tagindex] = probs[j];
@@ -301,7 +429,7 @@ public class TestSentence implements SequenceModel {
   }
 
 
-  // Test using (exact Viterbi) TagInference.
+  // Test using TagInference.
   private void testTagInference(PrintFile pf, Dictionary wrongWords, boolean verboseResults) {
     runTagInference();
     writeTagsAndErrors(finalTags, pf, wrongWords, verboseResults);
@@ -309,7 +437,7 @@ public class TestSentence implements SequenceModel {
 
 
   /**
-   * Test using (exact Viterbi) TagInference.
+   * Test using TagInference.
    *
    * @return The tagged sentence
    */
@@ -321,10 +449,7 @@ public class TestSentence implements SequenceModel {
   private void runTagInference() {
     this.initializeScorer();
 
-    BestSequenceFinder ti = new ExactBestSequenceFinder();
-      //new BeamBestSequenceFinder(50);
-      //new KBestSequenceFinder()
-    int[] bestTags = ti.bestSequence(this);
+    int[] bestTags = bestSequenceFinder.bestSequence(this);
     finalTags = new String[bestTags.length];
     for (int j = 0; j < size; j++) {
       finalTags[j] = maxentTagger.tags.getTag(bestTags[j + leftWindow()]);
@@ -358,6 +483,21 @@ public class TestSentence implements SequenceModel {
     for (int i = 0; i < size; i++)
       pairs.setWord(i,sent.get(i));
     endSizePairs += size;
+
+    int padLength = size + leftWindow() + rightWindow();
+    if (tagsAt.length < padLength) {
+      tagsAt = new String[padLength][];
+      tagIndexesAt = new int[padLength][];
+    }
+    for (int pos = 0; pos < padLength; pos++) {
+      String[] arr1 = stringTagsAt(pos);
+      int[] arr = new int[arr1.length];
+      for (int i = 0; i < arr.length; i++) {
+        arr[i] = maxentTagger.tags.getIndex(arr1[i]);
+      }
+      tagsAt[pos] = arr1;
+      tagIndexesAt[pos] = arr;
+    }
   }
 
 
@@ -371,39 +511,48 @@ public class TestSentence implements SequenceModel {
   // This scores the current assignment in PairsHolder at
   // current position h.current (returns normalized scores)
   private double[] getScores(History h) {
-    if (maxentTagger.defaultScore > 0) {
+    if (possibleTagsScoredOnly()) {
       return getApproximateScores(h);
     }
     return getExactScores(h);
   }
 
   private double[] getExactScores(History h) {
-    String[] tags = stringTagsAt(h.current - h.start + leftWindow());
+    int pos = h.current - h.start + leftWindow();
+    String[] tags = tagsAt[pos];
+    int[] tagIndexes = tagIndexesAt[pos];
     double[] histories = getHistories(tags, h); // log score for each tag
     ArrayMath.logNormalize(histories);
     double[] scores = new double[tags.length];
     for (int j = 0; j < tags.length; j++) {
       // score the j-th tag
-      String tag = tags[j];
-      int tagindex = maxentTagger.tags.getIndex(tag);
-      scores[j] = histories[tagindex];
+      scores[j] = histories[tagIndexes[j]];
     }
     return scores;
   }
 
+  // Whether only the tags possible at a position are scored.  The other
+  // tags either get a default score, or, if the model was trained to
+  // normalize over the possible tags only, no probability at all.
+  private boolean possibleTagsScoredOnly() {
+    return maxentTagger.defaultScore > 0 || maxentTagger.sparseTraining;
+  }
+
   // In this method, each tag that is incompatible with the current word
-  // (e.g., apple_CC) gets a default (constant) score instead of its exact score.
+  // (e.g., apple_CC) gets a default (constant) score instead of its exact score,
+  // or none if the model was trained with sparseTraining.
   // The scores of all other tags are computed exactly.
   private double[] getApproximateScores(History h) {
-    String[] tags = stringTagsAt(h.current - h.start + leftWindow());
+    String[] tags = tagsAt[h.current - h.start + leftWindow()];
     double[] scores = getHistories(tags, h); // log score for each active tag, unnormalized
 
-    // Number of tags that get assigned a default score:
-    double nDefault = maxentTagger.ySize - tags.length;
-    double logScore = ArrayMath.logSum(scores);
-    double logScoreInactiveTags = Math.log(nDefault*maxentTagger.defaultScore);
-    double logTotal =
-      ArrayMath.logSum(new double[] {logScore, logScoreInactiveTags});
+    double logTotal = ArrayMath.logSum(scores);
+    if ( ! maxentTagger.sparseTraining) {
+      // Number of tags that get assigned a default score:
+      double nDefault = maxentTagger.ySize - tags.length;
+      double logScoreInactiveTags = Math.log(nDefault*maxentTagger.defaultScore);
+      logTotal = ArrayMath.logSum(new double[] {logTotal, logScoreInactiveTags});
+    }
     ArrayMath.addInPlace(scores, -logTotal);
 
     return scores;
@@ -411,11 +560,33 @@ public class TestSentence implements SequenceModel {
 
   // This precomputes scores of local features (localScores).
   protected double[] getHistories(String[] tags, History h) {
+    if ( ! timing) {
+      return computeHistories(tags, h);
+    }
+    long start = System.nanoTime();
+    double[] histories = computeHistories(tags, h);
+    historiesNanos += System.nanoTime() - start;
+    return histories;
+  }
+
+  private double[] computeHistories(String[] tags, History h) {
     boolean rare = maxentTagger.isRare(ExtractorFrames.cWord.extract(h));
     Extractors ex = maxentTagger.extractors, exR = maxentTagger.extractorsRare;
     String w = pairs.getWord(h.current);
     double[] lS, lcS;
-    if((lS = localScores.get(w)) == null) {
+    // A tag supplied by the caller changes the tags scored (and so the
+    // layout of the approximate scores), so those words aren't shared.
+    LocalScoreCache cache = maxentTagger.localScoreCache;
+    if (cache != null && originalTags != null &&
+        originalTags.get(h.current - h.start) != null) {
+      cache = null;
+    }
+    if (cache != null) {
+      if ((lS = cache.get(w)) == null) {
+        lS = getHistories(tags, h, ex.localList, rare ? exR.localList : null);
+        cache.put(w, lS);
+      }
+    } else if((lS = localScores.get(w)) == null) {
       lS = getHistories(tags, h, ex.localList, rare ? exR.localList : null);
       localScores.put(w,lS);
     }
@@ -430,7 +601,7 @@ public class TestSentence implements SequenceModel {
   }
 
   private double[] getHistories(String[] tags, History h, IndexedExtractor[] extractors, IndexedExtractor[] extractorsRare) {
-    if(maxentTagger.defaultScore > 0)
+    if(possibleTagsScoredOnly())
       return getApproximateHistories(tags, h, extractors, extractorsRare);
     return getExactHistories(h, extractors, extractorsRare);
   }
@@ -438,39 +609,23 @@ public class TestSentence implements SequenceModel {
   private double[] getExactHistories(History h, IndexedExtractor[] extractors, IndexedExtractor[] extractorsRare) {
     double[] scores = new double[maxentTagger.ySize];
     double[] lambda = maxentTagger.getLambdaSolve().lambda;
+    FeatureTable features = maxentTagger.featureTable;
 
     int szCommon = maxentTagger.extractors.getSize();
-    int numExtractors = szCommon;
-    if(maxentTagger.extractorsRare != null)
-      numExtractors += maxentTagger.extractorsRare.getSize();
 
     for(IndexedExtractor e : extractors) {
-      int kf = e.index;
-      Extractor ex = e.extractor;
-      String val = ex.extract(h);
-      int nums[] = maxentTagger.getScores(val);
-      if(nums != null) { // known word
-        for (int i = 0; i < maxentTagger.ySize; i++) {
-          int fNum = nums[i * numExtractors + kf];
-          if (fNum > -1) {
-            scores[i] += lambda[fNum];
-          }
-        }
+      String val = e.extractor.extract(h);
+      int row = features.lookup(e.index, val);
+      if (row >= 0) { // known value
+        features.addScores(row, lambda, scores);
       }
     }
     if(extractorsRare != null) {
       for(IndexedExtractor e : extractorsRare) {
-        int kf = e.index;
-        Extractor ex = e.extractor;
-        String val = ex.extract(h);
-        int nums[] = maxentTagger.getScores(val);
-        if(nums != null) { // known word
-          for (int i = 0; i < maxentTagger.ySize; i++) {
-            int fNum = nums[i * numExtractors + szCommon + kf];
-            if (fNum > -1) {
-              scores[i] += lambda[fNum];
-            } // end for
-          }
+        String val = e.extractor.extract(h);
+        int row = features.lookup(szCommon + e.index, val);
+        if (row >= 0) { // known value
+          features.addScores(row, lambda, scores);
         }
       }
     }
@@ -480,51 +635,43 @@ public class TestSentence implements SequenceModel {
   // Returns an unnormalized score (in log space) for each tag
   private double[] getApproximateHistories(String[] tags, History h, IndexedExtractor[] extractors, IndexedExtractor[] extractorsRare) {
     double lambda[] = maxentTagger.getLambdaSolve().lambda;
-
-    int tagIndexes[] = new int[tags.length];
+    FeatureTable features = maxentTagger.featureTable;
+
+    // Map each tag index to its position in tags, or -1 if the tag
+    // isn't being scored.  The array is kept between calls and reset
+    // to all -1 before returning.
+    if (tagPositions == null) {
+      tagPositions = new int[maxentTagger.ySize];
+      Arrays.fill(tagPositions, -1);
+    }
+    int[] tagIndexes = new int[tags.length];
+    for (int i = 0; i < tags.length; i++) {
+      tagIndexes[i] = maxentTagger.tags.getIndex(tags[i]);
+      tagPositions[tagIndexes[i]] = i;
+    }
     int szCommon = maxentTagger.extractors.getSize();
-    int numExtractors = szCommon;
-    if(maxentTagger.extractorsRare != null)
-      numExtractors += maxentTagger.extractorsRare.getSize();
-
-    for(int i = 0; i < tags.length; i++)
-      tagIndexes[i] = maxentTagger.tags.getIndex(tags[i]) * numExtractors;
 
     double[] scores = new double[tags.length];
 
     for(IndexedExtractor e : extractors) {
-      int kf = e.index;
-      Extractor ex = e.extractor;
-      String val = ex.extract(h);
-      int[] nums = maxentTagger.getScores(val);
-      if(nums != null) { // known word
-        for (int j = 0; j < tags.length; j++) {
-          int fNum = nums[tagIndexes[j] + kf];
-          if (fNum > -1) {
-            scores[j] += lambda[fNum];
-          }
-        }
+      String val = e.extractor.extract(h);
+      int row = features.lookup(e.index, val);
+      if (row >= 0) { // known value
+        features.addScores(row, lambda, tagPositions, scores);
       }
     }
     if(extractorsRare != null) {
-      for(int i = 0; i < tags.length; i++)
-        tagIndexes[i] += szCommon;
-
       for(IndexedExtractor e : extractorsRare) {
-        int kf = e.index;
-        Extractor ex = e.extractor;
-        String val = ex.extract(h);
-        int[] nums = maxentTagger.getScores(val);
-        if(nums != null) { // known word
-          for (int j = 0; j < tags.length; j++) {
-            int fNum = nums[tagIndexes[j] + kf];
-            if (fNum > -1) {
-              scores[j] += lambda[fNum];
-            }
-          }
+        String val = e.extractor.extract(h);
+        int row = features.lookup(szCommon + e.index, val);
+        if (row >= 0) { // known value
+          features.addScores(row, lambda, tagPositions, scores);
         }
       }
     }
+    for (int tagIndex : tagIndexes) {
+      tagPositions[tagIndex] = -1;
+    }
     return scores;
   }
 
@@ -680,15 +827,11 @@ public class TestSentence implements SequenceModel {
   }
 
 
+  // Only valid while tagging, after initializeScorer.  The array
+  // returned is shared, and mustn't be changed.
   @Override
   public int[] getPossibleValues(int pos) {
-    String[] arr1 = stringTagsAt(pos);
-    int[] arr = new int[arr1.length];
-    for (int i = 0; i < arr.length; i++) {
-      arr[i] = maxentTagger.tags.getIndex(arr1[i]);
-    }
-
-    return arr;
+    return tagIndexesAt[pos];
   }
 
   @Override
@@ -734,6 +877,9 @@ public class TestSentence implements SequenceModel {
     }
 
     String word = sent.get(pos - leftWindow());
+    // (with sparseTraining, rare words were trained over more tags than
+    // these; see TaggerExperiments.initPossibleTags for why they aren't
+    // given them here)
     if (maxentTagger.dict.isUnknown(word)) {
       Set<String> open = maxentTagger.tags.getOpenTags();
       arr1 = open.toArray(new String[open.size()]);